@@ -0,0 +1,87 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregates one synthetic group per operation.
+ *
+ * <P> The group is created before each invocation and is not part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregatedRecordBuilderBenchmark {
+
+    @Param({"SORT", "KWAY", "HASH", "TAG_BUCKETS", "INCREMENTAL", "ADAPTIVE"})
+    public MergeStrategy strategy;
+
+    @Param({"3", "50"})
+    public int groupSize;
+
+    @Param({"30"})
+    public int fieldsPerRecord;
+
+    @Param({"0.5"})
+    public double duplicateRatio;
+
+    @Param({"0.2"})
+    public double linkDensity;
+
+    private SyntheticGroups groups;
+    private AggregatedRecordBuilderImpl builder;
+    private List<Record> group;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        groups = new SyntheticGroups(groupSize, fieldsPerRecord, duplicateRatio, linkDensity, 42);
+        builder = new AggregatedRecordBuilderImpl(strategy);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        group = groups.group(n++ % 1024);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        builder.reset();
+    }
+
+    @Benchmark
+    public AggregatedRecordBuilderImpl add() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder;
+    }
+
+    @Benchmark
+    public Record addAndBuild() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder.build();
+    }
+}
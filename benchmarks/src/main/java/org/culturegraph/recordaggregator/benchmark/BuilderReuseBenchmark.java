@@ -0,0 +1,87 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderFactory;
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregates many small groups with a new builder per group, with the thread local builder of the factory or with
+ * one builder that is reused.
+ *
+ * <P> Run with <code>-prof gc</code> and compare <i>gc.alloc.rate.norm</i>, the bytes allocated per group.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuilderReuseBenchmark {
+
+    @Param({"SORT", "INCREMENTAL"})
+    public MergeStrategy strategy;
+
+    @Param({"2"})
+    public int groupSize;
+
+    @Param({"10"})
+    public int fieldsPerRecord;
+
+    private SyntheticGroups groups;
+    private AggregatedRecordBuilderImpl builder;
+    private List<Record> group;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        groups = new SyntheticGroups(groupSize, fieldsPerRecord, 0.5, 0.2, 42);
+        builder = new AggregatedRecordBuilderImpl(strategy);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        group = groups.group(n++ % 1024);
+    }
+
+    @Benchmark
+    public Record newBuilderPerGroup() {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(strategy);
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public Record threadLocalBuilder() {
+        AggregatedRecordBuilderImpl builder = AggregatedRecordBuilderFactory.threadLocalBuilder(strategy);
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public Record reusedBuilder() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,76 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.DataFieldComparator;
+import org.culturegraph.recordaggregator.plugin.DataFieldKey;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares neighbouring data fields, either directly or through their precomputed keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataFieldComparatorBenchmark {
+
+    private DataFieldComparator comparator;
+    private DataField[] dataFields;
+    private DataFieldKey[] keys;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        comparator = new DataFieldComparator('8');
+
+        List<DataField> all = new ArrayList<>();
+        SyntheticGroups groups = new SyntheticGroups(10, 30, 0.5, 0.2, 42);
+        for (Record record: groups.group(0)) {
+            all.addAll(record.getDataFields());
+        }
+        // Neighbours mostly share tag and indicators, so comparisons reach the subfields
+        all.sort(comparator);
+        dataFields = all.toArray(new DataField[0]);
+
+        keys = new DataFieldKey[dataFields.length];
+        for (int k = 0; k < dataFields.length; k++) {
+            keys[k] = comparator.keyOf(dataFields[k]);
+        }
+    }
+
+    @Benchmark
+    public int compare() {
+        int k = next();
+        return comparator.compare(dataFields[k], dataFields[(k + 1) % dataFields.length]);
+    }
+
+    @Benchmark
+    public int compareKeys() {
+        int k = next();
+        return keys[k].compareTo(keys[(k + 1) % keys.length]);
+    }
+
+    @Benchmark
+    public DataFieldKey keyOf() {
+        return comparator.keyOf(dataFields[next()]);
+    }
+
+    private int next() {
+        i = i + 1 == dataFields.length ? 0 : i + 1;
+        return i;
+    }
+}
@@ -0,0 +1,102 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.sink.Iso2709Encoder;
+import org.culturegraph.recordaggregator.sink.MarcXmlEncoder;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.MarcWriter;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds aggregates as records written by a marc4j writer, or streams them into an encoder of the same format.
+ *
+ * <P> The output is discarded. Run with <code>-prof gc</code> to compare the bytes allocated per aggregate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmitBenchmark {
+
+    @Param({"iso2709", "xml"})
+    public String format;
+
+    @Param({"10"})
+    public int groupSize;
+
+    @Param({"20"})
+    public int fieldsPerRecord;
+
+    private SyntheticGroups groups;
+    private AggregatedRecordBuilderImpl builder;
+    private MarcWriter writer;
+    private RecordSink encoder;
+    private List<Record> group;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        groups = new SyntheticGroups(groupSize, fieldsPerRecord, 0.5, 0.2, 42);
+        builder = new AggregatedRecordBuilderImpl();
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        boolean xml = format.equals("xml");
+        writer = xml ? new MarcXmlWriter(discard, "UTF-8") : new MarcStreamWriter(discard, "UTF-8", true);
+        encoder = xml ? new MarcXmlEncoder(discard) : new Iso2709Encoder(discard, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        group = groups.group(n++ % 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.close();
+        encoder.close();
+    }
+
+    @Benchmark
+    public void writer() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        writer.write(builder.build());
+    }
+
+    @Benchmark
+    public void encoder() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        builder.build(encoder);
+    }
+}
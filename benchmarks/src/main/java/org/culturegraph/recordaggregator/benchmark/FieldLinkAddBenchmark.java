@@ -0,0 +1,93 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds records whose data fields carry two field links each, one of them with a sequence number.
+ *
+ * <P> Run with <code>-prof gc</code>; <i>gc.alloc.rate.norm</i> is the bytes allocated per group, most of them for
+ * the field links that {@link AggregatedRecordBuilderImpl#add(Record)} parses and rewrites.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldLinkAddBenchmark {
+
+    private static final int RECORDS_PER_GROUP = 10;
+
+    @Param({"SORT"})
+    public MergeStrategy strategy;
+
+    @Param({"200"})
+    public int fieldsPerRecord;
+
+    private MarcFactory factory;
+    private AggregatedRecordBuilderImpl builder;
+    private List<Record> group;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        factory = MarcFactory.newInstance();
+        builder = new AggregatedRecordBuilderImpl(strategy);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        group = new ArrayList<>(RECORDS_PER_GROUP);
+        for (int r = 0; r < RECORDS_PER_GROUP; r++) {
+            group.add(newRecord(n++));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        builder.reset();
+    }
+
+    @Benchmark
+    public AggregatedRecordBuilderImpl add() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder;
+    }
+
+    private Record newRecord(int i) {
+        Record record = factory.newRecord("00000cam a2200000 a 4500");
+        record.addVariableField(factory.newControlField("001", String.valueOf(i)));
+        record.addVariableField(factory.newControlField("003", "DE-101"));
+        for (int f = 0; f < fieldsPerRecord; f++) {
+            DataField df = factory.newDataField(String.valueOf(500 + f), ' ', ' ');
+            df.addSubfield(factory.newSubfield('a', "Note " + f));
+            df.addSubfield(factory.newSubfield('8', (f + 1) + "\\u"));
+            df.addSubfield(factory.newSubfield('8', (f % 7 + 1) + ".1\\x"));
+            record.addVariableField(df);
+        }
+        return record;
+    }
+}
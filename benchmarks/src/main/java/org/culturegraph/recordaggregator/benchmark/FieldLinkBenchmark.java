@@ -0,0 +1,49 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.core.entity.FieldLink;
+import org.culturegraph.recordaggregator.core.entity.FieldLinkTypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parses a mix of valid field links, field links with sequence numbers and malformed values. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldLinkBenchmark {
+
+    private static final String[] VALUES = {"1\\p", "12\\u", "3.1\\x", "27.4\\p", "abc", "(DE-588)4049415-9", "4\\p"};
+
+    private final FieldLinkTypes types = new FieldLinkTypes();
+    private int i;
+
+    @Benchmark
+    public FieldLink of() {
+        try {
+            return FieldLink.of(next());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public long parse() {
+        return FieldLink.parse(next(), types);
+    }
+
+    private String next() {
+        i = i + 1 == VALUES.length ? 0 : i + 1;
+        return VALUES[i];
+    }
+}
@@ -0,0 +1,94 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds a large group of records with distinct data fields, which the pool of the builder holds until the build.
+ *
+ * <P> Run with <code>-prof gc</code>; <i>gc.alloc.rate.norm</i> divided by the number of pooled fields
+ * (<i>records &times; (fieldsPerRecord + 1)</i>, counting the added <i>035</i>) is an upper bound of the heap held
+ * per pooled field, since the pool keeps most of what is allocated while the records are added.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PooledHeapBenchmark {
+
+    @Param({"SORT", "HASH", "INCREMENTAL", "COMPACT"})
+    public MergeStrategy strategy;
+
+    @Param({"2000"})
+    public int records;
+
+    @Param({"50"})
+    public int fieldsPerRecord;
+
+    private MarcFactory factory;
+    private AggregatedRecordBuilderImpl builder;
+    private List<Record> group;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        factory = MarcFactory.newInstance();
+        builder = new AggregatedRecordBuilderImpl(strategy);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        group = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            group.add(newRecord(i));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        builder.reset();
+    }
+
+    @Benchmark
+    public AggregatedRecordBuilderImpl add() {
+        for (Record record: group) {
+            builder.add(record);
+        }
+        return builder;
+    }
+
+    private Record newRecord(int i) {
+        Record record = factory.newRecord("00000cam a2200000 a 4500");
+        record.addVariableField(factory.newControlField("001", String.valueOf(i)));
+        record.addVariableField(factory.newControlField("003", "DE-101"));
+        for (int f = 0; f < fieldsPerRecord; f++) {
+            DataField df = factory.newDataField("650", ' ', '7');
+            df.addSubfield(factory.newSubfield('a', "Religionsphilosophie " + i + "-" + f));
+            df.addSubfield(factory.newSubfield('0', "(DE-588)4049415-9"));
+            df.addSubfield(factory.newSubfield('2', "gnd"));
+            record.addVariableField(df);
+        }
+        return record;
+    }
+}
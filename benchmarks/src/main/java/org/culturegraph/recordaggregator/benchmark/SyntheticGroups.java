@@ -0,0 +1,109 @@
+package org.culturegraph.recordaggregator.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+/**
+ * Generates groups of synthetic MARC21 records shaped like the records in <code>example/</code>.
+ *
+ * <P> The same seed always yields the same groups. A generator creates new record objects on every call, because
+ * aggregation modifies the records it is given.
+ */
+public class SyntheticGroups {
+
+    /** Field shapes taken from the example records: tag, indicators and subfield codes. */
+    private static final String[][] SHAPES = {
+            {"041", "0 ", "a"},
+            {"082", "00", "a"},
+            {"084", "  ", "a2"},
+            {"245", "10", "abc"},
+            {"264", " 1", "abc"},
+            {"300", "  ", "ac"},
+            {"600", "17", "ad02"},
+            {"650", "07", "a02"},
+            {"650", " 0", "ax"},
+            {"689", "00", "D0a"},
+            {"700", "1 ", "a04"},
+            {"883", "0 ", "acd"},
+    };
+
+    private static final String[] LINK_TYPES = {"p", "u", "x"};
+
+    private final MarcFactory factory;
+    private final int groupSize;
+    private final int fieldsPerRecord;
+    private final double duplicateRatio;
+    private final double linkDensity;
+    private final long seed;
+
+    /**
+     * @param groupSize Number of records per group.
+     * @param fieldsPerRecord Number of data fields per record.
+     * @param duplicateRatio Share of fields of a record that also occur in other records of the group.
+     * @param linkDensity Probability that a field already carries a field link (subfield 8).
+     * @param seed Seed of the random generator.
+     */
+    public SyntheticGroups(int groupSize, int fieldsPerRecord, double duplicateRatio, double linkDensity, long seed) {
+        this.factory = MarcFactory.newInstance();
+        this.groupSize = groupSize;
+        this.fieldsPerRecord = fieldsPerRecord;
+        this.duplicateRatio = duplicateRatio;
+        this.linkDensity = linkDensity;
+        this.seed = seed;
+    }
+
+    /** Creates the <i>n</i>-th group. */
+    public List<Record> group(int n) {
+        Random random = new Random(seed * 31 + n);
+        // Fields shared by the members of the group, each record draws its duplicates from here
+        int sharedFields = Math.max(1, (int) Math.round(fieldsPerRecord * duplicateRatio));
+        long sharedSeed = random.nextLong();
+
+        List<Record> group = new ArrayList<>(groupSize);
+        for (int r = 0; r < groupSize; r++) {
+            Record record = factory.newRecord("00000cam a2200000 a 4500");
+            record.addVariableField(factory.newControlField("001", n + "-" + r));
+            record.addVariableField(factory.newControlField("003", "DE-" + (101 + r % 7)));
+
+            List<DataField> dataFields = new ArrayList<>(fieldsPerRecord);
+            for (int f = 0; f < fieldsPerRecord; f++) {
+                boolean duplicate = random.nextDouble() < duplicateRatio;
+                Random fieldRandom = duplicate ? new Random(sharedSeed + random.nextInt(sharedFields)) : random;
+                dataFields.add(newDataField(fieldRandom, random));
+            }
+            dataFields.sort((df1, df2) -> df1.getTag().compareTo(df2.getTag()));
+            dataFields.forEach(record::addVariableField);
+
+            group.add(record);
+        }
+        return group;
+    }
+
+    private DataField newDataField(Random content, Random links) {
+        String[] shape = SHAPES[content.nextInt(SHAPES.length)];
+        DataField df = factory.newDataField(shape[0], shape[1].charAt(0), shape[1].charAt(1));
+        for (char code: shape[2].toCharArray()) {
+            df.addSubfield(factory.newSubfield(code, word(content) + " " + word(content)));
+        }
+        if (links.nextDouble() < linkDensity) {
+            String type = LINK_TYPES[links.nextInt(LINK_TYPES.length)];
+            String sequence = links.nextInt(4) == 0 ? "." + (links.nextInt(9) + 1) : "";
+            df.addSubfield(factory.newSubfield('8', (links.nextInt(5) + 1) + sequence + "\\" + type));
+        }
+        return df;
+    }
+
+    private static String word(Random random) {
+        char[] word = new char[4 + random.nextInt(8)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        word[0] = Character.toUpperCase(word[0]);
+        return new String(word);
+    }
+}
@@ -0,0 +1,571 @@
+package org.culturegraph.recordaggregator.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.culturegraph.recordaggregator.iso2709.FingerprintCache;
+import org.culturegraph.recordaggregator.iso2709.Iso2709Record;
+import org.culturegraph.recordaggregator.iso2709.MappedIso2709Reader;
+import org.culturegraph.recordaggregator.iso2709.MappedIso2709Writer;
+import org.culturegraph.recordaggregator.iso2709.SliceAggregationPipeline;
+import org.culturegraph.recordaggregator.iso2709.SliceAggregator;
+import org.culturegraph.recordaggregator.metrics.AggregationMetrics;
+import org.culturegraph.recordaggregator.metrics.JmxExporter;
+import org.culturegraph.recordaggregator.pipeline.AggregationPipeline;
+import org.culturegraph.recordaggregator.pipeline.CheckpointJournal;
+import org.culturegraph.recordaggregator.pipeline.ClusterKeyMapping;
+import org.culturegraph.recordaggregator.pipeline.ClusterKeys;
+import org.culturegraph.recordaggregator.pipeline.ExternalGroupSorter;
+import org.culturegraph.recordaggregator.pipeline.PipelineStatistics;
+import org.culturegraph.recordaggregator.pipeline.RecordGroups;
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.BuildNumberAllocator;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.culturegraph.recordaggregator.plugin.SubfieldNormalizer;
+import org.culturegraph.recordaggregator.provenance.ProvenanceIndexWriter;
+import org.culturegraph.recordaggregator.provenance.ProvenanceRecorder;
+import org.culturegraph.recordaggregator.shard.ProcessShardLauncher;
+import org.culturegraph.recordaggregator.shard.ShardCoordinator;
+import org.culturegraph.recordaggregator.sink.AsyncRecordSink;
+import org.culturegraph.recordaggregator.sink.Iso2709Encoder;
+import org.culturegraph.recordaggregator.sink.MarcXmlEncoder;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcXmlReader;
+import org.marc4j.marc.Record;
+
+/**
+ * Command line entry point that aggregates a stream of records grouped by cluster key.
+ *
+ * <P> Reads MARCXML or ISO 2709 from a file or stdin and writes the aggregates to a file or stdout. Progress and
+ * statistics go to stderr.
+ */
+public class Main {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: record-aggregator (--cluster-field SPEC | --cluster-map FILE) [options]",
+            "",
+            "Aggregates records that are grouped by cluster key into one record per cluster.",
+            "",
+            "  --cluster-field SPEC    control field (TAG) or subfield (TAG$CODE) holding the cluster key",
+            "  --cluster-map FILE      tab separated lines of record id (001) and cluster key, looked up on disk",
+            "  -i, --input FILE        input file, - for stdin (default)",
+            "  -o, --output FILE       output file, - for stdout (default)",
+            "  --input-format FORMAT   xml (default) or iso2709",
+            "  --output-format FORMAT  xml (default) or iso2709",
+            "  --prefix PREFIX         build number prefix of the control number (001)",
+            "  --suffix SUFFIX         build number suffix of the control number (001)",
+            "  --agency ISIL           cataloging agency (003)",
+            "  --strategy STRATEGY     SORT, KWAY, HASH, TAG_BUCKETS, INCREMENTAL (default), COMPACT or ADAPTIVE",
+            "  --normalize RULES       merge data fields that are equal after normalizing their subfields with",
+            "                          comma separated rules: nfc, whitespace, punctuation, casefold[=TAG:TAG...]",
+            "  --threads N             number of threads building aggregates (default 1)",
+            "  --shards N              aggregate in N worker processes, assigning clusters by consistent hashing",
+            "  --shard-heap MB         maximum heap of each worker process",
+            "  --unsorted              group unsorted input on disk first; every record needs a cluster key",
+            "  --memory MB             heap used for grouping unsorted input (default 256)",
+            "  --temp-dir DIR          directory for temporary files (default java.io.tmpdir)",
+            "  --mapped                aggregate UTF-8 ISO 2709 files in memory without decoding them;",
+            "                          needs -i and -o files and iso2709 formats, ignores --strategy and --threads",
+            "  --build-numbers FILE    continue the build numbers saved in FILE and save the next one at the end",
+            "  --deterministic-ids     derive the build numbers from the cluster keys",
+            "  --fingerprints          write a fingerprint index of the groups next to the output (with --mapped)",
+            "  --reuse FILE            copy the aggregates of unchanged groups from the previous output FILE,",
+            "                          which needs a fingerprint index; implies --fingerprints",
+            "  --verify-fingerprints   also compare SHA-256 digests of the groups before reusing an aggregate",
+            "  --checkpoint FILE       take checkpoints of the progress in FILE (needs -o and sorted input)",
+            "  --checkpoint-interval N aggregates between two checkpoints (default 10000)",
+            "  --checkpoint-sync       force the output and the checkpoints to the disk at each checkpoint",
+            "  --resume                continue after the last checkpoint in the --checkpoint FILE",
+            "  --provenance-index      write an index of source record ids (035) to aggregates next to the output",
+            "  --encoder-threads N     encode the aggregates on N threads, writing them in order",
+            "  --output-buffer N       aggregates that may wait to be encoded and written (default 1024)",
+            "  --metrics               publish builder metrics over JMX and print them at the end;",
+            "                          not supported with --mapped",
+            "  -q, --quiet             do not report progress",
+            "  -h, --help              print this help");
+
+    public static void main(String[] args) {
+        System.exit(new Main().run(args, System.in, System.out, System.err));
+    }
+
+    /** @return The exit code: <i>0</i> on success, <i>1</i> on failure and <i>2</i> on invalid arguments. */
+    int run(String[] args, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            stderr.println(e.getMessage());
+            stderr.println(USAGE);
+            return 2;
+        }
+
+        if (options.help) {
+            stdout.println(USAGE);
+            return 0;
+        }
+
+        try (ClusterKeyMapping mapping = options.clusterMap != null
+                ? ClusterKeyMapping.open(Paths.get(options.clusterMap), Paths.get(options.tempDirectory))
+                : null) {
+            PipelineStatistics statistics = options.mapped
+                    ? runMapped(options, mapping, stderr)
+                    : runStreaming(options, mapping, stdin, stdout, stderr);
+            if (!options.quiet) {
+                stderr.println(statistics);
+            }
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            stderr.println("Aggregation failed: " + e);
+            return 1;
+        }
+    }
+
+    /** @param mapping The <code>--cluster-map</code> or <code>null</code>. */
+    private static PipelineStatistics runStreaming(Options options, ClusterKeyMapping mapping, InputStream stdin,
+                                                   PrintStream stdout, PrintStream stderr) throws IOException {
+        Function<Record,String> clusterKey = mapping != null
+                ? ClusterKeys.mapping(mapping::get)
+                : ClusterKeys.field(options.clusterField);
+
+        AggregationMetrics metrics = options.metrics ? new AggregationMetrics() : null;
+        AggregationPipeline pipeline = new AggregationPipeline(() -> newBuilder(options, metrics));
+        pipeline.setParallelism(options.threads);
+        BuildNumberAllocator buildNumbers = newBuildNumberAllocator(options);
+        CheckpointJournal.Checkpoint resumed = options.resume
+                ? CheckpointJournal.last(Paths.get(options.checkpoint))
+                : null;
+        if (resumed != null) {
+            // Continue the numbers where the interrupted run stopped
+            long next = buildNumbers == null
+                    ? resumed.nextBuildNumber
+                    : Math.max(resumed.nextBuildNumber, buildNumbers.peek());
+            buildNumbers = new BuildNumberAllocator(next, BuildNumberAllocator.DEFAULT_BLOCK_SIZE,
+                    options.deterministicIds);
+            if (!options.quiet) {
+                stderr.println("Resuming: " + resumed);
+            }
+        }
+        pipeline.setBuildNumberAllocator(buildNumbers);
+        if (!options.quiet) {
+            pipeline.setProgressListener(stderr::println);
+        }
+
+        PipelineStatistics statistics;
+        JmxExporter exporter = metrics != null ? JmxExporter.register(metrics, "cli") : null;
+        try (InputStream in = openInput(options.input, stdin);
+             FileOutputStream file = options.checkpoint != null ? openOutput(options.output, resumed) : null;
+             OutputStream out = file != null
+                     ? new BufferedOutputStream(file, 1 << 16)
+                     : openOutput(options.output, stdout)) {
+            MarcReader reader = newReader(options.inputFormat, in);
+            AsyncRecordSink buffer = options.encoderThreads > 0
+                    ? newAsyncSink(options.outputFormat, out, options.encoderThreads, options.outputBuffer)
+                    : null;
+            RecordSink sink = buffer != null
+                    ? buffer
+                    : newSink(options.outputFormat, out, resumed != null ? resumed.outputPosition : 0);
+            CheckpointJournal journal = null;
+            if (options.checkpoint != null) {
+                if (resumed != null) {
+                    skip(reader, clusterKey, resumed);
+                }
+                RecordSink output = sink;
+                journal = new CheckpointJournal(Paths.get(options.checkpoint), resumed, () -> {
+                    output.flush();
+                    if (options.checkpointSync) {
+                        file.getFD().sync();
+                    }
+                }, options.checkpointInterval, options.checkpointSync);
+                pipeline.setCheckpointJournal(journal);
+            }
+            ProvenanceIndexWriter provenance = null;
+            if (options.provenanceIndex) {
+                provenance = new ProvenanceIndexWriter(Paths.get(options.output + ".provenance"),
+                        Paths.get(options.tempDirectory));
+                sink = new ProvenanceRecorder(sink, provenance);
+            }
+            JmxExporter bufferExporter = buffer != null && metrics != null
+                    ? JmxExporter.register(buffer, "cli")
+                    : null;
+            boolean completed = false;
+            try {
+                if (options.shards > 0) {
+                    statistics = runSharded(options, reader, clusterKey, sink, buildNumbers, stderr);
+                } else if (options.unsorted) {
+                    long memoryBudget = options.memory * 1024L * 1024L;
+                    try (ExternalGroupSorter sorter = new ExternalGroupSorter(Paths.get(options.tempDirectory),
+                            memoryBudget)) {
+                        statistics = pipeline.runUnsorted(reader, clusterKey, sorter, sink);
+                    }
+                } else {
+                    statistics = pipeline.run(reader, clusterKey, sink);
+                }
+                // The last checkpoint ends before the end of the output, which a resumed run writes again
+                if (journal != null) {
+                    journal.close();
+                }
+                sink.close();
+                completed = true;
+            } finally {
+                if (bufferExporter != null) {
+                    bufferExporter.close();
+                }
+                // Without a complete output there is no index, only its temporary files to delete
+                if (!completed && provenance != null) {
+                    provenance.abort();
+                }
+            }
+            if (buffer != null && metrics != null) {
+                stderr.println(buffer);
+            }
+        } finally {
+            if (exporter != null) {
+                exporter.close();
+            }
+        }
+
+        if (options.buildNumbers != null) {
+            buildNumbers.save(Paths.get(options.buildNumbers));
+        }
+        if (metrics != null) {
+            stderr.println(metrics);
+        }
+        return statistics;
+    }
+
+    /** Aggregates the groups in worker processes, see {@link ShardCoordinator}. */
+    private static PipelineStatistics runSharded(Options options, MarcReader reader, Function<Record,String> clusterKey,
+                                                 RecordSink sink, BuildNumberAllocator buildNumbers,
+                                                 PrintStream stderr) throws IOException {
+        List<String> jvmOptions = options.shardHeap > 0
+                ? Collections.singletonList("-Xmx" + options.shardHeap + "m")
+                : Collections.emptyList();
+        ShardCoordinator coordinator = new ShardCoordinator(new ProcessShardLauncher(jvmOptions), options.shards);
+        coordinator.setBuildNumberPrefix(options.prefix);
+        coordinator.setBuildNumberSuffix(options.suffix);
+        coordinator.setCatalogingAgency(options.agency);
+        coordinator.setMergeStrategy(options.strategy);
+        coordinator.setNormalization(options.normalization);
+        coordinator.setBuildNumberAllocator(buildNumbers);
+        if (!options.quiet) {
+            coordinator.setProgressListener(stderr::println);
+        }
+
+        if (!options.unsorted) {
+            return coordinator.run(RecordGroups.keyed(AggregationPipeline.records(reader), clusterKey), sink);
+        }
+        long memoryBudget = options.memory * 1024L * 1024L;
+        try (ExternalGroupSorter sorter = new ExternalGroupSorter(Paths.get(options.tempDirectory), memoryBudget)) {
+            while (reader.hasNext()) {
+                Record record = reader.next();
+                sorter.add(clusterKey.apply(record), record);
+            }
+            return coordinator.run(sorter.keyedGroups(), sink);
+        }
+    }
+
+    /** Aggregates ISO 2709 files without decoding them, see {@link SliceAggregator}. */
+    private static PipelineStatistics runMapped(Options options, ClusterKeyMapping mapping, PrintStream stderr)
+            throws IOException {
+        Function<Iso2709Record,String> clusterKey = mapping != null
+                ? SliceAggregationPipeline.clusterKey(mapping::get)
+                : SliceAggregationPipeline.clusterKey(options.clusterField);
+
+        SliceAggregator aggregator = new SliceAggregator();
+        aggregator.setBuildNumberPrefix(options.prefix);
+        aggregator.setBuildNumberSuffix(options.suffix);
+        aggregator.setCatalogingAgency(options.agency);
+        BuildNumberAllocator buildNumbers = newBuildNumberAllocator(options);
+        aggregator.setBuildNumberAllocator(buildNumbers);
+
+        SliceAggregationPipeline pipeline = new SliceAggregationPipeline(aggregator);
+        if (!options.quiet) {
+            pipeline.setProgressListener(stderr::println);
+        }
+
+        FingerprintCache cache = null;
+        if (options.fingerprints) {
+            Path previousOutput = options.reuse != null ? Paths.get(options.reuse) : null;
+            cache = new FingerprintCache(previousOutput, Paths.get(options.output), options.verifyFingerprints);
+            pipeline.setFingerprintCache(cache);
+        }
+
+        PipelineStatistics statistics;
+        try (MappedIso2709Reader reader = new MappedIso2709Reader(Paths.get(options.input));
+             MappedIso2709Writer writer = new MappedIso2709Writer(Paths.get(options.output))) {
+            statistics = pipeline.run(reader, clusterKey, writer);
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+
+        if (options.buildNumbers != null) {
+            buildNumbers.save(Paths.get(options.buildNumbers));
+        }
+        if (cache != null && options.reuse != null && !options.quiet) {
+            stderr.println(cache);
+        }
+        return statistics;
+    }
+
+    /** The allocator of --build-numbers and --deterministic-ids, or <code>null</code> to count from 1. */
+    private static BuildNumberAllocator newBuildNumberAllocator(Options options) throws IOException {
+        if (options.buildNumbers != null) {
+            return BuildNumberAllocator.resume(Paths.get(options.buildNumbers),
+                    BuildNumberAllocator.DEFAULT_BLOCK_SIZE, options.deterministicIds);
+        }
+        if (options.deterministicIds) {
+            return new BuildNumberAllocator(1, BuildNumberAllocator.DEFAULT_BLOCK_SIZE, true);
+        }
+        return null;
+    }
+
+    private static AggregatedRecordBuilderImpl newBuilder(Options options, AggregationMetrics metrics) {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(options.strategy, options.normalizer);
+        if (metrics != null) {
+            builder.setMetricsSink(metrics);
+        }
+        builder.setBuildNumberPrefix(options.prefix);
+        builder.setBuildNumberSuffix(options.suffix);
+        builder.setCatalogingAgency(options.agency);
+        return builder;
+    }
+
+    private static InputStream openInput(String input, InputStream stdin) throws IOException {
+        InputStream in = input.equals("-") ? stdin : Files.newInputStream(Paths.get(input));
+        return new BufferedInputStream(in, 1 << 16);
+    }
+
+    private static OutputStream openOutput(String output, PrintStream stdout) throws IOException {
+        OutputStream out = output.equals("-") ? stdout : Files.newOutputStream(Paths.get(output));
+        return new BufferedOutputStream(out, 1 << 16);
+    }
+
+    /** Opens the output of a run with checkpoints, truncated to the position of the checkpoint if it is resumed. */
+    private static FileOutputStream openOutput(String output, CheckpointJournal.Checkpoint resumed)
+            throws IOException {
+        FileOutputStream file = new FileOutputStream(output, resumed != null);
+        if (resumed != null) {
+            if (file.getChannel().size() < resumed.outputPosition) {
+                file.close();
+                throw new IOException("The output is shorter than at the checkpoint: " + output);
+            }
+            file.getChannel().truncate(resumed.outputPosition);
+        }
+        return file;
+    }
+
+    /**
+     * Skips the records that were aggregated before the checkpoint and checks that the last of them has the cluster key
+     * of the checkpoint, which fails if the input changed since the interrupted run.
+     */
+    private static void skip(MarcReader reader, Function<Record,String> clusterKey,
+                             CheckpointJournal.Checkpoint resumed) throws IOException {
+        Record last = null;
+        for (long i = 0; i < resumed.records; i++) {
+            if (!reader.hasNext()) {
+                throw new IOException("The input ends before the checkpoint after " + resumed.records + " records");
+            }
+            last = reader.next();
+        }
+        if (last != null && !Objects.equals(clusterKey.apply(last), resumed.clusterKey)) {
+            throw new IOException("The input does not match the checkpoint: record " + resumed.records
+                    + " has the cluster key " + clusterKey.apply(last) + " instead of " + resumed.clusterKey);
+        }
+    }
+
+    static MarcReader newReader(String format, InputStream in) {
+        return format.equals("xml") ? new MarcXmlReader(in) : new MarcStreamReader(in);
+    }
+
+    /**
+     * Encodes like <code>MarcXmlWriter</code> or <code>MarcStreamWriter</code> with UTF-8 and oversize records.
+     * @param position Bytes already in the output, written by an interrupted run.
+     */
+    static RecordSink newSink(String format, OutputStream out, long position) {
+        if (format.equals("xml")) {
+            return new MarcXmlEncoder(out, position);
+        }
+        return new Iso2709Encoder(out, true, position);
+    }
+
+    /** Encodes like {@link #newSink(String, OutputStream, long)} on several threads. */
+    static AsyncRecordSink newAsyncSink(String format, OutputStream out, int encoderThreads, int capacity) {
+        if (format.equals("xml")) {
+            return AsyncRecordSink.marcXml(out, encoderThreads, capacity);
+        }
+        return AsyncRecordSink.iso2709(out, true, encoderThreads, capacity);
+    }
+
+    static class Options {
+        String clusterField;
+        String clusterMap;
+        String input = "-";
+        String output = "-";
+        String inputFormat = "xml";
+        String outputFormat = "xml";
+        String prefix = "";
+        String suffix = "";
+        String agency = "";
+        MergeStrategy strategy = MergeStrategy.INCREMENTAL;
+        SubfieldNormalizer normalizer = SubfieldNormalizer.NONE;
+        String normalization;
+        int shards;
+        int shardHeap;
+        int threads = 1;
+        int encoderThreads;
+        int outputBuffer = AsyncRecordSink.DEFAULT_CAPACITY;
+        boolean unsorted;
+        boolean mapped;
+        int memory = 256;
+        String tempDirectory = System.getProperty("java.io.tmpdir");
+        String buildNumbers;
+        boolean deterministicIds;
+        boolean fingerprints;
+        String reuse;
+        boolean verifyFingerprints;
+        boolean provenanceIndex;
+        String checkpoint;
+        int checkpointInterval = CheckpointJournal.DEFAULT_INTERVAL;
+        boolean checkpointSync;
+        boolean resume;
+        boolean metrics;
+        boolean quiet;
+        boolean help;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--cluster-field": options.clusterField = value(args, ++i, arg); break;
+                    case "--cluster-map": options.clusterMap = value(args, ++i, arg); break;
+                    case "-i": case "--input": options.input = value(args, ++i, arg); break;
+                    case "-o": case "--output": options.output = value(args, ++i, arg); break;
+                    case "--input-format": options.inputFormat = format(value(args, ++i, arg)); break;
+                    case "--output-format": options.outputFormat = format(value(args, ++i, arg)); break;
+                    case "--prefix": options.prefix = value(args, ++i, arg); break;
+                    case "--suffix": options.suffix = value(args, ++i, arg); break;
+                    case "--agency": options.agency = value(args, ++i, arg); break;
+                    case "--strategy": options.strategy = strategy(value(args, ++i, arg)); break;
+                    case "--normalize":
+                        options.normalization = value(args, ++i, arg);
+                        options.normalizer = SubfieldNormalizer.parse(options.normalization);
+                        break;
+                    case "--threads": options.threads = positive(value(args, ++i, arg), arg); break;
+                    case "--shards": options.shards = positive(value(args, ++i, arg), arg); break;
+                    case "--shard-heap": options.shardHeap = positive(value(args, ++i, arg), arg); break;
+                    case "--unsorted": options.unsorted = true; break;
+                    case "--mapped": options.mapped = true; break;
+                    case "--memory": options.memory = positive(value(args, ++i, arg), arg); break;
+                    case "--temp-dir": options.tempDirectory = value(args, ++i, arg); break;
+                    case "--build-numbers": options.buildNumbers = value(args, ++i, arg); break;
+                    case "--deterministic-ids": options.deterministicIds = true; break;
+                    case "--fingerprints": options.fingerprints = true; break;
+                    case "--reuse": options.reuse = value(args, ++i, arg); options.fingerprints = true; break;
+                    case "--verify-fingerprints": options.verifyFingerprints = true; break;
+                    case "--provenance-index": options.provenanceIndex = true; break;
+                    case "--checkpoint": options.checkpoint = value(args, ++i, arg); break;
+                    case "--checkpoint-interval":
+                        options.checkpointInterval = positive(value(args, ++i, arg), arg);
+                        break;
+                    case "--checkpoint-sync": options.checkpointSync = true; break;
+                    case "--resume": options.resume = true; break;
+                    case "--encoder-threads": options.encoderThreads = positive(value(args, ++i, arg), arg); break;
+                    case "--output-buffer": options.outputBuffer = positive(value(args, ++i, arg), arg); break;
+                    case "--metrics": options.metrics = true; break;
+                    case "-q": case "--quiet": options.quiet = true; break;
+                    case "-h": case "--help": options.help = true; break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+
+            if (!options.help && (options.clusterField == null) == (options.clusterMap == null)) {
+                throw new IllegalArgumentException("Expected either --cluster-field or --cluster-map");
+            }
+            if (options.mapped && (options.input.equals("-") || options.output.equals("-")
+                    || !options.inputFormat.equals("iso2709") || !options.outputFormat.equals("iso2709") || options.unsorted)) {
+                throw new IllegalArgumentException("--mapped expects -i and -o files in iso2709 format and no --unsorted");
+            }
+            if ((options.fingerprints || options.verifyFingerprints) && !options.mapped) {
+                throw new IllegalArgumentException("--fingerprints, --reuse and --verify-fingerprints need --mapped");
+            }
+            if (options.mapped && options.normalizer != SubfieldNormalizer.NONE) {
+                throw new IllegalArgumentException("--normalize is not supported with --mapped");
+            }
+            if (options.shards > 0 && (options.mapped || options.metrics || options.threads > 1)) {
+                throw new IllegalArgumentException("--shards cannot be combined with --mapped, --metrics or --threads");
+            }
+            if (options.provenanceIndex && (options.mapped || options.output.equals("-"))) {
+                throw new IllegalArgumentException("--provenance-index needs an -o file and no --mapped");
+            }
+            if (options.resume && options.checkpoint == null) {
+                throw new IllegalArgumentException("--resume needs --checkpoint");
+            }
+            if (options.checkpoint != null && (options.mapped || options.output.equals("-") || options.unsorted
+                    || options.shards > 0 || options.provenanceIndex)) {
+                throw new IllegalArgumentException("--checkpoint needs an -o file and cannot be combined with "
+                        + "--mapped, --unsorted, --shards or --provenance-index");
+            }
+            if (options.encoderThreads > 0 && (options.mapped || options.checkpoint != null
+                    || options.provenanceIndex)) {
+                throw new IllegalArgumentException("--encoder-threads cannot be combined with --mapped, --checkpoint "
+                        + "or --provenance-index, which need the position of each aggregate in the output");
+            }
+            if (options.mapped && options.metrics) {
+                throw new IllegalArgumentException("--metrics is not supported with --mapped");
+            }
+            return options;
+        }
+
+        private static String value(String[] args, int i, String option) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + option);
+            }
+            return args[i];
+        }
+
+        private static String format(String format) {
+            if (!format.equals("xml") && !format.equals("iso2709")) {
+                throw new IllegalArgumentException("Unknown format " + format);
+            }
+            return format;
+        }
+
+        private static MergeStrategy strategy(String strategy) {
+            try {
+                return MergeStrategy.valueOf(strategy.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+            }
+        }
+
+        private static int positive(String value, String option) {
+            try {
+                int n = Integer.parseInt(value);
+                if (n > 0) {
+                    return n;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException(option + " expects a positive number, but was " + value);
+        }
+    }
+}
@@ -7,8 +7,15 @@ import java.util.Objects;
  *
  * See also <a href="https://www.loc.gov/marc/bibliographic/ecbdcntf.html">Appendix A - Control Subfields</a> subsection
  * <i>$8 - Field link and sequence number</i>.
+ *
+ * <P> Builders parse field links with {@link #parse(CharSequence, FieldLinkTypes)}, which maps the type to an id of
+ * their own {@link FieldLinkTypes} instead of creating field links.
  */
 public class FieldLink implements Comparable<FieldLink> {
+
+    /** Returned by {@link #parse(CharSequence, FieldLinkTypes)} for a value that is not a field link. */
+    public static final long INVALID = -1L;
+
     public final int number;
     public final String type;
 
@@ -29,23 +36,99 @@ public class FieldLink implements Comparable<FieldLink> {
         return new FieldLink(number + addend, type);
     }
 
+    /**
+     * Parses a field link.
+     * @throws IllegalArgumentException If the value is not a field link.
+     */
     public static FieldLink of(String s) {
-        String[] token = s.split("\\\\", 2);
-        String linking_number = token[0];
-
-        int number;
-        if (linking_number.contains(".")) {
-            String linking_number_without_sequence_number = linking_number.split("\\.", 2)[0];
-            number = Integer.parseInt(linking_number_without_sequence_number);
-        } else {
-            number = Integer.parseInt(linking_number);
+        long scanned = scan(s);
+        if (scanned == INVALID) {
+            throw new IllegalArgumentException("Not a field link: " + s);
         }
+        return new FieldLink(numberOf(scanned), s.substring(typeIdOf(scanned)));
+    }
 
-        String type = token[1];
-        return new FieldLink(number, type);
+    /**
+     * Parses a field link (<code>number[.sequence]\type</code>) in a single pass without allocating memory, except
+     * for copying a type that is new to the table.
+     *
+     * <P> The sequence number is ignored, the type is everything after the first backslash.
+     *
+     * @param types The types of the builder, which registers the type if it is new.
+     * @return The linking number and the type id packed into a long, see {@link #numberOf(long)} and
+     * {@link #typeIdOf(long)}, or {@link #INVALID} if the value is not a field link.
+     */
+    public static long parse(CharSequence s, FieldLinkTypes types) {
+        long scanned = scan(s);
+        if (scanned == INVALID) {
+            return INVALID;
+        }
+        return pack(numberOf(scanned), types.idOf(s, typeIdOf(scanned), s.length()));
+    }
+
+    /** @return The linking number and the start of the type packed like a parsed field link, or {@link #INVALID}. */
+    private static long scan(CharSequence s) {
+        if (s == null) {
+            return INVALID;
+        }
+
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        int digitsStart = i;
+        long number = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            number = number * 10 + (c - '0');
+            if (number > (long) Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+        if (i == digitsStart) {
+            return INVALID;
+        }
+        number = negative ? -number : number;
+        if (number > Integer.MAX_VALUE) {
+            return INVALID;
+        }
+
+        if (i < length && s.charAt(i) == '.') {
+            // Skip the sequence number
+            while (i < length && s.charAt(i) != '\\') {
+                i++;
+            }
+        }
+        if (i == length || s.charAt(i) != '\\') {
+            return INVALID;
+        }
+        return pack((int) number, i + 1);
+    }
+
+    public static long pack(int number, int typeId) {
+        return ((long) number << 32) | (typeId & 0xFFFFFFFFL);
+    }
+
+    public static int numberOf(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int typeIdOf(long packed) {
+        return (int) packed;
     }
 
     public String asString() {
+        return asString(number, type);
+    }
+
+    public static String asString(int number, String type) {
         return number + "\\" + type;
     }
 
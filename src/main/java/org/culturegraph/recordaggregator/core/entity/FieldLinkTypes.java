@@ -0,0 +1,124 @@
+package org.culturegraph.recordaggregator.core.entity;
+
+import java.util.Arrays;
+
+/**
+ * Maps the types of field links (the part after the backslash, e.g. <i>p</i> in <code>1\p</code>) to small, dense
+ * ids.
+ *
+ * <P> A table belongs to one builder and is cleared with the group it numbers, so the ids, and with them the result
+ * of {@link FieldLink#parse(CharSequence, FieldLinkTypes)}, never depend on what was parsed before. Lookups do not
+ * allocate; a new type is copied once and the arrays grow amortized. The provenance type <i>p</i> always has the id
+ * {@link #PROVENANCE}. A table is not thread-safe.
+ */
+public final class FieldLinkTypes {
+
+    /** The id of the provenance type <i>p</i> in every table */
+    public static final int PROVENANCE = 0;
+
+    private static final String PROVENANCE_TYPE = "p";
+
+    private String[] names;
+    /** Open addressing table of ids, -1 marks an empty slot. */
+    private int[] slots;
+    private int size;
+
+    public FieldLinkTypes() {
+        this.names = new String[8];
+        this.slots = newSlots(16);
+        clear();
+    }
+
+    /** Returns the id of a type, registering the type if it is unknown. */
+    public int idOf(String type) {
+        return idOf(type, 0, type.length());
+    }
+
+    /** Returns the id of the type <code>cs[start, end)</code>, see {@link #idOf(String)}. */
+    public int idOf(CharSequence cs, int start, int end) {
+        int mask = slots.length - 1;
+        int i = hash(cs, start, end) & mask;
+        for (; slots[i] >= 0; i = (i + 1) & mask) {
+            if (matches(names[slots[i]], cs, start, end)) {
+                return slots[i];
+            }
+        }
+        return register(cs.subSequence(start, end).toString());
+    }
+
+    /** Returns the type of an id. */
+    public String nameOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown field link type id " + id);
+        }
+        return names[id];
+    }
+
+    /** Returns the number of registered types; all ids are smaller than this number. */
+    public int size() {
+        return size;
+    }
+
+    /** Forgets all types but the provenance type. */
+    public void clear() {
+        if (size != 1) {
+            Arrays.fill(names, null);
+            Arrays.fill(slots, -1);
+            size = 0;
+            register(PROVENANCE_TYPE);
+        }
+    }
+
+    private int register(String type) {
+        int id = size;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, 2 * id);
+        }
+        names[id] = type;
+        size = id + 1;
+        if (size * 2 > slots.length) {
+            slots = newSlots(slots.length * 2);
+            for (int i = 0; i < size; i++) {
+                insert(slots, names[i], i);
+            }
+        } else {
+            insert(slots, type, id);
+        }
+        return id;
+    }
+
+    private static void insert(int[] slots, String type, int id) {
+        int mask = slots.length - 1;
+        int i = hash(type, 0, type.length()) & mask;
+        while (slots[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id;
+    }
+
+    private static boolean matches(String name, CharSequence cs, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != cs.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence cs, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + cs.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+}
@@ -0,0 +1,170 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reuses the aggregates of a previous run for groups whose records did not change.
+ *
+ * <P> Every run writes a fingerprint index next to its output (see {@link #indexOf(Path)}) that maps a stable hash
+ * of the bytes of each group's records, in their order, to the offset and length of its aggregate in the output.
+ * When the hash of a group is found in the index of the previous run, the aggregate is copied from the previous
+ * output instead of being built; only its control number (<i>001</i>) is replaced, since build numbers follow the
+ * order of the groups. A copied aggregate is built anyway if its new control number has a different length.
+ *
+ * <P> Two different groups with the same 64 bit hash would receive the wrong aggregate. With verification, a
+ * SHA-256 digest of the group is stored as well and has to match; an index written without digests is then not used.
+ * The previous index is also ignored if it was written with a different cataloging agency or by a version of the
+ * aggregator that builds different aggregates.
+ */
+public class FingerprintCache implements Closeable {
+
+    static final String INDEX_SUFFIX = ".fingerprints";
+
+    private final Path output;
+    private final boolean verify;
+    private final GroupFingerprint fingerprint;
+    private final FileChannel previousOutput;
+    private final FingerprintIndex previousIndex;
+
+    private FingerprintIndex.Writer index;
+    private boolean reuse;
+    private ByteBuffer copy;
+    private long hits;
+    private long misses;
+    private long collisions;
+
+    /**
+     * @param previousOutput Output of the previous run whose index is read, or <code>null</code> to only write the
+     *                       index of this run.
+     * @param output Output of this run, must not be the previous output.
+     * @param verify Whether groups are verified with a SHA-256 digest.
+     */
+    public FingerprintCache(Path previousOutput, Path output, boolean verify) throws IOException {
+        if (previousOutput != null && Files.exists(output) && Files.isSameFile(previousOutput, output)) {
+            throw new IllegalArgumentException("The previous output can not be overwritten while it is reused");
+        }
+        this.output = output;
+        this.verify = verify;
+        this.fingerprint = new GroupFingerprint(verify);
+        this.previousIndex = previousOutput == null ? null : FingerprintIndex.read(indexOf(previousOutput));
+        this.previousOutput = previousIndex == null ? null : FileChannel.open(previousOutput, StandardOpenOption.READ);
+        this.copy = ByteBuffer.allocate(1 << 12);
+    }
+
+    /** The fingerprint index of an output file, a file with the additional suffix <i>.fingerprints</i>. */
+    public static Path indexOf(Path output) {
+        return Paths.get(output.toString() + INDEX_SUFFIX);
+    }
+
+    /** Groups whose aggregate was copied from the previous output. */
+    public long hits() {
+        return hits;
+    }
+
+    /** Groups whose aggregate was built. */
+    public long misses() {
+        return misses;
+    }
+
+    /** Groups whose hash was found, but whose digest did not match. */
+    public long collisions() {
+        return collisions;
+    }
+
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Starts the run with the settings of the aggregator and decides whether the previous index can be used. */
+    void begin(SliceAggregator aggregator) throws IOException {
+        long settings = aggregator.settingsFingerprint();
+        index = new FingerprintIndex.Writer(indexOf(output), settings, verify ? GroupFingerprint.DIGEST_LENGTH : 0);
+        reuse = previousIndex != null && previousIndex.settings() == settings
+                && (!verify || previousIndex.hasDigests());
+    }
+
+    /**
+     * Fingerprints a group and looks up its aggregate in the previous output.
+     * @return The previous aggregate with the new control number, valid until the next lookup, or <code>null</code>
+     *         if the group has to be aggregated.
+     */
+    ByteBuffer lookup(List<Iso2709Record> group, byte[] controlNumber) throws IOException {
+        fingerprint.compute(group);
+        ByteBuffer aggregate = reuse ? find(controlNumber) : null;
+        if (aggregate == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return aggregate;
+    }
+
+    /** Adds the aggregate of the last looked up group to the index of this run. */
+    void written(long offset, int length) throws IOException {
+        index.add(fingerprint.hash(), offset, length, fingerprint.digest());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (index != null) {
+            index.close();
+        }
+        if (previousOutput != null) {
+            previousOutput.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Fingerprint cache: %d hits, %d misses, %.1f %% hit rate%s",
+                hits, misses, 100 * hitRate(), verify ? ", " + collisions + " collisions" : "");
+    }
+
+    private ByteBuffer find(byte[] controlNumber) throws IOException {
+        int entry = previousIndex.find(fingerprint.hash());
+        if (entry < 0) {
+            return null;
+        }
+        if (verify && !previousIndex.digestEquals(entry, fingerprint.digest())) {
+            collisions++;
+            return null;
+        }
+
+        int length = previousIndex.length(entry);
+        if (copy.capacity() < length) {
+            copy = ByteBuffer.allocate(Math.max(length, copy.capacity() * 2));
+        }
+        ((Buffer) copy).clear();
+        ((Buffer) copy).limit(length);
+        long position = previousIndex.offset(entry);
+        while (copy.hasRemaining()) {
+            if (previousOutput.read(copy, position + copy.position()) < 0) {
+                throw new IOException("Previous output ends before the aggregate at " + position);
+            }
+        }
+        ((Buffer) copy).flip();
+
+        // The aggregator writes the control number as the first field
+        Iso2709Record aggregate = new Iso2709Record(copy);
+        if (aggregate.fieldCount() == 0 || !aggregate.tagEquals(0, "001")
+                || aggregate.fieldLength(0) != controlNumber.length) {
+            return null;
+        }
+        int start = aggregate.fieldStart(0);
+        for (int i = 0; i < controlNumber.length; i++) {
+            copy.put(start + i, controlNumber[i]);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,180 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The fingerprints of the groups of one run and the position of their aggregates in its output file.
+ *
+ * <P> The file starts with a header of a magic number, the format version, the fingerprint of the aggregator
+ * settings and the digest length (<i>0</i> or <i>32</i>). Fixed length entries of group hash, aggregate offset,
+ * aggregate length and optional digest follow in output order. The entries are loaded into arrays with an open
+ * addressing hash index; a hash that occurs more than once resolves to its first entry.
+ */
+final class FingerprintIndex {
+
+    static final int MAGIC = 0x43474650;
+    static final int VERSION = 1;
+
+    private static final int NONE = -1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long settings;
+    private final int digestLength;
+    private final long[] hashes;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final byte[] digests;
+    private final int size;
+    private final int[] slots;
+
+    private FingerprintIndex(long settings, int digestLength, long[] hashes, long[] offsets, int[] lengths,
+                             byte[] digests, int size) {
+        this.settings = settings;
+        this.digestLength = digestLength;
+        this.hashes = hashes;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.digests = digests;
+        this.size = size;
+
+        this.slots = new int[Integer.highestOneBit(Math.max(size, 1)) << 2];
+        Arrays.fill(slots, NONE);
+        for (int i = 0; i < size; i++) {
+            if (find(hashes[i]) == NONE) {
+                int slot = slotOf(hashes[i]);
+                while (slots[slot] != NONE) {
+                    slot = (slot + 1) & (slots.length - 1);
+                }
+                slots[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * Reads an index, or returns <code>null</code> if the file does not exist, is not an index of this version or has a
+     * digest length other than <i>0</i> or <i>32</i>.
+     */
+    static FingerprintIndex read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long settings = in.readLong();
+            int digestLength = in.readInt();
+            if (digestLength != 0 && digestLength != GroupFingerprint.DIGEST_LENGTH) {
+                return null;
+            }
+            int entryLength = 20 + digestLength;
+            long entries = (Files.size(path) - 20) / entryLength;
+            // The hash index takes up to four slots per entry, the digests digestLength bytes
+            if (entries > Integer.MAX_VALUE / 4 || entries > Integer.MAX_VALUE / Math.max(1, digestLength)) {
+                throw new IOException("Fingerprint index " + path + " has too many entries");
+            }
+
+            int size = (int) entries;
+            long[] hashes = new long[size];
+            long[] offsets = new long[size];
+            int[] lengths = new int[size];
+            byte[] digests = new byte[size * digestLength];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = in.readLong();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                in.readFully(digests, i * digestLength, digestLength);
+            }
+            return new FingerprintIndex(settings, digestLength, hashes, offsets, lengths, digests, size);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    long settings() {
+        return settings;
+    }
+
+    boolean hasDigests() {
+        return digestLength > 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return The entry of the hash or <i>-1</i>. */
+    int find(long hash) {
+        for (int slot = slotOf(hash); slots[slot] != NONE; slot = (slot + 1) & (slots.length - 1)) {
+            if (hashes[slots[slot]] == hash) {
+                return slots[slot];
+            }
+        }
+        return NONE;
+    }
+
+    long offset(int entry) {
+        return offsets[entry];
+    }
+
+    int length(int entry) {
+        return lengths[entry];
+    }
+
+    boolean digestEquals(int entry, byte[] digest) {
+        if (digest == null || digest.length != digestLength) {
+            return false;
+        }
+        int start = entry * digestLength;
+        for (int i = 0; i < digestLength; i++) {
+            if (digests[start + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOf(long hash) {
+        return (int) (hash ^ hash >>> 32) & (slots.length - 1);
+    }
+
+    /** Appends the entries of a run in output order. */
+    static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final int digestLength;
+
+        Writer(Path path, long settings, int digestLength) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+            this.digestLength = digestLength;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(settings);
+            out.writeInt(digestLength);
+        }
+
+        void add(long hash, long offset, int length, byte[] digest) throws IOException {
+            out.writeLong(hash);
+            out.writeLong(offset);
+            out.writeInt(length);
+            if (digestLength > 0) {
+                out.write(digest, 0, digestLength);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Fingerprints the bytes of a group of records in their order.
+ *
+ * <P> The 64 bit hash is stable across runs and platforms: it depends on nothing but the record bytes. Optionally a
+ * SHA-256 digest of the same bytes is computed, which makes an accidental collision practically impossible.
+ */
+final class GroupFingerprint {
+
+    static final int DIGEST_LENGTH = 32;
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final MessageDigest digest;
+    private final ByteBuffer lengthBytes;
+
+    private long hash;
+    private byte[] lastDigest;
+
+    /** @param withDigest Whether {@link #digest()} is computed besides the hash. */
+    GroupFingerprint(boolean withDigest) {
+        try {
+            this.digest = withDigest ? MessageDigest.getInstance("SHA-256") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        this.lengthBytes = ByteBuffer.allocate(4);
+    }
+
+    void compute(List<Iso2709Record> group) {
+        long h = PRIME_2 + group.size();
+        for (Iso2709Record record: group) {
+            h = Long.rotateLeft(h * PRIME_1, 31) ^ hash(record.buffer());
+        }
+        hash = mix(h);
+
+        if (digest != null) {
+            for (Iso2709Record record: group) {
+                lengthBytes.putInt(0, record.length());
+                digest.update(lengthBytes.array());
+                digest.update(record.buffer());
+            }
+            lastDigest = digest.digest();
+        }
+    }
+
+    long hash() {
+        return hash;
+    }
+
+    /** @return The SHA-256 digest of the last group or <code>null</code> if no digests are computed. */
+    byte[] digest() {
+        return lastDigest;
+    }
+
+    boolean hasDigest() {
+        return digest != null;
+    }
+
+    /** Hashes the bytes of a buffer at position 0 up to its limit. */
+    static long hash(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        long h = PRIME_2 ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = Long.rotateLeft(h ^ bytes.getLong(i) * PRIME_2, 27) * PRIME_1;
+        }
+        for (; i < length; i++) {
+            h = Long.rotateLeft(h ^ (bytes.get(i) & 0xFFL) * PRIME_1, 11) * PRIME_2;
+        }
+        return mix(h);
+    }
+
+    /** The finalizer of MurmurHash3, spreads every input bit over the whole hash. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,204 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.marc4j.MarcException;
+
+/**
+ * A view over the bytes of one ISO 2709 record: the leader, the directory and the field slices it points to.
+ *
+ * <P> Nothing is decoded or copied when the view is created, only the directory is validated. Field data is read
+ * straight from the underlying buffer, which is typically a window of a {@link MappedIso2709Reader}.
+ */
+public final class Iso2709Record {
+
+    static final int LEADER_LENGTH = 24;
+    static final int DIRECTORY_ENTRY_LENGTH = 12;
+    static final byte FIELD_TERMINATOR = 0x1E;
+    static final byte RECORD_TERMINATOR = 0x1D;
+    static final byte SUBFIELD_DELIMITER = 0x1F;
+
+    private final ByteBuffer buffer;
+    private final int baseAddress;
+    private final int fieldCount;
+
+    /** @param buffer The record, starting at index <i>0</i> and ending at its limit. */
+    Iso2709Record(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int length = buffer.limit();
+        if (length < LEADER_LENGTH + 1) {
+            throw new MarcException("Record is shorter than its leader");
+        }
+
+        this.baseAddress = digits(buffer, 12, 5);
+        int count = 0;
+        int entry = LEADER_LENGTH;
+        while (entry < length && buffer.get(entry) != FIELD_TERMINATOR) {
+            entry += DIRECTORY_ENTRY_LENGTH;
+            count++;
+        }
+        if (entry >= length) {
+            throw new MarcException("Directory of record is not terminated");
+        }
+        this.fieldCount = count;
+
+        for (int i = 0; i < fieldCount; i++) {
+            if (fieldStart(i) + fieldLength(i) > length) {
+                throw new MarcException("Field " + tag(i) + " exceeds the record");
+            }
+        }
+    }
+
+    /** Number of bytes of the record, including the record terminator. */
+    public int length() {
+        return buffer.limit();
+    }
+
+    public String leader() {
+        return decode(0, LEADER_LENGTH, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Leader position 09, <i>a</i> for UCS/Unicode records. */
+    public char getCharCodingScheme() {
+        return (char) (buffer.get(9) & 0xFF);
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public String tag(int field) {
+        return decode(entry(field), 3, StandardCharsets.ISO_8859_1);
+    }
+
+    /** The tag as an unsigned big-endian number of its three bytes, which orders like the tag itself. */
+    int packedTag(int field) {
+        int entry = entry(field);
+        return (buffer.get(entry) & 0xFF) << 16 | (buffer.get(entry + 1) & 0xFF) << 8 | buffer.get(entry + 2) & 0xFF;
+    }
+
+    /** Control fields have a tag that starts with <i>00</i>. */
+    public boolean isControlField(int field) {
+        int entry = entry(field);
+        return buffer.get(entry) == '0' && buffer.get(entry + 1) == '0';
+    }
+
+    /** Index of the first byte of a field within {@link #buffer()}. */
+    public int fieldStart(int field) {
+        return baseAddress + digits(buffer, entry(field) + 7, 5);
+    }
+
+    /** Number of bytes of a field without its field terminator. */
+    public int fieldLength(int field) {
+        int start = fieldStart(field);
+        int length = digits(buffer, entry(field) + 3, 4);
+        return length > 0 && buffer.get(start + length - 1) == FIELD_TERMINATOR ? length - 1 : length;
+    }
+
+    /** A slice of the field data without its field terminator. */
+    public ByteBuffer field(int field) {
+        return slice(fieldStart(field), fieldLength(field));
+    }
+
+    /** Decodes the first control field with the tag, or returns <code>null</code> if there is none. */
+    public String controlField(String tag) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (isControlField(i) && tagEquals(i, tag)) {
+                return decode(fieldStart(i), fieldLength(i), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the first subfield with the code of the first data field with the tag that has such a subfield, or
+     * returns <code>null</code> if there is none.
+     */
+    public String subfield(String tag, char code) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (isControlField(i) || !tagEquals(i, tag)) {
+                continue;
+            }
+            int start = fieldStart(i);
+            int end = start + fieldLength(i);
+            for (int p = nextSubfield(start + 2, end); p < end; p = nextSubfield(p + 1, end)) {
+                if (p + 1 < end && buffer.get(p + 1) == code) {
+                    int dataStart = p + 2;
+                    return decode(dataStart, nextSubfield(dataStart, end) - dataStart, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** The record bytes, starting at index <i>0</i>. */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    byte get(int index) {
+        return buffer.get(index);
+    }
+
+    /** Index of the next subfield delimiter at or after <code>from</code>, or <code>end</code>. */
+    int nextSubfield(int from, int end) {
+        for (int p = from; p < end; p++) {
+            if (buffer.get(p) == SUBFIELD_DELIMITER) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    boolean tagEquals(int field, String tag) {
+        int entry = entry(field);
+        return tag.length() == 3 && buffer.get(entry) == tag.charAt(0) && buffer.get(entry + 1) == tag.charAt(1)
+                && buffer.get(entry + 2) == tag.charAt(2);
+    }
+
+    private int entry(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + fieldCount);
+        }
+        return LEADER_LENGTH + field * DIRECTORY_ENTRY_LENGTH;
+    }
+
+    private ByteBuffer slice(int start, int length) {
+        return range(buffer, start, start + length).slice();
+    }
+
+    private String decode(int start, int length, Charset charset) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Duplicates a buffer and narrows it to a range.
+     * <P> Goes through {@link Buffer}, whose methods do not return the covariant types added in Java 9.
+     */
+    static ByteBuffer range(ByteBuffer buffer, int start, int end) {
+        ByteBuffer range = buffer.duplicate();
+        ((Buffer) range).limit(end);
+        ((Buffer) range).position(start);
+        return range;
+    }
+
+    /** Parses an unsigned decimal number of fixed width. */
+    static int digits(ByteBuffer buffer, int start, int width) {
+        int value = 0;
+        for (int i = start; i < start + width; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MarcException("Expected " + width + " digits at offset " + start);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.marc4j.MarcException;
+
+/**
+ * Reads ISO 2709 records from a file as {@link Iso2709Record} views over the memory mapped file.
+ *
+ * <P> The file is mapped in windows, a record that crosses the end of a window is read from a new window that
+ * starts at the record. A view stays valid after the reader moved on, it keeps its window mapped until the view is
+ * garbage collected.
+ *
+ * <P> The record length in the leader is trusted unless it is not a number or does not end at a record terminator,
+ * for example for records written with marc4j's oversize option. Such records are delimited by scanning for the
+ * record terminator. Line breaks between records are skipped.
+ */
+public class MappedIso2709Reader implements Iterator<Iso2709Record>, Closeable {
+
+    static final long DEFAULT_WINDOW_SIZE = 1L << 28;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedIso2709Reader(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedIso2709Reader(Path path, long windowSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.windowStart = 0;
+        this.position = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position < size) {
+            byte b = byteAt(position);
+            if (b != '\n' && b != '\r') {
+                return true;
+            }
+            position++;
+        }
+        return false;
+    }
+
+    @Override
+    public Iso2709Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        long start = position;
+        int length = recordLength(start);
+        map(start, length);
+
+        int offset = (int) (start - windowStart);
+        Iso2709Record record = new Iso2709Record(Iso2709Record.range(window, offset, offset + length).slice());
+        position = start + length;
+        return record;
+    }
+
+    /** Offset of the next record in the file. */
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private int recordLength(long start) {
+        if (size - start >= Iso2709Record.LEADER_LENGTH) {
+            map(start, Iso2709Record.LEADER_LENGTH);
+            int length = declaredLength((int) (start - windowStart));
+            if (length > Iso2709Record.LEADER_LENGTH && start + length <= size
+                    && byteAt(start + length - 1) == Iso2709Record.RECORD_TERMINATOR) {
+                return length;
+            }
+        }
+
+        for (long p = start; p < size; p++) {
+            if (byteAt(p) == Iso2709Record.RECORD_TERMINATOR) {
+                long length = p + 1 - start;
+                if (length > Integer.MAX_VALUE) {
+                    break;
+                }
+                return (int) length;
+            }
+        }
+        throw new MarcException("Record at offset " + start + " is not terminated");
+    }
+
+    private int declaredLength(int offset) {
+        int length = 0;
+        for (int i = offset; i < offset + 5; i++) {
+            int digit = window.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+    private byte byteAt(long p) {
+        if (window == null || p < windowStart || p >= windowStart + window.limit()) {
+            map(p, 1);
+        }
+        return window.get((int) (p - windowStart));
+    }
+
+    /** Maps a window that contains the range, unless the current window already does. */
+    private void map(long start, int length) {
+        if (window != null && start >= windowStart && start + length <= windowStart + window.limit()) {
+            return;
+        }
+        long mappedSize = Math.min(Math.max(windowSize, length), size - start);
+        mappedSize = Math.min(mappedSize, Integer.MAX_VALUE);
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, mappedSize);
+            windowStart = start;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
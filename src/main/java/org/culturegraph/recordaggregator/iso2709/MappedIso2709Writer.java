@@ -0,0 +1,66 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes encoded records into a memory mapped file.
+ *
+ * <P> The file is mapped in chunks that extend it as needed and truncated to the written bytes on close.
+ */
+public class MappedIso2709Writer implements Closeable {
+
+    static final long DEFAULT_CHUNK_SIZE = 1L << 26;
+
+    private final FileChannel channel;
+    private final long chunkSize;
+
+    private MappedByteBuffer chunk;
+    private long position;
+
+    public MappedIso2709Writer(Path path) throws IOException {
+        this(path, DEFAULT_CHUNK_SIZE);
+    }
+
+    MappedIso2709Writer(Path path, long chunkSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunkSize = chunkSize;
+        this.position = 0;
+    }
+
+    /** Writes the remaining bytes of the buffer and advances its position. */
+    public void write(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkSize);
+            }
+            int n = Math.min(record.remaining(), chunk.remaining());
+            int start = record.position();
+            chunk.put(Iso2709Record.range(record, start, start + n));
+            ((Buffer) record).position(start + n);
+            position += n;
+        }
+    }
+
+    /** Number of bytes written so far. */
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunk != null) {
+            chunk.force();
+            chunk = null;
+        }
+        channel.truncate(position);
+        channel.close();
+    }
+}
@@ -0,0 +1,136 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.culturegraph.recordaggregator.pipeline.PipelineStatistics;
+
+/**
+ * Aggregates a memory mapped ISO 2709 file of records grouped by cluster key into a memory mapped output file.
+ *
+ * <P> The counterpart of {@link org.culturegraph.recordaggregator.pipeline.AggregationPipeline} for
+ * {@link SliceAggregator}: records with equal adjacent cluster keys form a group, a record without a cluster key forms
+ * a group of its own. Runs on the calling thread.
+ */
+public class SliceAggregationPipeline {
+
+    private static final long PROGRESS_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final SliceAggregator aggregator;
+    private Consumer<PipelineStatistics> progressListener;
+    private FingerprintCache fingerprintCache;
+
+    public SliceAggregationPipeline(SliceAggregator aggregator) {
+        this.aggregator = aggregator;
+        this.progressListener = statistics -> {};
+    }
+
+    /** Receives the counters about every ten seconds while the pipeline runs. */
+    public void setProgressListener(Consumer<PipelineStatistics> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Reuses the aggregates of unchanged groups from a previous run and writes the fingerprint index of this run.
+     * <P> The cache is closed by the caller after the run.
+     */
+    public void setFingerprintCache(FingerprintCache fingerprintCache) {
+        this.fingerprintCache = fingerprintCache;
+    }
+
+    public PipelineStatistics run(MappedIso2709Reader reader, Function<Iso2709Record,String> clusterKey,
+                                  MappedIso2709Writer writer) throws IOException {
+        long start = System.nanoTime();
+        long lastProgress = start;
+        long records = 0;
+        long aggregates = 0;
+        if (fingerprintCache != null) {
+            fingerprintCache.begin(aggregator);
+        }
+
+        List<Iso2709Record> group = new ArrayList<>();
+        String currentKey = null;
+        while (reader.hasNext()) {
+            Iso2709Record record = reader.next();
+            String key = clusterKey.apply(record);
+            if (!group.isEmpty() && (key == null || !key.equals(currentKey))) {
+                aggregate(group, currentKey, writer);
+                aggregates++;
+            }
+            group.add(record);
+            currentKey = key;
+            records++;
+
+            long now = System.nanoTime();
+            if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                progressListener.accept(new PipelineStatistics(records, aggregates, now - start));
+                lastProgress = now;
+            }
+        }
+        if (!group.isEmpty()) {
+            aggregate(group, currentKey, writer);
+            aggregates++;
+        }
+
+        return new PipelineStatistics(records, aggregates, System.nanoTime() - start);
+    }
+
+    private void aggregate(List<Iso2709Record> group, String clusterKey, MappedIso2709Writer writer)
+            throws IOException {
+        long buildNumber = aggregator.nextBuildNumber(clusterKey);
+        if (fingerprintCache == null) {
+            group.forEach(aggregator::add);
+            writer.write(aggregator.build(buildNumber));
+            group.clear();
+            return;
+        }
+
+        ByteBuffer aggregate = fingerprintCache.lookup(group, aggregator.controlNumber(buildNumber));
+        if (aggregate == null) {
+            group.forEach(aggregator::add);
+            aggregate = aggregator.build(buildNumber);
+        }
+        long offset = writer.position();
+        writer.write(aggregate);
+        fingerprintCache.written(offset, (int) (writer.position() - offset));
+        group.clear();
+    }
+
+    /**
+     * Parses a field specification like {@link org.culturegraph.recordaggregator.pipeline.ClusterKeys#field(String)}:
+     * a control field tag (<code>001</code>) or a data field tag followed by a subfield code (<code>035$a</code>).
+     */
+    public static Function<Iso2709Record,String> clusterKey(String specification) {
+        int separator = specification.indexOf('$');
+        if (separator < 0) {
+            return record -> record.controlField(specification);
+        }
+        if (separator != specification.length() - 2) {
+            throw new IllegalArgumentException("Expected TAG or TAG$CODE, but was " + specification);
+        }
+        String tag = specification.substring(0, separator);
+        char code = specification.charAt(separator + 1);
+        return record -> record.subfield(tag, code);
+    }
+
+    /** Looks up the control number (<i>001</i>) of a record in a mapping from record id to cluster key. */
+    public static Function<Iso2709Record,String> clusterKey(Map<String,String> clusterKeyByRecordId) {
+        return clusterKey(clusterKeyByRecordId::get);
+    }
+
+    /**
+     * Looks up the control number (<i>001</i>) of a record with a function from record id to cluster key, for
+     * example {@link org.culturegraph.recordaggregator.pipeline.ClusterKeyMapping#get(String)}.
+     */
+    public static Function<Iso2709Record,String> clusterKey(Function<String,String> clusterKeyOfRecordId) {
+        return record -> {
+            String id = record.controlField("001");
+            return id == null ? null : clusterKeyOfRecordId.apply(id);
+        };
+    }
+}
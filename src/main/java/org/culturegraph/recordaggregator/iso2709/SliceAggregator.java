@@ -0,0 +1,805 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.culturegraph.recordaggregator.core.entity.FieldLink;
+import org.culturegraph.recordaggregator.core.entity.FieldLinkTypes;
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.BuildNumberAllocator;
+import org.culturegraph.recordaggregator.plugin.FieldLinkTable;
+import org.marc4j.MarcException;
+
+/**
+ * Aggregates ISO 2709 records from their {@link Iso2709Record} views into an encoded aggregate.
+ *
+ * <P> The aggregates are byte for byte those of {@link AggregatedRecordBuilderImpl} written by marc4j's
+ * <code>MarcStreamWriter</code> in UTF-8, but no field is decoded: subfields are referenced by their position in the
+ * source records, compared and deduplicated as bytes and copied from there into the output buffer. Only rewritten
+ * field links and the idns of the added <i>035</i> fields are materialized, in a scratch arena.
+ *
+ * <P> The records must be encoded in UTF-8 (leader position 09 is <i>a</i>). Subfields are compared as bytes in the
+ * order of their Java strings, see {@link #utf16Order(byte)}. Like the command line writes records that exceed the
+ * limits of ISO 2709 (99999 bytes per record, 9999 bytes per field), lengths and offsets that do not fit their digits
+ * are written as nines.
+ */
+public class SliceAggregator {
+
+    /** Version of the aggregates, incremented whenever the same input and settings give different aggregates */
+    static final int FORMAT_VERSION = 2;
+
+    private static final byte FIELD_LINK_CODE = '8';
+    private static final byte[] PROVENANCE = {'p'};
+    private static final int TAG_035 = packTag("035");
+    private static final int TAG_040 = packTag("040");
+    private static final int TAG_883 = packTag("883");
+    private static final byte[] LEADER_STATUS = "nam a22".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEADER_TAIL = " a 4500".getBytes(StandardCharsets.US_ASCII);
+    private static final int SCRATCH = -1;
+    private static final int NONE = -1;
+
+    private long buildNumber;
+    private BuildNumberAllocator buildNumbers;
+    private String prefix;
+    private String suffix;
+    private byte[] catalogingAgency;
+
+    /** Source records and a reusable view of each */
+    private Iso2709Record[] records;
+    private ByteBuffer[] views;
+    private int recordCount;
+
+    /** Rewritten field links and idns */
+    private byte[] scratch;
+    private int scratchSize;
+
+    /** Subfields of all added fields: code, source record (or scratch) and data range */
+    private byte[] codes;
+    private int[] sources;
+    private int[] starts;
+    private int[] lengths;
+    /** Chains the field links merged into a unique field */
+    private int[] nextLinks;
+    private int subfieldCount;
+
+    /** Unique fields */
+    private int[] tags;
+    private int[] indicators;
+    private int[] firstSubfields;
+    private int[] subfieldCounts;
+    private int[] keyStarts;
+    private int[] keyLengths;
+    private int[] hashes;
+    private int[] firstLinks;
+    private int[] lastLinks;
+    private int fieldCount;
+
+    /** Sorted non-link subfields of the unique fields ($ code data ...) */
+    private byte[] keys;
+    private int keysSize;
+
+    /** Open addressing hash index of the unique fields */
+    private int[] slots;
+
+    /** Scratch space for sorting the subfields of a field */
+    private int[] positions;
+
+    private final FieldLinkTable fieldLinkTable;
+    private final LinkView linkView;
+    private ByteBuffer output;
+
+    public SliceAggregator() {
+        this.buildNumber = 0;
+        this.prefix = "";
+        this.suffix = "";
+        this.catalogingAgency = new byte[0];
+
+        this.records = new Iso2709Record[8];
+        this.views = new ByteBuffer[8];
+        this.scratch = new byte[1 << 12];
+        this.codes = new byte[1 << 8];
+        this.sources = new int[1 << 8];
+        this.starts = new int[1 << 8];
+        this.lengths = new int[1 << 8];
+        this.nextLinks = new int[1 << 8];
+        this.tags = new int[1 << 6];
+        this.indicators = new int[1 << 6];
+        this.firstSubfields = new int[1 << 6];
+        this.subfieldCounts = new int[1 << 6];
+        this.keyStarts = new int[1 << 6];
+        this.keyLengths = new int[1 << 6];
+        this.hashes = new int[1 << 6];
+        this.firstLinks = new int[1 << 6];
+        this.lastLinks = new int[1 << 6];
+        this.keys = new byte[1 << 12];
+        this.slots = new int[1 << 7];
+        Arrays.fill(slots, NONE);
+        this.positions = new int[16];
+
+        this.fieldLinkTable = new FieldLinkTable();
+        this.linkView = new LinkView();
+        this.output = ByteBuffer.allocate(1 << 12);
+    }
+
+    public void setBuildNumberPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public void setBuildNumberSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public void setCatalogingAgency(String catalogingAgency) {
+        this.catalogingAgency = catalogingAgency.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Takes the build numbers from a shared allocator instead of counting per aggregator, like
+     * {@link AggregatedRecordBuilderImpl#setBuildNumberAllocator(BuildNumberAllocator)}. {@link #reset()} does not
+     * affect them.
+     */
+    public void setBuildNumberAllocator(BuildNumberAllocator buildNumbers) {
+        this.buildNumbers = buildNumbers;
+    }
+
+    /**
+     * Links the fields of a record to its idn, shifts its field links behind those of the previous records and merges
+     * its data fields into the aggregate.
+     * <P> The record is referenced until the next build.
+     */
+    public void add(Iso2709Record record) {
+        if (record.getCharCodingScheme() != 'a') {
+            throw new MarcException("Expected a UTF-8 record, but leader position 09 is '" + record.getCharCodingScheme() + "'");
+        }
+
+        int source = addRecord(record);
+        boolean firstRecord = source == 0;
+        fieldLinkTable.beginRecord();
+        int provenanceOffset = fieldLinkTable.offset(FieldLinkTypes.PROVENANCE);
+
+        int idnStart = scratchSize;
+        writeIdn(record);
+        int idnLength = scratchSize - idnStart;
+
+        ByteBuffer view = views[source];
+        for (int i = 0; i < record.fieldCount(); i++) {
+            if (record.isControlField(i)) {
+                continue;
+            }
+
+            int start = record.fieldStart(i);
+            int end = start + record.fieldLength(i);
+            if (end - start < 2) {
+                throw new MarcException("Data field " + record.tag(i) + " has no indicators");
+            }
+
+            int tag = record.packedTag(i);
+            int first = subfieldCount;
+            for (int p = record.nextSubfield(start + 2, end); p < end; ) {
+                int next = record.nextSubfield(p + 1, end);
+                if (p + 1 < next) {
+                    byte code = view.get(p + 1);
+                    if (code == FIELD_LINK_CODE) {
+                        addFieldLink(source, p + 2, next - p - 2, firstRecord);
+                    } else {
+                        addSubfield(code, source, p + 2, next - p - 2);
+                    }
+                }
+                p = next;
+            }
+            if (tag != TAG_035 && tag != TAG_883) {
+                addRecordLink(provenanceOffset);
+            }
+
+            int indicatorPair = (view.get(start) & 0xFF) << 8 | view.get(start + 1) & 0xFF;
+            addField(tag, indicatorPair, first, subfieldCount - first);
+        }
+
+        int first = subfieldCount;
+        addSubfield((byte) 'a', SCRATCH, idnStart, idnLength);
+        addRecordLink(provenanceOffset);
+        addField(TAG_035, ' ' << 8 | ' ', first, subfieldCount - first);
+    }
+
+    public ByteBuffer build() {
+        return build(nextBuildNumber());
+    }
+
+    /**
+     * Encodes the aggregate with the given build number in its control number and starts a new one.
+     * @return The encoded record, valid until the next build.
+     */
+    public ByteBuffer build(long buildNumber) {
+        int[] order = new int[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            order[i] = i;
+        }
+        sort(order);
+
+        byte[] controlNumber = controlNumber(buildNumber);
+
+        int baseAddress = Iso2709Record.LEADER_LENGTH + (fieldCount + 2) * Iso2709Record.DIRECTORY_ENTRY_LENGTH + 1;
+        int recordLength = baseAddress + controlNumber.length + 1 + catalogingAgency.length + 1;
+        for (int field: order) {
+            recordLength += encodedLength(field);
+        }
+        recordLength += 1;
+
+        ensureOutputCapacity(recordLength);
+        putDigits(recordLength, 5);
+        output.put(LEADER_STATUS);
+        putDigits(baseAddress, 5);
+        output.put(LEADER_TAIL);
+
+        int offset = 0;
+        offset = putDirectoryEntry(packTag("001"), controlNumber.length + 1, offset);
+        offset = putDirectoryEntry(packTag("003"), catalogingAgency.length + 1, offset);
+        for (int field: order) {
+            offset = putDirectoryEntry(tags[field], encodedLength(field), offset);
+        }
+        output.put(Iso2709Record.FIELD_TERMINATOR);
+
+        output.put(controlNumber).put(Iso2709Record.FIELD_TERMINATOR);
+        output.put(catalogingAgency).put(Iso2709Record.FIELD_TERMINATOR);
+        for (int field: order) {
+            putField(field);
+        }
+        output.put(Iso2709Record.RECORD_TERMINATOR);
+        ((Buffer) output).flip();
+
+        clear();
+        return output;
+    }
+
+    /** Advances the build number as {@link #build()} does, for an aggregate that is not built by this aggregator. */
+    long nextBuildNumber() {
+        if (buildNumbers != null) {
+            return buildNumbers.next();
+        }
+        buildNumber += 1;
+        return buildNumber;
+    }
+
+    /**
+     * The build number of the group with the cluster key, which a deterministic allocator derives from the key, see
+     * {@link BuildNumberAllocator#numberOf(String)}; otherwise the next build number.
+     */
+    long nextBuildNumber(String clusterKey) {
+        return buildNumbers != null ? buildNumbers.numberOf(clusterKey) : nextBuildNumber();
+    }
+
+    /** The encoded control number (<i>001</i>) of the aggregate with the build number. */
+    byte[] controlNumber(long buildNumber) {
+        String id = prefix.isEmpty() && suffix.isEmpty() ? String.valueOf(buildNumber) : prefix + buildNumber + suffix;
+        return id.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fingerprints the settings that affect the aggregates besides their control number, which is the cataloging
+     * agency (<i>003</i>), together with {@link #FORMAT_VERSION}.
+     */
+    long settingsFingerprint() {
+        ByteBuffer settings = ByteBuffer.allocate(8 + catalogingAgency.length);
+        settings.putInt(FORMAT_VERSION).putInt(catalogingAgency.length).put(catalogingAgency);
+        ((Buffer) settings).flip();
+        return GroupFingerprint.hash(settings);
+    }
+
+    public void reset() {
+        buildNumber = 0;
+        clear();
+    }
+
+    private void clear() {
+        Arrays.fill(records, 0, recordCount, null);
+        Arrays.fill(views, 0, recordCount, null);
+        recordCount = 0;
+        scratchSize = 0;
+        subfieldCount = 0;
+        Arrays.fill(slots, NONE);
+        fieldCount = 0;
+        keysSize = 0;
+        fieldLinkTable.clear();
+    }
+
+    private int addRecord(Iso2709Record record) {
+        if (recordCount == records.length) {
+            records = Arrays.copyOf(records, recordCount * 2);
+            views = Arrays.copyOf(views, recordCount * 2);
+        }
+        records[recordCount] = record;
+        views[recordCount] = record.buffer();
+        return recordCount++;
+    }
+
+    /**
+     * Writes the idn of a record to the scratch arena, see {@link AggregatedRecordBuilderImpl}: <code>(AGENCY)ID</code>
+     * of the fields <i>001</i> and <i>003</i>, or <i>040$a</i> if <i>003</i> is empty or missing.
+     */
+    private void writeIdn(Iso2709Record record) {
+        int id = NONE;
+        int isil = NONE;
+        for (int i = 0; i < record.fieldCount(); i++) {
+            if (!record.isControlField(i)) {
+                continue;
+            }
+            if (record.tagEquals(i, "001")) {
+                id = i;
+            }
+            if (record.tagEquals(i, "003")) {
+                isil = i;
+                break;
+            }
+        }
+
+        ByteBuffer view = views[recordCount - 1];
+        int isilStart = 0;
+        int isilLength = 0;
+        if (isil != NONE) {
+            isilStart = record.fieldStart(isil);
+            isilLength = record.fieldLength(isil);
+        }
+        if (isilLength == 0) {
+            for (int i = 0; i < record.fieldCount(); i++) {
+                if (record.isControlField(i)) {
+                    continue;
+                }
+                int tag = record.packedTag(i);
+                if (tag == TAG_040) {
+                    int start = record.fieldStart(i);
+                    int end = start + record.fieldLength(i);
+                    for (int p = record.nextSubfield(start + 2, end); p < end; p = record.nextSubfield(p + 1, end)) {
+                        if (p + 1 < end && view.get(p + 1) == 'a') {
+                            isilStart = p + 2;
+                            isilLength = record.nextSubfield(isilStart, end) - isilStart;
+                            break;
+                        }
+                    }
+                }
+                if (tag > TAG_040) {
+                    break;
+                }
+            }
+        }
+
+        writeScratch((byte) '(');
+        if (isilLength == 0) {
+            for (byte b: "Undefined".getBytes(StandardCharsets.US_ASCII)) {
+                writeScratch(b);
+            }
+        } else {
+            copyToScratch(view, isilStart, isilLength);
+        }
+        writeScratch((byte) ')');
+        if (id != NONE) {
+            copyToScratch(view, record.fieldStart(id), record.fieldLength(id));
+        }
+    }
+
+    /**
+     * Adds a field link with the number shifted like {@link AggregatedRecordBuilderImpl} does: provenance links are
+     * incremented to make room for the link to the <i>035</i> of the record, and all links of a record after the
+     * first one are shifted by the offsets of their type.
+     */
+    private void addFieldLink(int source, int start, int length, boolean firstRecord) {
+        ByteBuffer view = views[source];
+        long packed = FieldLink.parse(linkView.of(view, start, length), fieldLinkTable.types());
+        if (packed == FieldLink.INVALID) {
+            addSubfield(FIELD_LINK_CODE, source, start, length);
+            return;
+        }
+
+        int typeId = FieldLink.typeIdOf(packed);
+        boolean provenance = typeId == FieldLinkTypes.PROVENANCE;
+        int addend = firstRecord ? 0 : fieldLinkTable.offset(typeId);
+        int number = FieldLink.numberOf(packed) + (provenance ? 1 : 0) + addend;
+        fieldLinkTable.update(typeId, number);
+
+        int typeStart = start;
+        while (view.get(typeStart) != '\\') {
+            typeStart++;
+        }
+        typeStart++;
+        int typeLength = start + length - typeStart;
+
+        boolean canonical = length == stringSize(number) + 1 + typeLength;
+        if (provenance || !firstRecord && (addend != 0 || !canonical)) {
+            int linkStart = scratchSize;
+            writeNumber(number);
+            writeScratch((byte) '\\');
+            copyToScratch(view, typeStart, typeLength);
+            addSubfield(FIELD_LINK_CODE, SCRATCH, linkStart, scratchSize - linkStart);
+        } else {
+            addSubfield(FIELD_LINK_CODE, source, start, length);
+        }
+    }
+
+    /** Adds the link of a field to the <i>035</i> of its record. */
+    private void addRecordLink(int provenanceOffset) {
+        int number = 1 + provenanceOffset;
+        fieldLinkTable.update(FieldLinkTypes.PROVENANCE, number);
+
+        int linkStart = scratchSize;
+        writeNumber(number);
+        writeScratch((byte) '\\');
+        for (byte b: PROVENANCE) {
+            writeScratch(b);
+        }
+        addSubfield(FIELD_LINK_CODE, SCRATCH, linkStart, scratchSize - linkStart);
+    }
+
+    private void addSubfield(byte code, int source, int start, int length) {
+        if (subfieldCount == codes.length) {
+            int capacity = subfieldCount * 2;
+            codes = Arrays.copyOf(codes, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            nextLinks = Arrays.copyOf(nextLinks, capacity);
+        }
+        codes[subfieldCount] = code;
+        sources[subfieldCount] = source;
+        starts[subfieldCount] = start;
+        lengths[subfieldCount] = length;
+        nextLinks[subfieldCount] = NONE;
+        subfieldCount++;
+    }
+
+    /** Merges the field links of a duplicate into the first equal field, or registers a new unique field. */
+    private void addField(int tag, int indicatorPair, int first, int count) {
+        int keyStart = keysSize;
+        writeKey(first, count);
+        int keyLength = keysSize - keyStart;
+        int hash = hash(tag, indicatorPair, keyStart, keyLength);
+
+        int survivor = find(tag, indicatorPair, keyStart, keyLength, hash);
+        if (survivor != NONE) {
+            keysSize = keyStart;
+            for (int i = first; i < first + count; i++) {
+                if (codes[i] == FIELD_LINK_CODE) {
+                    if (lastLinks[survivor] == NONE) {
+                        firstLinks[survivor] = i;
+                    } else {
+                        nextLinks[lastLinks[survivor]] = i;
+                    }
+                    lastLinks[survivor] = i;
+                }
+            }
+            return;
+        }
+
+        if (fieldCount == tags.length) {
+            int capacity = fieldCount * 2;
+            tags = Arrays.copyOf(tags, capacity);
+            indicators = Arrays.copyOf(indicators, capacity);
+            firstSubfields = Arrays.copyOf(firstSubfields, capacity);
+            subfieldCounts = Arrays.copyOf(subfieldCounts, capacity);
+            keyStarts = Arrays.copyOf(keyStarts, capacity);
+            keyLengths = Arrays.copyOf(keyLengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            firstLinks = Arrays.copyOf(firstLinks, capacity);
+            lastLinks = Arrays.copyOf(lastLinks, capacity);
+        }
+        int field = fieldCount++;
+        tags[field] = tag;
+        indicators[field] = indicatorPair;
+        firstSubfields[field] = first;
+        subfieldCounts[field] = count;
+        keyStarts[field] = keyStart;
+        keyLengths[field] = keyLength;
+        hashes[field] = hash;
+        firstLinks[field] = NONE;
+        lastLinks[field] = NONE;
+
+        if (fieldCount * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            Arrays.fill(slots, NONE);
+            for (int i = 0; i < fieldCount; i++) {
+                slots[slotOf(i)] = i;
+            }
+        } else {
+            slots[slotOf(field)] = field;
+        }
+    }
+
+    /** Writes the non-link subfields of a field sorted by code and data, like {@link org.culturegraph.recordaggregator.plugin.DataFieldComparator}. */
+    private void writeKey(int first, int count) {
+        if (positions.length < count) {
+            positions = new int[Math.max(count, positions.length * 2)];
+        }
+
+        int k = 0;
+        for (int i = first; i < first + count; i++) {
+            if (codes[i] != FIELD_LINK_CODE) {
+                // Insertion sort, fields rarely have more than a handful of subfields
+                int j = k++;
+                while (j > 0 && compareSubfields(positions[j - 1], i) > 0) {
+                    positions[j] = positions[j - 1];
+                    j--;
+                }
+                positions[j] = i;
+            }
+        }
+
+        for (int j = 0; j < k; j++) {
+            int sf = positions[j];
+            ensureKeysCapacity(2 + lengths[sf]);
+            keys[keysSize++] = '$';
+            keys[keysSize++] = codes[sf];
+            for (int i = 0; i < lengths[sf]; i++) {
+                keys[keysSize++] = dataByte(sf, i);
+            }
+        }
+    }
+
+    private int compareSubfields(int sf1, int sf2) {
+        int codeComparison = Integer.compare(codes[sf1] & 0xFF, codes[sf2] & 0xFF);
+        if (codeComparison != 0) return codeComparison;
+
+        int length = Math.min(lengths[sf1], lengths[sf2]);
+        for (int i = 0; i < length; i++) {
+            int comparison = Integer.compare(utf16Order(dataByte(sf1, i)), utf16Order(dataByte(sf2, i)));
+            if (comparison != 0) return comparison;
+        }
+        return Integer.compare(lengths[sf1], lengths[sf2]);
+    }
+
+    private byte dataByte(int sf, int i) {
+        int source = sources[sf];
+        return source == SCRATCH ? scratch[starts[sf] + i] : views[source].get(starts[sf] + i);
+    }
+
+    private int find(int tag, int indicatorPair, int keyStart, int keyLength, int hash) {
+        int mask = slots.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int field = slots[i];
+            if (field == NONE) {
+                return NONE;
+            }
+            if (hashes[field] == hash && tags[field] == tag && indicators[field] == indicatorPair
+                    && keyLengths[field] == keyLength && keyEquals(keyStarts[field], keyStart, keyLength)) {
+                return field;
+            }
+        }
+    }
+
+    private boolean keyEquals(int start1, int start2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (keys[start1 + i] != keys[start2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the slot that holds a field or the free slot it belongs into. */
+    private int slotOf(int field) {
+        int mask = slots.length - 1;
+        int i = hashes[field] & mask;
+        while (slots[i] != NONE && slots[i] != field) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int hash(int tag, int indicatorPair, int keyStart, int keyLength) {
+        // FNV-1a
+        int hash = 0x811C9DC5;
+        hash = (hash ^ tag) * 0x01000193;
+        hash = (hash ^ indicatorPair) * 0x01000193;
+        for (int i = keyStart; i < keyStart + keyLength; i++) {
+            hash = (hash ^ (keys[i] & 0xFF)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private int compareFields(int field1, int field2) {
+        int tagComparison = Integer.compare(tags[field1], tags[field2]);
+        if (tagComparison != 0) return tagComparison;
+
+        int indicatorComparison = Integer.compare(indicators[field1], indicators[field2]);
+        if (indicatorComparison != 0) return indicatorComparison;
+
+        int start1 = keyStarts[field1];
+        int start2 = keyStarts[field2];
+        int length = Math.min(keyLengths[field1], keyLengths[field2]);
+        for (int i = 0; i < length; i++) {
+            int comparison = Integer.compare(utf16Order(keys[start1 + i]), utf16Order(keys[start2 + i]));
+            if (comparison != 0) return comparison;
+        }
+        return Integer.compare(keyLengths[field1], keyLengths[field2]);
+    }
+
+    /** Merge sort of field indices; keys are unique, so stability does not matter. */
+    private void sort(int[] fields) {
+        int[] buffer = new int[fields.length];
+        for (int width = 1; width < fields.length; width *= 2) {
+            for (int lo = 0; lo < fields.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, fields.length);
+                int hi = Math.min(lo + 2 * width, fields.length);
+                int i = lo, j = mid, o = lo;
+                while (i < mid && j < hi) {
+                    buffer[o++] = compareFields(fields[i], fields[j]) <= 0 ? fields[i++] : fields[j++];
+                }
+                while (i < mid) buffer[o++] = fields[i++];
+                while (j < hi) buffer[o++] = fields[j++];
+            }
+            System.arraycopy(buffer, 0, fields, 0, fields.length);
+        }
+    }
+
+    /** Number of bytes of an encoded data field, including its field terminator. */
+    private int encodedLength(int field) {
+        int length = 2;
+        int first = firstSubfields[field];
+        for (int i = first; i < first + subfieldCounts[field]; i++) {
+            length += 2 + lengths[i];
+        }
+        for (int i = firstLinks[field]; i != NONE; i = nextLinks[i]) {
+            length += 2 + lengths[i];
+        }
+        length += 1;
+        return length;
+    }
+
+    private int putDirectoryEntry(int tag, int length, int offset) {
+        output.put((byte) (tag >>> 16)).put((byte) (tag >>> 8)).put((byte) tag);
+        putDigits(length, 4);
+        putDigits(offset, 5);
+        return offset + length;
+    }
+
+    private void putField(int field) {
+        int indicatorPair = indicators[field];
+        output.put((byte) (indicatorPair >>> 8)).put((byte) indicatorPair);
+        int first = firstSubfields[field];
+        for (int i = first; i < first + subfieldCounts[field]; i++) {
+            putSubfield(i);
+        }
+        for (int i = firstLinks[field]; i != NONE; i = nextLinks[i]) {
+            putSubfield(i);
+        }
+        output.put(Iso2709Record.FIELD_TERMINATOR);
+    }
+
+    private void putSubfield(int sf) {
+        output.put(Iso2709Record.SUBFIELD_DELIMITER).put(codes[sf]);
+        int source = sources[sf];
+        if (source == SCRATCH) {
+            output.put(scratch, starts[sf], lengths[sf]);
+        } else {
+            ByteBuffer view = views[source];
+            ((Buffer) view).clear();
+            ((Buffer) view).limit(starts[sf] + lengths[sf]);
+            ((Buffer) view).position(starts[sf]);
+            output.put(view);
+        }
+    }
+
+    /** Writes a number with leading zeros, or all nines if it has more digits, as marc4j does. */
+    private void putDigits(int value, int width) {
+        int divisor = (int) Math.pow(10, width - 1);
+        boolean oversize = value / divisor >= 10;
+        for (; divisor > 0; divisor /= 10) {
+            output.put((byte) (oversize ? '9' : '0' + value / divisor % 10));
+        }
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (output.capacity() < capacity) {
+            output = ByteBuffer.allocate(Math.max(capacity, output.capacity() * 2));
+        }
+        ((Buffer) output).clear();
+    }
+
+    private void writeNumber(int number) {
+        if (number < 0) {
+            for (byte b: Integer.toString(number).getBytes(StandardCharsets.US_ASCII)) {
+                writeScratch(b);
+            }
+            return;
+        }
+        int size = stringSize(number);
+        ensureScratchCapacity(size);
+        for (int i = scratchSize + size - 1; i >= scratchSize; i--) {
+            scratch[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        scratchSize += size;
+    }
+
+    private void writeScratch(byte b) {
+        ensureScratchCapacity(1);
+        scratch[scratchSize++] = b;
+    }
+
+    private void copyToScratch(ByteBuffer view, int start, int length) {
+        ensureScratchCapacity(length);
+        for (int i = 0; i < length; i++) {
+            scratch[scratchSize++] = view.get(start + i);
+        }
+    }
+
+    private void ensureScratchCapacity(int additional) {
+        if (scratchSize + additional > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchSize + additional));
+        }
+    }
+
+    private void ensureKeysCapacity(int additional) {
+        if (keysSize + additional > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysSize + additional));
+        }
+    }
+
+    /**
+     * Maps a byte of UTF-8 to a number, so that the numbers compare like the UTF-16 code units of Java strings.
+     * <P> Bytes compare in code point order, which differs from UTF-16 order only in that the supplementary
+     * characters (lead bytes <i>F0</i> to <i>F4</i>) come before <i>U+E000</i> to <i>U+FFFF</i> (lead bytes
+     * <i>EE</i> and <i>EF</i>). The first difference of two equal prefixes is either in both lead bytes or in
+     * continuation bytes of the same lead byte, so moving these two lead bytes behind the others is enough.
+     */
+    private static int utf16Order(byte b) {
+        int value = b & 0xFF;
+        return value == 0xEE || value == 0xEF ? value + 0x10 : value;
+    }
+
+    private static int packTag(String tag) {
+        return tag.charAt(0) << 16 | tag.charAt(1) << 8 | tag.charAt(2);
+    }
+
+    private static int stringSize(int number) {
+        if (number == Integer.MIN_VALUE) {
+            return 11;
+        }
+        int size = number < 0 ? 2 : 1;
+        for (int n = Math.abs(number); n >= 10; n /= 10) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Presents the bytes of a field link as characters to {@link FieldLink#parse(CharSequence, FieldLinkTypes)}.
+     * <P> Numbers and the backslash are ASCII; a type with other bytes is registered as ISO 8859-1, which is
+     * consistent within this class since types are copied as bytes.
+     */
+    private static final class LinkView implements CharSequence {
+        private ByteBuffer view;
+        private int start;
+        private int length;
+
+        LinkView of(ByteBuffer view, int start, int length) {
+            this.view = view;
+            this.start = start;
+            this.length = length;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (view.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(start + i);
+            }
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.culturegraph.recordaggregator.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one or more builders.
+ *
+ * <P> Thread safe, so the builders of a {@link org.culturegraph.recordaggregator.pipeline.GroupAggregator} may share
+ * one instance. The histograms of the records and data fields per aggregate point to the clusters that dominate the
+ * build time.
+ */
+public class AggregationMetrics implements MetricsSink, AggregationMetricsMXBean {
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder aggregates = new LongAdder();
+    private final LongAdder dataFieldsIn = new LongAdder();
+    private final LongAdder dataFieldsOut = new LongAdder();
+    private final LongAdder invalidFieldLinks = new LongAdder();
+
+    private volatile Histogram recordsPerAggregate = new Histogram();
+    private volatile Histogram dataFieldsPerAggregate = new Histogram();
+    private volatile Histogram addNanos = new Histogram();
+    private volatile Histogram buildNanos = new Histogram();
+
+    @Override
+    public void recordAdded(int dataFields, int invalidFieldLinks, long nanos) {
+        records.increment();
+        if (invalidFieldLinks != 0) {
+            this.invalidFieldLinks.add(invalidFieldLinks);
+        }
+        addNanos.record(nanos);
+    }
+
+    @Override
+    public void aggregateBuilt(int records, int dataFieldsIn, int dataFieldsOut, long nanos) {
+        aggregates.increment();
+        this.dataFieldsIn.add(dataFieldsIn);
+        this.dataFieldsOut.add(dataFieldsOut);
+        recordsPerAggregate.record(records);
+        dataFieldsPerAggregate.record(dataFieldsOut);
+        buildNanos.record(nanos);
+    }
+
+    @Override
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @Override
+    public long getAggregates() {
+        return aggregates.sum();
+    }
+
+    @Override
+    public long getDataFieldsIn() {
+        return dataFieldsIn.sum();
+    }
+
+    @Override
+    public long getDataFieldsOut() {
+        return dataFieldsOut.sum();
+    }
+
+    @Override
+    public double getDuplicateRatio() {
+        long in = dataFieldsIn.sum();
+        return in == 0 ? 0 : 1 - (double) dataFieldsOut.sum() / in;
+    }
+
+    @Override
+    public long getInvalidFieldLinks() {
+        return invalidFieldLinks.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getRecordsPerAggregate() {
+        return recordsPerAggregate.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getDataFieldsPerAggregate() {
+        return dataFieldsPerAggregate.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getAddNanos() {
+        return addNanos.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBuildNanos() {
+        return buildNanos.snapshot();
+    }
+
+    /** Starts over; measurements that race with a reset may be lost. */
+    @Override
+    public void reset() {
+        records.reset();
+        aggregates.reset();
+        dataFieldsIn.reset();
+        dataFieldsOut.reset();
+        invalidFieldLinks.reset();
+        recordsPerAggregate = new Histogram();
+        dataFieldsPerAggregate = new Histogram();
+        addNanos = new Histogram();
+        buildNanos = new Histogram();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records, %d aggregates, %d of %d data fields merged (%.1f %%), %d invalid field links%n"
+                        + "  records per aggregate: %s%n  data fields per aggregate: %s%n  add ns: %s%n  build ns: %s",
+                getRecords(), getAggregates(), getDataFieldsIn() - getDataFieldsOut(), getDataFieldsIn(),
+                100 * getDuplicateRatio(), getInvalidFieldLinks(), getRecordsPerAggregate(),
+                getDataFieldsPerAggregate(), getAddNanos(), getBuildNanos());
+    }
+}
@@ -0,0 +1,28 @@
+package org.culturegraph.recordaggregator.metrics;
+
+/** Management interface of {@link AggregationMetrics}, see {@link JmxExporter}. */
+public interface AggregationMetricsMXBean {
+
+    long getRecords();
+
+    long getAggregates();
+
+    long getDataFieldsIn();
+
+    long getDataFieldsOut();
+
+    /** Share of the added data fields that were merged into an equal field. */
+    double getDuplicateRatio();
+
+    long getInvalidFieldLinks();
+
+    Histogram.Snapshot getRecordsPerAggregate();
+
+    Histogram.Snapshot getDataFieldsPerAggregate();
+
+    Histogram.Snapshot getAddNanos();
+
+    Histogram.Snapshot getBuildNanos();
+
+    void reset();
+}
@@ -0,0 +1,75 @@
+package org.culturegraph.recordaggregator.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.culturegraph.recordaggregator.sink.AsyncRecordSinkMXBean;
+
+/**
+ * Publishes {@link AggregationMetrics} as an MXBean on the platform MBean server, for example to watch a running
+ * aggregation with JConsole or a JMX exporter of a monitoring system. The output buffer of an
+ * {@link org.culturegraph.recordaggregator.sink.AsyncRecordSink} is published the same way.
+ */
+public class JmxExporter implements AutoCloseable {
+
+    static final String DOMAIN = "org.culturegraph.recordaggregator";
+
+    private final MBeanServer server;
+    private final ObjectName name;
+
+    private JmxExporter(MBeanServer server, ObjectName name) {
+        this.server = server;
+        this.name = name;
+    }
+
+    /**
+     * Registers the metrics as <code>org.culturegraph.recordaggregator:type=AggregationMetrics,name=NAME</code>.
+     * @throws IllegalStateException If metrics with this name are already registered.
+     */
+    public static JmxExporter register(AggregationMetrics metrics, String name) {
+        return register(metrics, "AggregationMetrics", name);
+    }
+
+    /**
+     * Registers the occupancy of an output buffer as <code>org.culturegraph.recordaggregator:type=OutputBuffer,
+     * name=NAME</code>.
+     * @throws IllegalStateException If a buffer with this name is already registered.
+     */
+    public static JmxExporter register(AsyncRecordSinkMXBean buffer, String name) {
+        return register(buffer, "OutputBuffer", name);
+    }
+
+    private static JmxExporter register(Object mxBean, String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            server.registerMBean(mxBean, objectName);
+            return new JmxExporter(server, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException(type + " " + name + " is already registered", e);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register " + type + " " + name, e);
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return name;
+    }
+
+    /** Unregisters the metrics. */
+    @Override
+    public void close() {
+        try {
+            server.unregisterMBean(name);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister " + name, e);
+        }
+    }
+}
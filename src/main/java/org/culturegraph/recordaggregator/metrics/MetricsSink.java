@@ -0,0 +1,37 @@
+package org.culturegraph.recordaggregator.metrics;
+
+/**
+ * Receives the measurements of an {@link org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl}.
+ *
+ * <P> A sink that is shared by the builders of several threads has to be thread safe. Builders that use
+ * {@link #NOOP}, the default, neither read the clock nor call the sink.
+ */
+public interface MetricsSink {
+
+    MetricsSink NOOP = new MetricsSink() {
+        @Override
+        public void recordAdded(int dataFields, int invalidFieldLinks, long nanos) {
+        }
+
+        @Override
+        public void aggregateBuilt(int records, int dataFieldsIn, int dataFieldsOut, long nanos) {
+        }
+    };
+
+    /**
+     * Called after a record was added.
+     * @param dataFields Number of data fields of the record, including the added <i>035</i>.
+     * @param invalidFieldLinks Number of subfields <i>8</i> that could not be parsed as a field link.
+     * @param nanos Time spent adding the record.
+     */
+    void recordAdded(int dataFields, int invalidFieldLinks, long nanos);
+
+    /**
+     * Called after an aggregate was built.
+     * @param records Number of records in the aggregate.
+     * @param dataFieldsIn Number of data fields of these records.
+     * @param dataFieldsOut Number of data fields of the aggregate after merging duplicates.
+     * @param nanos Time spent building the aggregate, not including the time spent adding its records.
+     */
+    void aggregateBuilt(int records, int dataFieldsIn, int dataFieldsOut, long nanos);
+}
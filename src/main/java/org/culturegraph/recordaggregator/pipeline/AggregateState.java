@@ -0,0 +1,283 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.recordaggregator.plugin.SharedMarcFactory;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+/**
+ * The members of one aggregate, as kept by an {@link AggregateStateStore}.
+ *
+ * <P> Each member is stored with its leader, its control fields and references into a dictionary of data fields
+ * shared by all members of the aggregate. Data fields are stored as they appear in the input, including their own
+ * field links (subfield 8), and equal fields of different members are stored once. The members keep the order in
+ * which they were first added, an updated member keeps its position.
+ *
+ * <P> The build number is assigned once and stays the same while members are added, updated or removed, so the
+ * control number of the aggregate is stable.
+ */
+public class AggregateState {
+
+    private final long buildNumber;
+    private final List<Member> members;
+    private final List<byte[]> fields;
+    private final Map<ByteBuffer,Integer> fieldIndex;
+
+    public AggregateState(long buildNumber) {
+        this.buildNumber = buildNumber;
+        this.members = new ArrayList<>();
+        this.fields = new ArrayList<>();
+        this.fieldIndex = new HashMap<>();
+    }
+
+    public long getBuildNumber() {
+        return buildNumber;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /** Number of distinct data fields of all members. */
+    public int distinctDataFields() {
+        return fields.size();
+    }
+
+    public List<String> getMemberIds() {
+        List<String> ids = new ArrayList<>(members.size());
+        for (Member member: members) {
+            ids.add(member.id);
+        }
+        return Collections.unmodifiableList(ids);
+    }
+
+    public boolean contains(String memberId) {
+        return indexOf(memberId) >= 0;
+    }
+
+    /**
+     * Adds a member or replaces the member with the same id in place.
+     * <P> The record is encoded immediately and not modified.
+     * @return <code>true</code> if the member was added, <code>false</code> if it replaced an existing member.
+     */
+    public boolean put(String memberId, Record record) {
+        RecordCodec codec = new RecordCodec();
+        Member member = new Member(memberId, encodeHead(record), new int[record.getDataFields().size()]);
+        int i = 0;
+        for (DataField df: record.getDataFields()) {
+            member.fields[i++] = intern(encodeField(codec, df));
+        }
+
+        int index = indexOf(memberId);
+        if (index < 0) {
+            members.add(member);
+            return true;
+        }
+        members.set(index, member);
+        compactFields();
+        return false;
+    }
+
+    /** @return <code>true</code> if a member with the id was removed. */
+    public boolean remove(String memberId) {
+        int index = indexOf(memberId);
+        if (index < 0) {
+            return false;
+        }
+        members.remove(index);
+        compactFields();
+        return true;
+    }
+
+    /** Decodes new copies of all member records in member order. */
+    public List<Record> records() {
+        RecordCodec codec = new RecordCodec();
+        List<Record> records = new ArrayList<>(members.size());
+        try {
+            for (Member member: members) {
+                Record record = decodeHead(member.head);
+                for (int ref: member.fields) {
+                    // Decode every use of a shared field anew, the builder modifies the fields it aggregates
+                    record.addVariableField(codec.readDataField(input(fields.get(ref))));
+                }
+                records.add(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return records;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(buildNumber);
+            RecordCodec.writeVarInt(out, fields.size());
+            for (byte[] field: fields) {
+                RecordCodec.writeVarInt(out, field.length);
+                out.write(field);
+            }
+            RecordCodec.writeVarInt(out, members.size());
+            for (Member member: members) {
+                RecordCodec.writeString(out, member.id);
+                RecordCodec.writeVarInt(out, member.head.length);
+                out.write(member.head);
+                RecordCodec.writeVarInt(out, member.fields.length);
+                for (int ref: member.fields) {
+                    RecordCodec.writeVarInt(out, ref);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static AggregateState decode(byte[] bytes) {
+        DataInputStream in = input(bytes);
+        try {
+            AggregateState state = new AggregateState(in.readLong());
+            int fieldCount = RecordCodec.readVarInt(in);
+            for (int i = 0; i < fieldCount; i++) {
+                state.intern(readBytes(in));
+            }
+            int memberCount = RecordCodec.readVarInt(in);
+            for (int i = 0; i < memberCount; i++) {
+                String id = RecordCodec.readString(in);
+                byte[] head = readBytes(in);
+                int[] refs = new int[RecordCodec.readVarInt(in)];
+                for (int j = 0; j < refs.length; j++) {
+                    refs[j] = RecordCodec.readVarInt(in);
+                }
+                state.members.add(new Member(id, head, refs));
+            }
+            return state;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Reads the build number from the start of an encoded state without decoding the members. */
+    static long buildNumberOf(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getLong(0);
+    }
+
+    private int indexOf(String memberId) {
+        for (int i = 0; i < members.size(); i++) {
+            if (members.get(i).id.equals(memberId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int intern(byte[] field) {
+        ByteBuffer key = ByteBuffer.wrap(field);
+        Integer ref = fieldIndex.get(key);
+        if (ref == null) {
+            ref = fields.size();
+            fields.add(field);
+            fieldIndex.put(key, ref);
+        }
+        return ref;
+    }
+
+    /** Drops fields no member refers to anymore and renumbers the references. */
+    private void compactFields() {
+        List<byte[]> oldFields = new ArrayList<>(fields);
+        int[] remap = new int[oldFields.size()];
+        Arrays.fill(remap, -1);
+        fields.clear();
+        fieldIndex.clear();
+        for (Member member: members) {
+            for (int i = 0; i < member.fields.length; i++) {
+                int old = member.fields[i];
+                if (remap[old] < 0) {
+                    remap[old] = intern(oldFields.get(old));
+                }
+                member.fields[i] = remap[old];
+            }
+        }
+    }
+
+    private static byte[] encodeHead(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            RecordCodec.writeString(out, record.getLeader().marshal());
+            List<ControlField> controlFields = record.getControlFields();
+            RecordCodec.writeVarInt(out, controlFields.size());
+            for (ControlField cf: controlFields) {
+                RecordCodec.writeString(out, cf.getTag());
+                RecordCodec.writeString(out, cf.getData());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Record decodeHead(byte[] head) throws IOException {
+        MarcFactory factory = SharedMarcFactory.get();
+        DataInputStream in = input(head);
+        Record record = factory.newRecord(RecordCodec.readString(in));
+        int controlFields = RecordCodec.readVarInt(in);
+        for (int i = 0; i < controlFields; i++) {
+            String tag = RecordCodec.readString(in);
+            record.addVariableField(factory.newControlField(tag, RecordCodec.readString(in)));
+        }
+        return record;
+    }
+
+    private static byte[] encodeField(RecordCodec codec, DataField df) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try {
+            codec.writeDataField(df, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[RecordCodec.readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static final class Member {
+        final String id;
+        final byte[] head;
+        final int[] fields;
+
+        Member(String id, byte[] head, int[] fields) {
+            this.id = id;
+            this.head = head;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the {@link AggregateState} of every aggregate in a local directory, keyed by cluster key.
+ *
+ * <P> States are appended to a log file. Each entry consists of its length, a CRC-32 checksum and a body with the
+ * entry type, the cluster key and the encoded state. Saving a state appends a new entry, deleting appends a
+ * tombstone, and an index from cluster key to the position of the latest entry is kept in memory. Opening a store
+ * scans the log to rebuild the index; an entry at the end of the log that runs past the end of the file, left by a
+ * crash while writing, is cut off. Any other entry with an invalid length or checksum fails the scan with an
+ * <code>IOException</code>, so that no valid entry after it is lost. {@link #compact()} rewrites the log with the
+ * live entries only.
+ *
+ * <P> The store also hands out build numbers for new aggregates. Numbers are never reused, not even after the
+ * aggregate that used a number was deleted or the store was reopened.
+ *
+ * <P> Writes are not forced to disk until {@link #flush()} or {@link #close()}. A store is not thread safe.
+ */
+public class AggregateStateStore implements Closeable {
+
+    static final String LOG_FILE = "aggregates.log";
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte COUNTER = 3;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private final Path directory;
+    private final Map<String,Long> index;
+
+    private FileChannel channel;
+    private long end;
+    private long liveBytes;
+    private long lastBuildNumber;
+
+    private AggregateStateStore(Path directory) {
+        this.directory = directory;
+        this.index = new HashMap<>();
+    }
+
+    /** Opens the store in the directory, creating the directory and an empty log if necessary. */
+    public static AggregateStateStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        AggregateStateStore store = new AggregateStateStore(directory);
+        store.channel = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            store.scan();
+        } catch (IOException | RuntimeException e) {
+            store.channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /** @return The state of the aggregate or <code>null</code> if the store has none. */
+    public AggregateState load(String clusterKey) throws IOException {
+        Long position = index.get(clusterKey);
+        if (position == null) {
+            return null;
+        }
+        Entry entry = readEntry(position, false);
+        return AggregateState.decode(entry.payload);
+    }
+
+    public void save(String clusterKey, AggregateState state) throws IOException {
+        byte[] payload = state.encode();
+        remove(clusterKey);
+        long position = append(PUT, clusterKey, payload);
+        index.put(clusterKey, position);
+        liveBytes += end - position;
+        lastBuildNumber = Math.max(lastBuildNumber, state.getBuildNumber());
+    }
+
+    /** @return <code>true</code> if the store had a state for the cluster key. */
+    public boolean delete(String clusterKey) throws IOException {
+        if (!remove(clusterKey)) {
+            return false;
+        }
+        append(DELETE, clusterKey, counterPayload());
+        return true;
+    }
+
+    public boolean contains(String clusterKey) {
+        return index.containsKey(clusterKey);
+    }
+
+    /** Number of aggregates in the store. */
+    public int size() {
+        return index.size();
+    }
+
+    public Set<String> clusterKeys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /** Creates an empty state with a build number no other state of this store has used. */
+    public AggregateState newState() {
+        lastBuildNumber += 1;
+        return new AggregateState(lastBuildNumber);
+    }
+
+    /** Size of the log file in bytes. */
+    public long logSize() {
+        return end;
+    }
+
+    /** Bytes of the log taken by entries that were replaced or deleted. */
+    public long garbageBytes() {
+        return end - liveBytes;
+    }
+
+    /** Forces all saved states to disk. */
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /** Rewrites the log with the latest entry of every aggregate and replaces the old log atomically. */
+    public void compact() throws IOException {
+        Path log = directory.resolve(LOG_FILE);
+        Path compacted = directory.resolve(LOG_FILE + ".compact");
+        Map<String,Long> positions = new HashMap<>();
+
+        // The channel follows the compacted file through the move, so the old log stays usable until it succeeded
+        FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long position = writeFully(out, 0, entry(COUNTER, "", counterPayload()));
+            for (Map.Entry<String,Long> live: index.entrySet()) {
+                Entry entry = readEntry(live.getValue(), false);
+                positions.put(live.getKey(), position);
+                position = writeFully(out, position, entry(PUT, live.getKey(), entry.payload));
+            }
+            out.force(true);
+            Files.move(compacted, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.close();
+                Files.deleteIfExists(compacted);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        // The compacted file is the log now, so the store switches to it before anything else can fail
+        FileChannel old = channel;
+        channel = out;
+        index.clear();
+        index.putAll(positions);
+        end = channel.size();
+        liveBytes = end;
+        try {
+            old.close();
+        } finally {
+            syncDirectory();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    private boolean remove(String clusterKey) throws IOException {
+        Long position = index.remove(clusterKey);
+        if (position == null) {
+            return false;
+        }
+        liveBytes -= HEADER_LENGTH + readInt(position);
+        return true;
+    }
+
+    /**
+     * Makes the move of the compacted log durable, where the platform can force a directory. This is best effort:
+     * if it fails, the move is durable once the file system syncs.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open or force directories
+        }
+    }
+
+    private void scan() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            if (position + HEADER_LENGTH > size || position + HEADER_LENGTH + readInt(position) > size) {
+                // A torn tail, the entry was not written completely
+                break;
+            }
+            Entry entry = readEntry(position, true);
+            long next = position + HEADER_LENGTH + entry.length;
+            switch (entry.type) {
+                case PUT:
+                    Long previous = index.put(entry.key, position);
+                    if (previous != null) {
+                        liveBytes -= HEADER_LENGTH + readInt(previous);
+                    }
+                    liveBytes += next - position;
+                    break;
+                case DELETE:
+                    Long deleted = index.remove(entry.key);
+                    if (deleted != null) {
+                        liveBytes -= HEADER_LENGTH + readInt(deleted);
+                    }
+                    break;
+                case COUNTER:
+                    break;
+                default:
+                    throw new IOException("Unknown entry type " + entry.type + " at position " + position);
+            }
+            lastBuildNumber = Math.max(lastBuildNumber, AggregateState.buildNumberOf(entry.payload));
+            position = next;
+        }
+
+        if (position < size) {
+            channel.truncate(position);
+        }
+        end = position;
+    }
+
+    /** @param verify Checks the length and the checksum of the entry and throws an IOException if it is corrupt. */
+    private Entry readEntry(long position, boolean verify) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(position, header);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (verify && length <= 0) {
+            throw new IOException("Corrupt entry in " + LOG_FILE + " at position " + position + ": length " + length);
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(position + HEADER_LENGTH, body);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt entry in " + LOG_FILE + " at position " + position + ": checksum");
+            }
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+        byte type = in.readByte();
+        String key = RecordCodec.readString(in);
+        byte[] payload = new byte[in.available()];
+        in.readFully(payload);
+        return new Entry(length, type, key, payload);
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(position, buffer);
+        return buffer.getInt(0);
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + LOG_FILE + " at position " + position);
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    private long append(byte type, String clusterKey, byte[] payload) throws IOException {
+        long position = end;
+        end = writeFully(channel, position, entry(type, clusterKey, payload));
+        return position;
+    }
+
+    private byte[] counterPayload() {
+        return ByteBuffer.allocate(8).putLong(0, lastBuildNumber).array();
+    }
+
+    private static ByteBuffer entry(byte type, String clusterKey, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + 64 + payload.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0);
+        out.writeByte(type);
+        RecordCodec.writeString(out, clusterKey);
+        out.write(payload);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int length = buffer.capacity() - HEADER_LENGTH;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_LENGTH, length);
+        buffer.putInt(0, length);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer;
+    }
+
+    private static long writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static final class Entry {
+        final int length;
+        final byte type;
+        final String key;
+        final byte[] payload;
+
+        Entry(int length, byte type, String key, byte[] payload) {
+            this.length = length;
+            this.type = type;
+            this.key = key;
+            this.payload = payload;
+        }
+    }
+}
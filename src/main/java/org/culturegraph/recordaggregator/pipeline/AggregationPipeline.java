@@ -0,0 +1,210 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.BuildNumberAllocator;
+import org.culturegraph.recordaggregator.sink.MarcWriterSink;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcWriter;
+import org.marc4j.marc.Record;
+
+/**
+ * Streams records from a {@link MarcReader} through the aggregation into a {@link MarcWriter} or a {@link RecordSink}.
+ *
+ * <P> The input has to be grouped by cluster key, see {@link RecordGroups}. Only the current groups are held in
+ * memory, so memory use does not depend on the size of the input. Unsorted input is grouped on disk first, see
+ * {@link #runUnsorted(MarcReader, Function, ExternalGroupSorter, MarcWriter)}.
+ */
+public class AggregationPipeline {
+
+    /** Minimal interval between two progress reports. */
+    private static final long PROGRESS_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final Supplier<AggregatedRecordBuilderImpl> builderSupplier;
+    private int parallelism;
+    private Consumer<PipelineStatistics> progressListener;
+    private BuildNumberAllocator buildNumbers;
+    private CheckpointJournal checkpoints;
+
+    public AggregationPipeline(Supplier<AggregatedRecordBuilderImpl> builderSupplier) {
+        this.builderSupplier = builderSupplier;
+        this.parallelism = 1;
+        this.progressListener = statistics -> {};
+    }
+
+    /** Sets the number of threads that build aggregates. */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /** Receives intermediate statistics about every ten seconds. */
+    public void setProgressListener(Consumer<PipelineStatistics> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /** Numbers the aggregates with the allocator instead of counting them, see {@link GroupAggregator}. */
+    public void setBuildNumberAllocator(BuildNumberAllocator buildNumbers) {
+        this.buildNumbers = buildNumbers;
+    }
+
+    /**
+     * Reports each aggregate to a journal that takes checkpoints of the run, see {@link CheckpointJournal}.
+     * <P> Needs a sink that reports its {@link RecordSink#position()}. With more than one thread the aggregates are
+     * reported in input order as they are written, like with one.
+     */
+    public void setCheckpointJournal(CheckpointJournal checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    public PipelineStatistics run(MarcReader reader, Function<Record,String> clusterKey, MarcWriter writer) {
+        return run(reader, clusterKey, new MarcWriterSink(writer));
+    }
+
+    /** Aggregates grouped records straight into a sink, see {@link #runKeyed(Iterator, RecordSink)}. */
+    public PipelineStatistics run(MarcReader reader, Function<Record,String> clusterKey, RecordSink sink) {
+        return runKeyed(RecordGroups.keyed(records(reader), clusterKey), sink);
+    }
+
+    /**
+     * Aggregates records in arbitrary order by first grouping them with an {@link ExternalGroupSorter}.
+     * <P> Aggregates are written in the order of their cluster keys. Every record needs a cluster key.
+     */
+    public PipelineStatistics runUnsorted(MarcReader reader, Function<Record,String> clusterKey,
+                                          ExternalGroupSorter sorter, MarcWriter writer) throws IOException {
+        return runUnsorted(reader, clusterKey, sorter, new MarcWriterSink(writer));
+    }
+
+    public PipelineStatistics runUnsorted(MarcReader reader, Function<Record,String> clusterKey,
+                                          ExternalGroupSorter sorter, RecordSink sink) throws IOException {
+        while (reader.hasNext()) {
+            Record record = reader.next();
+            sorter.add(clusterKey.apply(record), record);
+        }
+        return runKeyed(sorter.keyedGroups(), sink);
+    }
+
+    public PipelineStatistics run(Iterator<List<Record>> groups, MarcWriter writer) {
+        return runKeyed(new Iterator<Map.Entry<String,List<Record>>>() {
+            @Override
+            public boolean hasNext() {
+                return groups.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String,List<Record>> next() {
+                return new AbstractMap.SimpleImmutableEntry<>(null, groups.next());
+            }
+        }, writer);
+    }
+
+    /** Aggregates groups with their cluster keys, which a deterministic {@link BuildNumberAllocator} numbers by. */
+    public PipelineStatistics runKeyed(Iterator<Map.Entry<String,List<Record>>> groups, MarcWriter writer) {
+        return runKeyed(groups, new MarcWriterSink(writer));
+    }
+
+    /**
+     * Aggregates groups into a sink.
+     * <P> With a single thread the aggregates are streamed field by field into the sink without being assembled as
+     * records, see {@link AggregatedRecordBuilderImpl#build(long, RecordSink)}. With more threads the aggregates are
+     * built by a {@link GroupAggregator} and passed on as records.
+     */
+    public PipelineStatistics runKeyed(Iterator<Map.Entry<String,List<Record>>> groups, RecordSink sink) {
+        long start = System.nanoTime();
+        long[] records = {0};
+        long[] lastReport = {start};
+        long[] written = {0};
+
+        Runnable aggregateWritten = () -> {
+            written[0]++;
+
+            long now = System.nanoTime();
+            if (now - lastReport[0] >= PROGRESS_INTERVAL_NANOS) {
+                lastReport[0] = now;
+                progressListener.accept(new PipelineStatistics(records[0], written[0], now - start));
+            }
+        };
+
+        if (checkpoints != null && sink.position() < 0) {
+            throw new IllegalStateException("Checkpoints need a sink that reports its position");
+        }
+
+        if (parallelism == 1) {
+            AggregatedRecordBuilderImpl builder = builderSupplier.get();
+            while (groups.hasNext()) {
+                Map.Entry<String,List<Record>> group = groups.next();
+                List<Record> members = group.getValue();
+                records[0] += members.size();
+                members.forEach(builder::add);
+                long buildNumber = buildNumbers == null ? written[0] + 1 : buildNumbers.numberOf(group.getKey());
+                builder.build(buildNumber, sink);
+                aggregateWritten.run();
+                checkpoint(group.getKey(), members.size(), buildNumber, sink);
+            }
+            return new PipelineStatistics(records[0], written[0], System.nanoTime() - start);
+        }
+
+        Iterator<Map.Entry<String,List<Record>>> countingGroups = new Iterator<Map.Entry<String,List<Record>>>() {
+            @Override
+            public boolean hasNext() {
+                return groups.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String,List<Record>> next() {
+                Map.Entry<String,List<Record>> group = groups.next();
+                records[0] += group.getValue().size();
+                return group;
+            }
+        };
+
+        long aggregates;
+        try (GroupAggregator aggregator = new GroupAggregator(builderSupplier, parallelism)) {
+            aggregator.setBuildNumberAllocator(buildNumbers);
+            aggregates = aggregator.aggregateKeyed(countingGroups, (key, members, buildNumber, aggregate) -> {
+                sink.write(aggregate);
+                aggregateWritten.run();
+                checkpoint(key, members, buildNumber, sink);
+            });
+        }
+
+        return new PipelineStatistics(records[0], aggregates, System.nanoTime() - start);
+    }
+
+    /** Reports an aggregate that was written to the sink to the checkpoint journal, if there is one. */
+    private void checkpoint(String clusterKey, int records, long buildNumber, RecordSink sink) {
+        if (checkpoints == null) {
+            return;
+        }
+        boolean sequential = buildNumbers == null || !buildNumbers.isDeterministic() || clusterKey == null;
+        try {
+            checkpoints.aggregateWritten(clusterKey, records, buildNumber, sequential, sink.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Iterates over the records of a reader. */
+    public static Iterator<Record> records(MarcReader reader) {
+        return new Iterator<Record>() {
+            @Override
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                return reader.next();
+            }
+        };
+    }
+}
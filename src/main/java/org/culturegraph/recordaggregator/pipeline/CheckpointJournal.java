@@ -0,0 +1,227 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Records the progress of a run periodically, so that an interrupted run can be resumed instead of repeated.
+ *
+ * <P> A checkpoint is taken after every {@link #getInterval()} aggregates and when the journal is closed. It holds the
+ * number of records and aggregates written so far, the cluster key of the last group, the next sequential build
+ * number and the position in the output after the last aggregate. Before a checkpoint is appended, the output is
+ * flushed, so that everything up to the position is in the file. With <i>sync</i> the output and the journal are also
+ * forced to the disk, which survives a crash of the host instead of only the process.
+ *
+ * <P> The journal is a file of length prefixed entries with a CRC-32 each, see {@link #last(Path)}. Entries are
+ * only appended; an entry torn by a crash is cut short or fails its checksum and is ignored. The cluster key is
+ * stored as length prefixed UTF-8, so keys of any length can be journaled.
+ */
+public class CheckpointJournal implements Closeable {
+
+    public static final int DEFAULT_INTERVAL = 10_000;
+
+    private static final int MAGIC = 0x4347434B;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 8;
+
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final Flushable output;
+    private final int interval;
+    private final boolean sync;
+    private final ByteArrayOutputStream entry;
+    private long records;
+    private long aggregates;
+    private long nextBuildNumber;
+    private String clusterKey;
+    private long outputPosition;
+    private long sinceCheckpoint;
+    private boolean closed;
+
+    /**
+     * Starts a new journal or continues the journal of the run that is resumed from <i>resumed</i>.
+     * @param output Flushes and, with <i>sync</i>, forces the output to the disk before a checkpoint is taken.
+     */
+    public CheckpointJournal(Path path, Checkpoint resumed, Flushable output, int interval, boolean sync)
+            throws IOException {
+        this.file = new FileOutputStream(path.toFile(), resumed != null);
+        if (resumed != null) {
+            // Drop a torn entry after the checkpoint, so that the entries appended next can be read
+            file.getChannel().truncate(resumed.journalLength);
+        }
+        this.out = new DataOutputStream(file);
+        this.output = output;
+        this.interval = interval;
+        this.sync = sync;
+        this.entry = new ByteArrayOutputStream();
+        if (resumed == null) {
+            this.nextBuildNumber = 1;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } else {
+            this.records = resumed.records;
+            this.aggregates = resumed.aggregates;
+            this.nextBuildNumber = resumed.nextBuildNumber;
+            this.clusterKey = resumed.clusterKey;
+            this.outputPosition = resumed.outputPosition;
+        }
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Counts an aggregate that was passed to the output and takes a checkpoint if the interval is over.
+     * @param sequential Whether the build number was counted rather than derived from the cluster key.
+     */
+    void aggregateWritten(String clusterKey, int records, long buildNumber, boolean sequential, long outputPosition)
+            throws IOException {
+        this.records += records;
+        this.aggregates += 1;
+        this.clusterKey = clusterKey;
+        if (sequential) {
+            this.nextBuildNumber = buildNumber + 1;
+        }
+        this.outputPosition = outputPosition;
+        if (++sinceCheckpoint >= interval) {
+            checkpoint();
+        }
+    }
+
+    /** Takes a checkpoint of the aggregates written since the last one. */
+    public void checkpoint() throws IOException {
+        if (sinceCheckpoint == 0) {
+            return;
+        }
+        output.flush();
+
+        entry.reset();
+        DataOutputStream data = new DataOutputStream(entry);
+        data.writeLong(records);
+        data.writeLong(aggregates);
+        data.writeLong(nextBuildNumber);
+        data.writeLong(outputPosition);
+        // Unlike writeUTF, a length prefixed array holds keys of any length
+        byte[] key = clusterKey == null ? null : clusterKey.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(key == null ? -1 : key.length);
+        if (key != null) {
+            data.write(key);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(entry.toByteArray());
+
+        out.writeInt(entry.size());
+        entry.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        if (sync) {
+            file.getFD().sync();
+        }
+        sinceCheckpoint = 0;
+    }
+
+    /** Takes a last checkpoint and closes the journal; the output is not closed. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            checkpoint();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the last complete checkpoint of a journal.
+     * @return The checkpoint or <code>null</code> if the journal does not exist or contains none.
+     */
+    public static Checkpoint last(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        Checkpoint last = null;
+        long length = HEADER_LENGTH;
+        long size = Files.size(path);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint journal of version " + VERSION + ": " + path);
+            }
+            while (true) {
+                int entryLength = in.readInt();
+                if (entryLength < 0 || entryLength > size - length - 8) {
+                    // A torn entry
+                    return last;
+                }
+                byte[] bytes = new byte[entryLength];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (in.readInt() != (int) crc.getValue()) {
+                    return last;
+                }
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+                long records = data.readLong();
+                long aggregates = data.readLong();
+                long nextBuildNumber = data.readLong();
+                long outputPosition = data.readLong();
+                int keyLength = data.readInt();
+                String clusterKey = null;
+                if (keyLength >= 0) {
+                    byte[] key = new byte[keyLength];
+                    data.readFully(key);
+                    clusterKey = new String(key, StandardCharsets.UTF_8);
+                }
+                length += 4 + entryLength + 4;
+                last = new Checkpoint(records, aggregates, nextBuildNumber, clusterKey, outputPosition, length);
+            }
+        } catch (EOFException e) {
+            return last;
+        }
+    }
+
+    /** The progress of a run after an aggregate. */
+    public static final class Checkpoint {
+        /** Records read from the input and aggregated */
+        public final long records;
+        public final long aggregates;
+        /** The build number of the next group that is numbered sequentially */
+        public final long nextBuildNumber;
+        /** The cluster key of the last aggregate, <code>null</code> if it had none */
+        public final String clusterKey;
+        /** Bytes of the output up to the end of the last aggregate */
+        public final long outputPosition;
+        /** Bytes of the journal up to the end of the checkpoint */
+        final long journalLength;
+
+        Checkpoint(long records, long aggregates, long nextBuildNumber, String clusterKey, long outputPosition,
+                   long journalLength) {
+            this.records = records;
+            this.aggregates = aggregates;
+            this.nextBuildNumber = nextBuildNumber;
+            this.clusterKey = clusterKey;
+            this.outputPosition = outputPosition;
+            this.journalLength = journalLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint after " + records + " records, " + aggregates + " aggregates, cluster "
+                    + clusterKey + ", output position " + outputPosition;
+        }
+    }
+}
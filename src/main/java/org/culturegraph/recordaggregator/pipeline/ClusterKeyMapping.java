@@ -0,0 +1,349 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A sidecar mapping from record id to cluster key that is looked up on disk instead of being loaded into the heap.
+ *
+ * <P> The mapping has one tab separated pair of record id and cluster key per line. If the lines are sorted by the
+ * UTF-8 bytes of the record ids, the file is mapped into memory as it is; otherwise a sorted copy is written to the
+ * temporary directory first, sorting runs of at most {@link #DEFAULT_MEMORY} bytes and merging at most
+ * {@value #MAX_FAN_IN} runs at a time. A lookup is a binary search over the lines, so memory use does not depend on
+ * the size of the mapping. If a record id occurs more than once, its last line applies. Lookups may run concurrently.
+ */
+public final class ClusterKeyMapping implements Closeable {
+
+    public static final long DEFAULT_MEMORY = 64L << 20;
+
+    static final int MAX_FAN_IN = 64;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+    /** Estimated heap overhead of a buffered line besides its bytes */
+    private static final int LINE_OVERHEAD = 32;
+    private static final Comparator<byte[]> BY_ID = ClusterKeyMapping::compareIds;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final Path sortedCopy;
+
+    private ClusterKeyMapping(FileChannel channel, MappedByteBuffer[] segments, long size, Path sortedCopy) {
+        this.channel = channel;
+        this.segments = segments;
+        this.size = size;
+        this.sortedCopy = sortedCopy;
+    }
+
+    public static ClusterKeyMapping open(Path path, Path tempDirectory) throws IOException {
+        return open(path, tempDirectory, DEFAULT_MEMORY);
+    }
+
+    /** @param memory Approximate number of heap bytes used to sort a mapping that is not sorted. */
+    static ClusterKeyMapping open(Path path, Path tempDirectory, long memory) throws IOException {
+        Path sortedCopy = isSorted(path) ? null : sort(path, tempDirectory, memory);
+        FileChannel channel = FileChannel.open(sortedCopy != null ? sortedCopy : path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) (size >>> SEGMENT_SHIFT) + 1];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, 1L << SEGMENT_SHIFT));
+            }
+            return new ClusterKeyMapping(channel, segments, size, sortedCopy);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (sortedCopy != null) {
+                Files.deleteIfExists(sortedCopy);
+            }
+            throw e;
+        }
+    }
+
+    /** @return The cluster key of the record or <code>null</code> if the mapping does not contain the record id. */
+    public String get(String recordId) {
+        byte[] id = recordId.getBytes(StandardCharsets.UTF_8);
+        // Lines before low have ids up to the id, lines from high on have greater ids
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long line = lineStart((low + high) >>> 1);
+            if (compareId(line, id) <= 0) {
+                low = lineEnd(line) + 1;
+            } else {
+                high = line;
+            }
+        }
+        if (low == 0) {
+            return null;
+        }
+        long line = lineStart(low - 1);
+        if (compareId(line, id) != 0) {
+            return null;
+        }
+        long start = line + id.length + 1;
+        long end = lineEnd(line);
+        if (end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+        byte[] key = new byte[(int) (end - start)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = byteAt(start + i);
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /** Releases the file and deletes the sorted copy; the mapped segments are released by the garbage collector. */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (sortedCopy != null) {
+                Files.deleteIfExists(sortedCopy);
+            }
+        }
+    }
+
+    private byte byteAt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    /** Returns the start of the line that contains the position. */
+    private long lineStart(long position) {
+        while (position > 0 && byteAt(position - 1) != '\n') {
+            position--;
+        }
+        return position;
+    }
+
+    /** Returns the position of the line feed that ends the line, or the size of the file for the last line. */
+    private long lineEnd(long position) {
+        while (position < size && byteAt(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    /** Compares the record id of a line with the UTF-8 bytes of a record id like unsigned bytes. */
+    private int compareId(long line, byte[] id) {
+        for (int i = 0; ; i++) {
+            byte b = line + i < size ? byteAt(line + i) : (byte) '\n';
+            boolean endOfId = b == '\t' || b == '\n';
+            if (endOfId || i == id.length) {
+                return (endOfId ? 0 : 1) - (i == id.length ? 0 : 1);
+            }
+            int comparison = (b & 0xFF) - (id[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+    }
+
+    /** Checks the format of the lines and whether they are sorted by record id. */
+    private static boolean isSorted(Path path) throws IOException {
+        boolean sorted = true;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), FILE_BUFFER_SIZE)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] previous = null;
+            byte[] line;
+            int lineNumber = 0;
+            while ((line = readLine(in, buffer)) != null) {
+                lineNumber++;
+                if (line.length == 0) {
+                    // Empty lines are dropped by the sorted copy
+                    sorted = false;
+                    continue;
+                }
+                if (indexOfTab(line) < 0) {
+                    throw new IOException(path + ":" + lineNumber
+                            + ": expected record id and cluster key separated by a tab");
+                }
+                if (previous != null && compareIds(previous, line) > 0) {
+                    sorted = false;
+                }
+                previous = line;
+            }
+        }
+        return sorted;
+    }
+
+    /** Writes the lines sorted by record id to a temporary file; lines with equal ids keep their order. */
+    private static Path sort(Path path, Path tempDirectory, long memory) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        try {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path), FILE_BUFFER_SIZE)) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                List<byte[]> lines = new ArrayList<>();
+                long bufferedBytes = 0;
+                byte[] line;
+                while ((line = readLine(in, buffer)) != null) {
+                    if (line.length == 0) {
+                        continue;
+                    }
+                    lines.add(line);
+                    bufferedBytes += line.length + LINE_OVERHEAD;
+                    if (bufferedBytes >= memory) {
+                        runs.add(spill(lines, tempDirectory));
+                        bufferedBytes = 0;
+                    }
+                }
+                if (!lines.isEmpty() || runs.isEmpty()) {
+                    runs.add(spill(lines, tempDirectory));
+                }
+            }
+            while (runs.size() > 1) {
+                List<Path> merged = new ArrayList<>();
+                try {
+                    for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                        List<Path> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                        merged.add(merge(group, tempDirectory));
+                        for (Path run: group) {
+                            Files.delete(run);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    for (Path run: merged) {
+                        Files.deleteIfExists(run);
+                    }
+                    throw e;
+                }
+                runs = merged;
+            }
+            return runs.remove(0);
+        } finally {
+            for (Path run: runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private static Path spill(List<byte[]> lines, Path tempDirectory) throws IOException {
+        lines.sort(BY_ID);
+        Path run = Files.createTempFile(tempDirectory, "cluster-map", ".run");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run), FILE_BUFFER_SIZE)) {
+            for (byte[] line: lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        lines.clear();
+        return run;
+    }
+
+    /** Merges sorted runs; of lines with equal ids, those of earlier runs come first. */
+    private static Path merge(List<Path> runs, Path tempDirectory) throws IOException {
+        Path merged = Files.createTempFile(tempDirectory, "cluster-map", ".run");
+        List<Cursor> cursors = new ArrayList<>();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(merged), FILE_BUFFER_SIZE)) {
+            PriorityQueue<Cursor> queue = new PriorityQueue<>((c1, c2) -> {
+                int comparison = compareIds(c1.line, c2.line);
+                return comparison != 0 ? comparison : Integer.compare(c1.run, c2.run);
+            });
+            for (Path run: runs) {
+                Cursor cursor = new Cursor(cursors.size(), run);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                out.write(cursor.line);
+                out.write('\n');
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(merged);
+            throw e;
+        } finally {
+            for (Cursor cursor: cursors) {
+                cursor.in.close();
+            }
+        }
+        return merged;
+    }
+
+    /** Reads a line without its line feed and a trailing carriage return; returns <code>null</code> at the end. */
+    private static byte[] readLine(InputStream in, ByteArrayOutputStream buffer) throws IOException {
+        buffer.reset();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            buffer.write(b);
+        }
+        if (b < 0 && buffer.size() == 0) {
+            return null;
+        }
+        byte[] line = buffer.toByteArray();
+        int length = line.length;
+        if (length > 0 && line[length - 1] == '\r') {
+            byte[] trimmed = new byte[length - 1];
+            System.arraycopy(line, 0, trimmed, 0, length - 1);
+            return trimmed;
+        }
+        return line;
+    }
+
+    private static int indexOfTab(byte[] line) {
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the record ids of two lines like unsigned bytes. */
+    private static int compareIds(byte[] line1, byte[] line2) {
+        int end1 = indexOfTab(line1);
+        int end2 = indexOfTab(line2);
+        int common = Math.min(end1, end2);
+        for (int i = 0; i < common; i++) {
+            int comparison = (line1[i] & 0xFF) - (line2[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return end1 - end2;
+    }
+
+    /** The current line of a sorted run. */
+    private static final class Cursor {
+        final int run;
+        final InputStream in;
+        final ByteArrayOutputStream buffer;
+        byte[] line;
+
+        Cursor(int run, Path path) throws IOException {
+            this.run = run;
+            this.in = new BufferedInputStream(Files.newInputStream(path), FILE_BUFFER_SIZE);
+            this.buffer = new ByteArrayOutputStream();
+        }
+
+        /** Moves to the next line; returns <code>false</code> at the end of the run. */
+        boolean next() throws IOException {
+            line = readLine(in, buffer);
+            return line != null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.util.Map;
+import java.util.function.Function;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+/**
+ * Functions that read the cluster key of a record.
+ *
+ * <P> Each function returns <code>null</code> if a record has no cluster key.
+ */
+public class ClusterKeys {
+
+    private ClusterKeys() {
+    }
+
+    /**
+     * Parses a field specification: a control field tag (<code>001</code>) or a data field tag followed by a
+     * subfield code (<code>035$a</code>).
+     */
+    public static Function<Record,String> field(String specification) {
+        int separator = specification.indexOf('$');
+        if (separator < 0) {
+            return controlField(specification);
+        }
+        if (separator != specification.length() - 2) {
+            throw new IllegalArgumentException("Expected TAG or TAG$CODE, but was " + specification);
+        }
+        return subfield(specification.substring(0, separator), specification.charAt(separator + 1));
+    }
+
+    /** Uses the data of the first control field with the tag. */
+    public static Function<Record,String> controlField(String tag) {
+        return record -> {
+            VariableField field = record.getVariableField(tag);
+            return field instanceof ControlField ? ((ControlField) field).getData() : null;
+        };
+    }
+
+    /** Uses the first subfield with the code of the first data field with the tag that has such a subfield. */
+    public static Function<Record,String> subfield(String tag, char code) {
+        return record -> {
+            for (VariableField field: record.getVariableFields(tag)) {
+                if (field instanceof DataField) {
+                    Subfield sf = ((DataField) field).getSubfield(code);
+                    if (sf != null) {
+                        return sf.getData();
+                    }
+                }
+            }
+            return null;
+        };
+    }
+
+    /** Looks up the control number (<i>001</i>) of a record in a mapping from record id to cluster key. */
+    public static Function<Record,String> mapping(Map<String,String> clusterKeyByRecordId) {
+        return mapping(clusterKeyByRecordId::get);
+    }
+
+    /**
+     * Looks up the control number (<i>001</i>) of a record with a function from record id to cluster key, for
+     * example {@link ClusterKeyMapping#get(String)}.
+     */
+    public static Function<Record,String> mapping(Function<String,String> clusterKeyOfRecordId) {
+        return record -> {
+            String id = record.getControlNumber();
+            return id == null ? null : clusterKeyOfRecordId.apply(id);
+        };
+    }
+}
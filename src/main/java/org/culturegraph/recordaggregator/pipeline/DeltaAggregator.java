@@ -0,0 +1,97 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.marc4j.marc.Record;
+
+/**
+ * Updates single aggregates when one of their member records is added, changed or deleted.
+ *
+ * <P> The members of every aggregate are kept in an {@link AggregateStateStore}. A change of one member updates the
+ * stored state of its aggregate and rebuilds the aggregate from the stored members, without reading the input of any
+ * other aggregate. The aggregate is rebuilt by the builder rather than patched, because the field links of a member
+ * depend on the members added before it; the result is the same record a full run over the members would build.
+ * The control number of an aggregate is derived from the build number of its state and does not change with updates.
+ *
+ * <P> Members are identified by their control number (<i>001</i>).
+ */
+public class DeltaAggregator {
+
+    private final AggregateStateStore store;
+    private final AggregatedRecordBuilderImpl builder;
+
+    public DeltaAggregator(AggregateStateStore store, AggregatedRecordBuilderImpl builder) {
+        this.store = store;
+        this.builder = builder;
+    }
+
+    /**
+     * Adds the record to the aggregate of the cluster key or replaces the member with the same control number.
+     * @return The updated aggregate.
+     */
+    public Record put(String clusterKey, Record record) throws IOException {
+        AggregateState state = store.load(clusterKey);
+        if (state == null) {
+            state = store.newState();
+        }
+        state.put(memberId(record), record);
+        store.save(clusterKey, state);
+        return build(state);
+    }
+
+    /**
+     * Replaces all members of the aggregate of the cluster key, keeping its build number.
+     * @return The aggregate of the new members.
+     */
+    public Record putAll(String clusterKey, List<Record> records) throws IOException {
+        AggregateState previous = store.load(clusterKey);
+        AggregateState state = previous == null ? store.newState() : new AggregateState(previous.getBuildNumber());
+        for (Record record: records) {
+            state.put(memberId(record), record);
+        }
+        store.save(clusterKey, state);
+        return build(state);
+    }
+
+    /**
+     * Removes a member from the aggregate of the cluster key. An aggregate without members is deleted from the store.
+     * @return The updated aggregate or <code>null</code> if the aggregate has no members left or did not exist.
+     */
+    public Record remove(String clusterKey, String memberId) throws IOException {
+        AggregateState state = store.load(clusterKey);
+        if (state == null) {
+            return null;
+        }
+        if (state.remove(memberId)) {
+            if (state.isEmpty()) {
+                store.delete(clusterKey);
+                return null;
+            }
+            store.save(clusterKey, state);
+        }
+        return build(state);
+    }
+
+    /** @return The current aggregate of the cluster key or <code>null</code> if the store has none. */
+    public Record aggregate(String clusterKey) throws IOException {
+        AggregateState state = store.load(clusterKey);
+        return state == null ? null : build(state);
+    }
+
+    private Record build(AggregateState state) {
+        for (Record member: state.records()) {
+            builder.add(member);
+        }
+        return builder.build(state.getBuildNumber());
+    }
+
+    private static String memberId(Record record) {
+        String id = record.getControlNumber();
+        if (id == null) {
+            throw new IllegalArgumentException("Member record without control number (001)");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,326 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.marc4j.marc.Record;
+
+/**
+ * Groups records by cluster key when the input is in arbitrary order and may not fit into memory.
+ *
+ * <P> Added records are serialized with a {@link RecordCodec} and buffered until the memory budget is exhausted.
+ * The buffer is then sorted by cluster key and spilled as a run to a temporary file. {@link #groups()} merges all
+ * runs and returns the groups ordered by cluster key. Within a group the records keep their input order.
+ *
+ * <P> At most {@value #DEFAULT_MAX_FAN_IN} runs are read at a time: if there are more, consecutive runs are merged
+ * into longer runs in further passes first, so the number of open files does not depend on the size of the input.
+ */
+public class ExternalGroupSorter implements AutoCloseable {
+
+    /** Estimated heap overhead of a buffered entry besides the record bytes and the key characters. */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private static final Comparator<Entry> BY_KEY = Comparator.comparing(entry -> entry.key);
+
+    private final Path tempDirectory;
+    private final long memoryBudget;
+    private final RecordCodec codec;
+    private final int maxFanIn;
+    private final List<Path> runs;
+    /** Sources of the groups that are being iterated, closed by {@link #close()} */
+    private final List<EntryIterator> sources;
+
+    private List<Entry> buffer;
+    private long bufferedBytes;
+    private boolean finished;
+
+    /**
+     * @param tempDirectory Directory for the temporary run files.
+     * @param memoryBudget Approximate number of heap bytes used for buffering records.
+     */
+    public ExternalGroupSorter(Path tempDirectory, long memoryBudget) {
+        this(tempDirectory, memoryBudget, DEFAULT_MAX_FAN_IN);
+    }
+
+    /** @param maxFanIn Maximal number of runs that are merged at a time, at least 2. */
+    ExternalGroupSorter(Path tempDirectory, long memoryBudget, int maxFanIn) {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("Expected a fan-in of at least 2, but was " + maxFanIn);
+        }
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+        this.codec = new RecordCodec();
+        this.maxFanIn = maxFanIn;
+        this.runs = new ArrayList<>();
+        this.sources = new ArrayList<>();
+        this.buffer = new ArrayList<>();
+    }
+
+    public void add(String clusterKey, Record record) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Records can not be added after the groups were requested");
+        }
+        if (clusterKey == null) {
+            throw new IllegalArgumentException("Record " + record.getControlNumber() + " has no cluster key");
+        }
+
+        Entry entry = new Entry(clusterKey, codec.encode(record));
+        buffer.add(entry);
+        bufferedBytes += entry.bytes.length + 2L * clusterKey.length() + ENTRY_OVERHEAD;
+
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /** Number of runs spilled to temporary files so far. */
+    public int runCount() {
+        return runs.size();
+    }
+
+    /** Finishes the input and returns all groups ordered by cluster key. */
+    public Iterator<List<Record>> groups() throws IOException {
+        return RecordGroups.values(keyedGroups());
+    }
+
+    /** Finishes the input and returns all groups with their cluster key, ordered by cluster key. */
+    public Iterator<Map.Entry<String,List<Record>>> keyedGroups() throws IOException {
+        finished = true;
+        buffer.sort(BY_KEY);
+
+        // The buffer is merged with the runs as well
+        while (runs.size() > maxFanIn - 1) {
+            mergePass();
+        }
+        for (Path run: runs) {
+            sources.add(new RunReader(run));
+        }
+        sources.add(new BufferIterator(buffer));
+        buffer = new ArrayList<>();
+
+        return new GroupIterator(sources);
+    }
+
+    /** Closes the runs that are being read and deletes all temporary files. */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (EntryIterator source: sources) {
+                source.close();
+            }
+            sources.clear();
+        } finally {
+            for (Path run: runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+
+    /** Merges each <i>maxFanIn</i> consecutive runs into one, so that equal keys stay in input order. */
+    private void mergePass() throws IOException {
+        List<Path> merged = new ArrayList<>();
+        try {
+            for (int i = 0; i < runs.size(); i += maxFanIn) {
+                merged.add(merge(runs.subList(i, Math.min(i + maxFanIn, runs.size()))));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path run: merged) {
+                Files.deleteIfExists(run);
+            }
+            throw e;
+        }
+        for (Path run: runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    private Path merge(List<Path> group) throws IOException {
+        Path merged = Files.createTempFile(tempDirectory, "aggregator-run-", ".bin");
+        List<EntryIterator> readers = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(merged), FILE_BUFFER_SIZE))) {
+            for (Path run: group) {
+                readers.add(new RunReader(run));
+            }
+            PriorityQueue<EntryIterator> heap = heap(readers);
+            while (!heap.isEmpty()) {
+                EntryIterator source = heap.poll();
+                write(out, source.current);
+                source.advance();
+                if (source.current != null) {
+                    heap.add(source);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(merged);
+            throw e;
+        } finally {
+            for (EntryIterator reader: readers) {
+                reader.close();
+            }
+        }
+        return merged;
+    }
+
+    /** Orders the sources by their current key and then by index; exhausted sources are closed and left out. */
+    private static PriorityQueue<EntryIterator> heap(List<EntryIterator> sources) throws IOException {
+        PriorityQueue<EntryIterator> heap = new PriorityQueue<>(Math.max(1, sources.size()),
+                Comparator.<EntryIterator,String>comparing(source -> source.current.key)
+                        .thenComparingInt(source -> source.index));
+        for (int i = 0; i < sources.size(); i++) {
+            EntryIterator source = sources.get(i);
+            source.index = i;
+            if (source.current != null) {
+                heap.add(source);
+            } else {
+                source.close();
+            }
+        }
+        return heap;
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        RecordCodec.writeString(out, entry.key);
+        RecordCodec.writeVarInt(out, entry.bytes.length);
+        out.write(entry.bytes);
+    }
+
+    private void spill() throws IOException {
+        // The sort is stable, so records of a cluster keep their input order within the run
+        buffer.sort(BY_KEY);
+
+        Path run = Files.createTempFile(tempDirectory, "aggregator-run-", ".bin");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), FILE_BUFFER_SIZE))) {
+            for (Entry entry: buffer) {
+                write(out, entry);
+            }
+        }
+
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    private static class Entry {
+        final String key;
+        final byte[] bytes;
+
+        Entry(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /** A sorted source of entries; {@link #current} is <code>null</code> once the source is exhausted. */
+    private abstract static class EntryIterator {
+        Entry current;
+        int index;
+
+        abstract void advance() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static class BufferIterator extends EntryIterator {
+        private final Iterator<Entry> entries;
+
+        BufferIterator(List<Entry> entries) {
+            this.entries = entries.iterator();
+            advance();
+        }
+
+        @Override
+        void advance() {
+            current = entries.hasNext() ? entries.next() : null;
+        }
+    }
+
+    private static class RunReader extends EntryIterator {
+        private final DataInputStream in;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), FILE_BUFFER_SIZE));
+            advance();
+        }
+
+        @Override
+        void advance() throws IOException {
+            String key;
+            try {
+                key = RecordCodec.readString(in);
+            } catch (EOFException e) {
+                current = null;
+                in.close();
+                return;
+            }
+            byte[] bytes = new byte[RecordCodec.readVarInt(in)];
+            in.readFully(bytes);
+            current = new Entry(key, bytes);
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Merges the runs with a heap; ties are broken by run index, which preserves the input order. */
+    private class GroupIterator implements Iterator<Map.Entry<String,List<Record>>> {
+        private final PriorityQueue<EntryIterator> heap;
+
+        GroupIterator(List<EntryIterator> sources) throws IOException {
+            this.heap = heap(sources);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String,List<Record>> next() {
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+
+            String key = heap.peek().current.key;
+            List<Record> group = new ArrayList<>();
+            try {
+                while (!heap.isEmpty() && heap.peek().current.key.equals(key)) {
+                    EntryIterator source = heap.poll();
+                    group.add(codec.decode(source.current.bytes));
+                    source.advance();
+                    if (source.current != null) {
+                        heap.add(source);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(key, group);
+        }
+    }
+}
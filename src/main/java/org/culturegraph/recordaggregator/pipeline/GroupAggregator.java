@@ -0,0 +1,185 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.BuildNumberAllocator;
+import org.marc4j.marc.Record;
+
+/**
+ * Aggregates many groups of records in parallel.
+ *
+ * <P> Each group becomes a task of a work-stealing {@link ForkJoinPool}. Every worker thread owns a builder, so a
+ * large group only occupies the worker that builds it while idle workers steal the following groups.
+ *
+ * <P> Aggregates are passed to the sink in input order and the <i>n</i>-th group receives the build number
+ * <i>n</i>, independent of the number of threads. With a {@link BuildNumberAllocator} the build numbers are taken
+ * from the allocator in input order instead, or derived from the cluster keys if the allocator is deterministic.
+ */
+public class GroupAggregator implements AutoCloseable {
+
+    /** Number of groups per thread that may be aggregated ahead of the oldest pending group. */
+    private static final int PENDING_GROUPS_PER_THREAD = 64;
+
+    private final ForkJoinPool pool;
+    private final ThreadLocal<AggregatedRecordBuilderImpl> builders;
+    private final int maxPendingGroups;
+    private BuildNumberAllocator buildNumbers;
+
+    public GroupAggregator(Supplier<AggregatedRecordBuilderImpl> builderSupplier, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive, but was " + parallelism);
+        }
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.builders = ThreadLocal.withInitial(builderSupplier);
+        this.maxPendingGroups = parallelism * PENDING_GROUPS_PER_THREAD;
+    }
+
+    /**
+     * Numbers the aggregates with the allocator, which may be shared with other aggregators, threads or later runs.
+     */
+    public void setBuildNumberAllocator(BuildNumberAllocator buildNumbers) {
+        this.buildNumbers = buildNumbers;
+    }
+
+    /** Aggregates a stream of (cluster key, record) pairs, see {@link RecordGroups#adjacent(Iterator)}. */
+    public <K> long aggregateClustered(Iterator<? extends Map.Entry<K,Record>> clusteredRecords, Consumer<Record> sink) {
+        return aggregateKeyed(RecordGroups.keyed(clusteredRecords), sink);
+    }
+
+    public long aggregate(Iterable<List<Record>> groups, Consumer<Record> sink) {
+        return aggregate(groups.iterator(), sink);
+    }
+
+    /**
+     * Aggregates each group and passes the aggregates to the sink in input order.
+     * @return Number of aggregated groups.
+     */
+    public long aggregate(Iterator<List<Record>> groups, Consumer<Record> sink) {
+        return aggregateKeyed(new Iterator<Map.Entry<Object,List<Record>>>() {
+            @Override
+            public boolean hasNext() {
+                return groups.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Object,List<Record>> next() {
+                return new AbstractMap.SimpleImmutableEntry<>(null, groups.next());
+            }
+        }, sink);
+    }
+
+    /**
+     * Aggregates groups with their cluster keys, which only matter for a deterministic {@link BuildNumberAllocator}.
+     * @return Number of aggregated groups.
+     */
+    public <K> long aggregateKeyed(Iterator<Map.Entry<K,List<Record>>> groups, Consumer<Record> sink) {
+        return aggregateKeyed(groups, (clusterKey, records, buildNumber, aggregate) -> sink.accept(aggregate));
+    }
+
+    /**
+     * Aggregates groups and passes each aggregate in input order to the sink, together with the cluster key, the
+     * number of records and the build number of its group.
+     * @return Number of aggregated groups.
+     */
+    public <K> long aggregateKeyed(Iterator<Map.Entry<K,List<Record>>> groups, KeyedSink<? super K> sink) {
+        ArrayDeque<Pending<K>> pending = new ArrayDeque<>();
+        long count = 0;
+
+        try {
+            while (groups.hasNext()) {
+                Map.Entry<K,List<Record>> group = groups.next();
+                count += 1;
+                long buildNumber = buildNumber(group.getKey(), count);
+                pending.add(new Pending<>(group.getKey(), group.getValue().size(), buildNumber,
+                        pool.submit(newTask(group.getValue(), buildNumber))));
+
+                // Emit finished aggregates without waiting, wait only if too many groups are pending
+                while (!pending.isEmpty() && (pending.peek().task.isDone() || pending.size() >= maxPendingGroups)) {
+                    emit(pending.poll(), sink);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                emit(pending.poll(), sink);
+            }
+        } finally {
+            pending.forEach(group -> group.task.cancel(false));
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private long buildNumber(Object clusterKey, long count) {
+        if (buildNumbers == null) {
+            return count;
+        }
+        return buildNumbers.numberOf(clusterKey == null ? null : clusterKey.toString());
+    }
+
+    private ForkJoinTask<Record> newTask(List<Record> group, long buildNumber) {
+        return ForkJoinTask.adapt(() -> {
+            AggregatedRecordBuilderImpl builder = builders.get();
+            try {
+                group.forEach(builder::add);
+                return builder.build(buildNumber);
+            } catch (RuntimeException | Error e) {
+                builder.reset();
+                throw e;
+            }
+        });
+    }
+
+    private static <K> void emit(Pending<K> group, KeyedSink<? super K> sink) {
+        sink.accept(group.clusterKey, group.records, group.buildNumber, join(group.task));
+    }
+
+    private static Record join(ForkJoinTask<Record> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an aggregate", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /** Receives the aggregates of {@link #aggregateKeyed(Iterator, KeyedSink)}. */
+    @FunctionalInterface
+    public interface KeyedSink<K> {
+        void accept(K clusterKey, int records, long buildNumber, Record aggregate);
+    }
+
+    /** A group that is being aggregated. */
+    private static final class Pending<K> {
+        final K clusterKey;
+        final int records;
+        final long buildNumber;
+        final ForkJoinTask<Record> task;
+
+        Pending(K clusterKey, int records, long buildNumber, ForkJoinTask<Record> task) {
+            this.clusterKey = clusterKey;
+            this.records = records;
+            this.buildNumber = buildNumber;
+            this.task = task;
+        }
+    }
+}
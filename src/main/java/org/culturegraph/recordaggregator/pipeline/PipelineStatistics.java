@@ -0,0 +1,25 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+/** Counters of an {@link AggregationPipeline} run. */
+public class PipelineStatistics {
+    public final long records;
+    public final long aggregates;
+    public final long elapsedNanos;
+
+    public PipelineStatistics(long records, long aggregates, long elapsedNanos) {
+        this.records = records;
+        this.aggregates = aggregates;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /** Input records per second. */
+    public double recordsPerSecond() {
+        return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records, %d aggregates in %.1f s (%.0f records/s)",
+                records, aggregates, elapsedNanos / 1e9, recordsPerSecond());
+    }
+}
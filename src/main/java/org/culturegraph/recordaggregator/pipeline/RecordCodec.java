@@ -0,0 +1,145 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.culturegraph.recordaggregator.plugin.SharedMarcFactory;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+/**
+ * A compact binary serialization of records for temporary files.
+ *
+ * <P> Unlike ISO 2709 the encoding has no length limits and does not depend on the character coding of the leader.
+ * Strings are written as UTF-8 with a variable length prefix.
+ */
+public class RecordCodec {
+
+    private final MarcFactory factory;
+
+    public RecordCodec() {
+        this.factory = SharedMarcFactory.get();
+    }
+
+    public byte[] encode(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try {
+            write(record, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Record decode(byte[] bytes) {
+        try {
+            return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void write(Record record, DataOutput out) throws IOException {
+        writeString(out, record.getLeader().marshal());
+
+        List<ControlField> controlFields = record.getControlFields();
+        writeVarInt(out, controlFields.size());
+        for (ControlField cf: controlFields) {
+            writeString(out, cf.getTag());
+            writeString(out, cf.getData());
+        }
+
+        List<DataField> dataFields = record.getDataFields();
+        writeVarInt(out, dataFields.size());
+        for (DataField df: dataFields) {
+            writeDataField(df, out);
+        }
+    }
+
+    public void writeDataField(DataField df, DataOutput out) throws IOException {
+        writeString(out, df.getTag());
+        out.writeChar(df.getIndicator1());
+        out.writeChar(df.getIndicator2());
+
+        List<Subfield> subfields = df.getSubfields();
+        writeVarInt(out, subfields.size());
+        for (Subfield sf: subfields) {
+            out.writeChar(sf.getCode());
+            writeString(out, sf.getData());
+        }
+    }
+
+    public Record read(DataInput in) throws IOException {
+        Record record = factory.newRecord(readString(in));
+
+        int controlFields = readVarInt(in);
+        for (int i = 0; i < controlFields; i++) {
+            String tag = readString(in);
+            record.addVariableField(factory.newControlField(tag, readString(in)));
+        }
+
+        int dataFields = readVarInt(in);
+        for (int i = 0; i < dataFields; i++) {
+            record.addVariableField(readDataField(in));
+        }
+
+        return record;
+    }
+
+    public DataField readDataField(DataInput in) throws IOException {
+        String tag = readString(in);
+        char ind1 = in.readChar();
+        char ind2 = in.readChar();
+        DataField df = factory.newDataField(tag, ind1, ind2);
+
+        int subfields = readVarInt(in);
+        for (int j = 0; j < subfields; j++) {
+            char code = in.readChar();
+            df.addSubfield(factory.newSubfield(code, readString(in)));
+        }
+        return df;
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
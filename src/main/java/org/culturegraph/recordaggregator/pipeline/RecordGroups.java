@@ -0,0 +1,100 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.marc4j.marc.Record;
+
+/**
+ * Groups a stream of records by their cluster key.
+ *
+ * <P> Records of the same cluster have to be adjacent in the stream; a key that reappears later starts a new group.
+ * A record without a cluster key (<code>null</code>) forms a group of its own.
+ */
+public class RecordGroups {
+
+    private RecordGroups() {
+    }
+
+    /** Groups adjacent records with equal cluster keys. */
+    public static <K> Iterator<List<Record>> adjacent(Iterator<Record> records, Function<Record,K> clusterKey) {
+        return values(keyed(records, clusterKey));
+    }
+
+    /** Groups adjacent (cluster key, record) pairs with equal keys. */
+    public static <K> Iterator<List<Record>> adjacent(Iterator<? extends Map.Entry<K,Record>> clusteredRecords) {
+        return values(keyed(clusteredRecords));
+    }
+
+    /** Groups adjacent records with equal cluster keys and keeps the key of each group. */
+    public static <K> Iterator<Map.Entry<K,List<Record>>> keyed(Iterator<Record> records,
+                                                                 Function<Record,K> clusterKey) {
+        return keyed(new Iterator<Map.Entry<K,Record>>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K,Record> next() {
+                Record record = records.next();
+                return new AbstractMap.SimpleImmutableEntry<>(clusterKey.apply(record), record);
+            }
+        });
+    }
+
+    /** Groups adjacent (cluster key, record) pairs with equal keys and keeps the key of each group. */
+    public static <K> Iterator<Map.Entry<K,List<Record>>> keyed(
+            Iterator<? extends Map.Entry<K,Record>> clusteredRecords) {
+        return new Iterator<Map.Entry<K,List<Record>>>() {
+            private Map.Entry<K,Record> lookahead = clusteredRecords.hasNext() ? clusteredRecords.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return lookahead != null;
+            }
+
+            @Override
+            public Map.Entry<K,List<Record>> next() {
+                if (lookahead == null) {
+                    throw new NoSuchElementException();
+                }
+
+                K key = lookahead.getKey();
+                List<Record> group = new ArrayList<>();
+                group.add(lookahead.getValue());
+                lookahead = null;
+
+                while (clusteredRecords.hasNext()) {
+                    Map.Entry<K,Record> entry = clusteredRecords.next();
+                    if (key == null || !key.equals(entry.getKey())) {
+                        lookahead = entry;
+                        break;
+                    }
+                    group.add(entry.getValue());
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(key, group);
+            }
+        };
+    }
+
+    /** The groups of keyed groups. */
+    public static <K> Iterator<List<Record>> values(Iterator<Map.Entry<K,List<Record>>> keyedGroups) {
+        return new Iterator<List<Record>>() {
+            @Override
+            public boolean hasNext() {
+                return keyedGroups.hasNext();
+            }
+
+            @Override
+            public List<Record> next() {
+                return keyedGroups.next().getValue();
+            }
+        };
+    }
+}
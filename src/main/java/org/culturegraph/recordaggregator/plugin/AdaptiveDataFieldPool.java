@@ -0,0 +1,115 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Chooses how to merge when the pool is drained, by the number of records and data fields of the group.
+ *
+ * <P> Small groups are sorted like {@link SortingDataFieldPool}, larger ones merged in a hash table like
+ * {@link HashingDataFieldPool}. Very large groups are sorted and merged in parallel in the fork/join pool of the
+ * calling thread, or the common pool: the keys are computed in parallel, the keyed fields are sorted with the stable
+ * {@link Arrays#parallelSort(Object[], java.util.Comparator)}, and the sorted fields are merged in chunks. A chunk
+ * merges every run of equal keys that starts in it, also beyond its end, and skips a run that continues from the
+ * previous chunk. Only the first field of a run receives field links, so the chunks never modify the same field and
+ * the result is that of the sequential merge.
+ */
+class AdaptiveDataFieldPool implements DataFieldPool {
+
+    /** Groups with at most this many records are sorted. */
+    static final int SMALL_GROUP = 4;
+    /** Groups with at least this many data fields are merged in parallel. */
+    static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int CHUNK_SIZE = 1 << 12;
+
+    private final DataFieldComparator dataFieldComparator;
+    private final char fieldLinkCode;
+    private final int parallelThreshold;
+    private final int chunkSize;
+    private final SortingDataFieldPool sortingPool;
+    private final HashingDataFieldPool hashingPool;
+    private ArrayList<DataField> dataFields;
+    private int records;
+
+    AdaptiveDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+        this(dataFieldComparator, fieldLinkCode, PARALLEL_THRESHOLD, CHUNK_SIZE);
+    }
+
+    AdaptiveDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode, int parallelThreshold,
+                          int chunkSize) {
+        this.dataFieldComparator = dataFieldComparator;
+        this.fieldLinkCode = fieldLinkCode;
+        this.parallelThreshold = parallelThreshold;
+        this.chunkSize = chunkSize;
+        this.sortingPool = new SortingDataFieldPool(dataFieldComparator, fieldLinkCode);
+        this.hashingPool = new HashingDataFieldPool(dataFieldComparator, fieldLinkCode);
+        this.dataFields = new ArrayList<>();
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        this.dataFields.addAll(dataFields);
+        records += 1;
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        if (dataFields.size() >= parallelThreshold) {
+            mergeInParallel().forEach(consumer);
+        } else {
+            DataFieldPool pool = records <= SMALL_GROUP ? sortingPool : hashingPool;
+            pool.add(dataFields);
+            pool.drain(consumer);
+        }
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        dataFields = DataFieldPool.recycle(dataFields);
+        records = 0;
+    }
+
+    private List<DataField> mergeInParallel() {
+        List<DataField> fields = dataFields;
+        KeyedDataField[] keyed = new KeyedDataField[fields.size()];
+        Arrays.parallelSetAll(keyed, i -> {
+            DataField df = fields.get(i);
+            return new KeyedDataField(dataFieldComparator.keyOf(df), df);
+        });
+        Arrays.parallelSort(keyed, KeyedDataField.BY_KEY);
+
+        int chunks = (keyed.length + chunkSize - 1) / chunkSize;
+        List<List<DataField>> merged = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> mergeChunk(keyed, chunk * chunkSize, Math.min(keyed.length, (chunk + 1) * chunkSize)))
+                .collect(Collectors.toList());
+
+        List<DataField> result = new ArrayList<>();
+        merged.forEach(result::addAll);
+        return result;
+    }
+
+    /** Merges the runs of equal keys that start between <i>from</i> and <i>to</i>. */
+    private List<DataField> mergeChunk(KeyedDataField[] keyed, int from, int to) {
+        List<DataField> survivors = new ArrayList<>();
+        int i = from;
+        // The run continuing from the previous chunk is merged there
+        while (i > 0 && i < to && keyed[i].key.equals(keyed[i - 1].key)) {
+            i++;
+        }
+        while (i < to) {
+            KeyedDataField survivor = keyed[i++];
+            while (i < keyed.length && keyed[i].key.equals(survivor.key)) {
+                DataFieldPool.mergeFieldLinks(survivor.dataField, keyed[i++].dataField, fieldLinkCode);
+            }
+            survivors.add(survivor.dataField);
+        }
+        return survivors;
+    }
+}
@@ -1,10 +1,39 @@
 package org.culturegraph.recordaggregator.plugin;
 
 
+import java.util.EnumMap;
+
 import org.culturegraph.recordaggregator.core.entity.AggregatedRecordBuilder;
 
 public class AggregatedRecordBuilderFactory {
+
+    private static final ThreadLocal<EnumMap<MergeStrategy,AggregatedRecordBuilderImpl>> THREAD_BUILDERS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(MergeStrategy.class));
+
     public static AggregatedRecordBuilder newBuilder() {
         return new AggregatedRecordBuilderImpl();
     }
+
+    public static AggregatedRecordBuilder newBuilder(MergeStrategy mergeStrategy) {
+        return new AggregatedRecordBuilderImpl(mergeStrategy);
+    }
+
+    /**
+     * Returns the builder of the calling thread for a merge strategy, emptied by {@link AggregatedRecordBuilder#reset()}.
+     * <P> The builder is created on the first call of a thread and reused afterwards, together with the capacity it
+     * grew to. Settings like the build number prefix are kept from the previous use, so callers set them every time.
+     * A thread must not use the builder from two places at once.
+     * <P> Since the reset restarts the build numbers of the builder, its aggregates have to be numbered with
+     * {@link AggregatedRecordBuilderImpl#build(long)} or a {@link BuildNumberAllocator}; {@link
+     * AggregatedRecordBuilderImpl#build()} without an allocator throws an <code>IllegalStateException</code>.
+     */
+    public static AggregatedRecordBuilderImpl threadLocalBuilder(MergeStrategy mergeStrategy) {
+        AggregatedRecordBuilderImpl builder = THREAD_BUILDERS.get().computeIfAbsent(mergeStrategy, strategy -> {
+            AggregatedRecordBuilderImpl threadBuilder = new AggregatedRecordBuilderImpl(strategy);
+            threadBuilder.requireBuildNumbers();
+            return threadBuilder;
+        });
+        builder.reset();
+        return builder;
+    }
 }
@@ -1,13 +1,14 @@
 package org.culturegraph.recordaggregator.plugin;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import org.culturegraph.recordaggregator.core.entity.AggregatedRecordBuilder;
 import org.culturegraph.recordaggregator.core.entity.FieldLink;
+import org.culturegraph.recordaggregator.core.entity.FieldLinkTypes;
+import org.culturegraph.recordaggregator.metrics.MetricsSink;
+import org.culturegraph.recordaggregator.sink.RecordSink;
 import org.marc4j.marc.ControlField;
 import org.marc4j.marc.DataField;
 import org.marc4j.marc.MarcFactory;
@@ -17,31 +18,63 @@ import org.marc4j.marc.Subfield;
 public class AggregatedRecordBuilderImpl implements AggregatedRecordBuilder {
 
     private static String PROVENANCE = "p";
+    /** Links the fields of a record to its 035 before the links are shifted behind those of the previous records. */
+    private static final String RECORD_FIELD_LINK = FieldLink.asString(1, PROVENANCE);
     private static char FIELD_LINK_CODE = '8';
+    /** The default leader of marc4j records */
+    private static final String LEADER = "00000nam a2200000 a 4500";
 
-    private int buildNumber;
+    private long buildNumber;
+    private BuildNumberAllocator buildNumbers;
+    /** Whether {@link #build()} needs an allocator, because the builder is shared by unrelated groups */
+    private boolean pooled;
     private String prefix;
     private String suffix;
     private String catalogingAgency;
 
     private MarcFactory factory;
-    private List<Record> records;
-    private DataFieldComparator dataFieldComparator;
-    private Map<String,FieldLink> lastFieldLinks;
+    private boolean retainRecords;
+    private ArrayList<Record> records;
+    private int pooledRecords;
+    private int pooledDataFields;
+    private DataFieldPool dataFieldPool;
+    private FieldLinkTable fieldLinkTable;
+
+    private MetricsSink metrics;
+    /** Field links of the current record that could not be parsed */
+    private int invalidFieldLinks;
 
     public AggregatedRecordBuilderImpl() {
+        this(MergeStrategy.SORT);
+    }
+
+    public AggregatedRecordBuilderImpl(MergeStrategy mergeStrategy) {
+        this(mergeStrategy, SubfieldNormalizer.NONE);
+    }
+
+    /** Merges data fields that are equal after normalizing their subfields, see {@link SubfieldNormalizer}. */
+    public AggregatedRecordBuilderImpl(MergeStrategy mergeStrategy, SubfieldNormalizer normalizer) {
         this.buildNumber = 0;
         this.prefix = "";
         this.suffix = "";
         this.catalogingAgency = "";
 
-        this.factory = MarcFactory.newInstance();
+        this.factory = SharedMarcFactory.get();
+        this.retainRecords = mergeStrategy.retainsRecords();
         this.records = new ArrayList<>();
-        this.dataFieldComparator = new DataFieldComparator(FIELD_LINK_CODE);
-        /** Contains the last field link for each type */
-        this.lastFieldLinks = new HashMap<>();
+        this.pooledRecords = 0;
+        DataFieldComparator dataFieldComparator = new DataFieldComparator(FIELD_LINK_CODE, normalizer);
+        this.dataFieldPool = mergeStrategy.newPool(dataFieldComparator, FIELD_LINK_CODE);
+        /** Contains the highest field link number for each type */
+        this.fieldLinkTable = new FieldLinkTable();
+        this.metrics = MetricsSink.NOOP;
     }
 
+    /**
+     * Returns the records added since the last build.
+     * <P> Always empty for {@link MergeStrategy#INCREMENTAL}, which does not retain the added records. The list is
+     * emptied and reused by the next build.
+     */
     public List<Record> getRecords() {
         return records;
     }
@@ -58,101 +91,180 @@ public class AggregatedRecordBuilderImpl implements AggregatedRecordBuilder {
         this.catalogingAgency = catalogingAgency;
     }
 
+    /**
+     * Takes the build numbers of {@link #build()} from a shared allocator instead of counting per builder, so that
+     * builders running in parallel never produce the same control number. {@link #reset()} does not affect them.
+     */
+    public void setBuildNumberAllocator(BuildNumberAllocator buildNumbers) {
+        this.buildNumbers = buildNumbers;
+    }
+
+    /** Reports each added record and each built aggregate to the sink. */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void add(Record record) {
+        boolean measured = metrics != MetricsSink.NOOP;
+        long start = measured ? System.nanoTime() : 0;
+        invalidFieldLinks = 0;
+
         linkEachDataFieldToIdn(record);
 
-        if (records.isEmpty()) {
-            findMaxFieldLink(record.getDataFields(), lastFieldLinks);
+        if (pooledRecords == 0) {
+            findMaxFieldLink(record.getDataFields());
         } else {
-            incrementAllFieldLinks(record.getDataFields(), lastFieldLinks);
+            incrementAllFieldLinks(record.getDataFields());
+        }
+
+        if (retainRecords) {
+            records.add(record);
         }
+        pooledRecords += 1;
+        pooledDataFields += record.getDataFields().size();
+        dataFieldPool.add(record.getDataFields());
 
-        records.add(record);
+        if (measured) {
+            metrics.recordAdded(record.getDataFields().size(), invalidFieldLinks, System.nanoTime() - start);
+        }
     }
 
     @Override
     public Record build() {
-        buildNumber += 1;
+        if (buildNumbers != null) {
+            return build(buildNumbers.next());
+        }
+        return build(nextBuildNumber());
+    }
 
+    /**
+     * Builds an aggregated record that uses the given build number in its control number.
+     * <P> The build number of this builder is not advanced, which allows callers to number aggregates themselves.
+     */
+    public Record build(long buildNumber) {
         Record result = factory.newRecord();
 
-        List<DataField> allDataFields = records.stream()
-                .map(Record::getDataFields)
-                .flatMap(List::stream)
-                .sorted(dataFieldComparator)
-                .collect(Collectors.toList());
-
-        DataField lastDataField = null;
-        for (DataField df: allDataFields) {
-            if (lastDataField == null) {
-                lastDataField = df;
-                continue;
-            }
+        drain(result::addVariableField);
+        purge();
+
+        result.addVariableField(factory.newControlField("001", controlNumber(buildNumber)));
+        result.addVariableField(factory.newControlField("003", catalogingAgency));
+
+        return result;
+    }
 
-            if (dataFieldComparator.compare(lastDataField, df) == 0) {
-                df.getSubfields(FIELD_LINK_CODE).forEach(lastDataField::addSubfield);
-            } else {
-                result.addVariableField(lastDataField);
-                lastDataField = df;
+    /** Builds the aggregate into a sink, numbered like {@link #build()}. */
+    public void build(RecordSink sink) {
+        build(buildNumbers != null ? buildNumbers.next() : nextBuildNumber(), sink);
+    }
+
+    /**
+     * Passes the aggregate field by field to a sink instead of assembling a record.
+     * <P> The fields are those {@link #build(long)} would return, in the order a <code>MarcWriter</code> writes them.
+     */
+    public void build(long buildNumber, RecordSink sink) {
+        boolean drained = false;
+        try {
+            sink.startRecord(LEADER);
+            sink.controlField("001", controlNumber(buildNumber));
+            sink.controlField("003", catalogingAgency);
+
+            drain(sink::dataField);
+            drained = true;
+            sink.endRecord();
+        } finally {
+            // A failing sink must not leave the fields of this group to the next aggregate
+            if (!drained) {
+                dataFieldPool.clear();
             }
+            purge();
         }
+    }
 
-        result.addVariableField(lastDataField);
+    /** Marks a builder that is reused for unrelated groups, see {@link #build()}. */
+    void requireBuildNumbers() {
+        this.pooled = true;
+    }
 
-        // Purge stored records
-        records = new ArrayList<>();
-        // Reset last field links
-        lastFieldLinks = new HashMap<>();
+    private long nextBuildNumber() {
+        if (pooled) {
+            throw new IllegalStateException("A thread-local builder restarts its build numbers for every group; "
+                    + "number the aggregates with build(long) or a BuildNumberAllocator");
+        }
+        buildNumber += 1;
+        return buildNumber;
+    }
 
-        String id = prefix.isEmpty() && suffix.isEmpty() ? String.valueOf(buildNumber) : prefix + buildNumber + suffix;
-        result.addVariableField(factory.newControlField("001", id));
-        result.addVariableField(factory.newControlField("003", catalogingAgency));
+    /** Passes the merged data fields to the consumer and reports the aggregate to the metrics sink. */
+    private void drain(Consumer<? super DataField> consumer) {
+        // Pools that merge in key order emit each field as soon as it is merged, so the time includes the consumer
+        boolean measured = metrics != MetricsSink.NOOP;
+        long start = measured ? System.nanoTime() : 0;
+        int[] dataFields = {0};
+        dataFieldPool.drain(dataField -> {
+            dataFields[0]++;
+            consumer.accept(dataField);
+        });
+        if (measured) {
+            metrics.aggregateBuilt(pooledRecords, pooledDataFields, dataFields[0], System.nanoTime() - start);
+        }
+    }
 
-        return result;
+    private void purge() {
+        // Purge stored records, keeping the capacity for the next aggregate
+        records = DataFieldPool.recycle(records);
+        pooledRecords = 0;
+        pooledDataFields = 0;
+        // Reset last field links
+        fieldLinkTable.clear();
+    }
+
+    private String controlNumber(long buildNumber) {
+        return prefix.isEmpty() && suffix.isEmpty() ? String.valueOf(buildNumber) : prefix + buildNumber + suffix;
     }
 
     @Override
     public void reset() {
         buildNumber = 0;
-        records = new ArrayList<>();
-        lastFieldLinks = new HashMap<>();
+        records = DataFieldPool.recycle(records);
+        pooledRecords = 0;
+        pooledDataFields = 0;
+        dataFieldPool.clear();
+        fieldLinkTable.clear();
     }
 
     /**
-     * Increments each field link (subfield 8 in a data field) by a constant <i>addend</i>.
-     * @return Field link with the highest sequence number among all data fields after the modification, if present.
+     * Increments each field link (subfield 8 in a data field) by the highest number of its type among the
+     * previously added records.
      */
-    private void incrementAllFieldLinks(List<DataField> dataFields, Map<String,FieldLink> lastFieldLinks) {
-        // The *addend* is the highest field number from the previous record in the records list.
-        Map<String,Integer> addends = lastFieldLinks.entrySet().stream()
-                .collect(Collectors.toMap(
-                   e -> e.getKey(),
-                   e -> e.getValue().number
-                ));
-
-        for (DataField df: dataFields) {
-            for (Subfield sf: df.getSubfields(FIELD_LINK_CODE)) {
-                FieldLink fl;
-                try {
-                    fl = FieldLink.of(sf.getData());
-                } catch (Exception e) {
+    private void incrementAllFieldLinks(List<DataField> dataFields) {
+        fieldLinkTable.beginRecord();
+
+        for (int i = 0; i < dataFields.size(); i++) {
+            List<Subfield> subfields = dataFields.get(i).getSubfields();
+            for (int j = 0; j < subfields.size(); j++) {
+                Subfield sf = subfields.get(j);
+                if (sf.getCode() != FIELD_LINK_CODE) {
                     continue;
                 }
 
-                int addend = addends.getOrDefault(fl.type, 0);
-                fl = fl.increment(addend);
-                String type = fl.type;
-
-                if (lastFieldLinks.getOrDefault(type, null) == null) {
-                    lastFieldLinks.put(type, fl);
-                } else {
-                    FieldLink maximum = lastFieldLinks.get(type);
-                    maximum = maximum.compareTo(fl) > 0 ? maximum : fl;
-                    lastFieldLinks.put(type, maximum);
+                String data = sf.getData();
+                long packed = FieldLink.parse(data, fieldLinkTable.types());
+                if (packed == FieldLink.INVALID) {
+                    invalidFieldLinks++;
+                    continue;
                 }
 
-                sf.setData(fl.asString());
+                int typeId = FieldLink.typeIdOf(packed);
+                int addend = fieldLinkTable.offset(typeId);
+                int number = FieldLink.numberOf(packed) + addend;
+                fieldLinkTable.update(typeId, number);
+
+                String type = fieldLinkTable.types().nameOf(typeId);
+                if (addend != 0 || !isCanonical(data, number, type)) {
+                    sf.setData(FieldLink.asString(number, type));
+                }
             }
         }
     }
@@ -160,33 +272,51 @@ public class AggregatedRecordBuilderImpl implements AggregatedRecordBuilder {
     /**
      * Finds the field link (subfield 8 in a data field) with the highest sequence number among all data fields, if present.
      */
-    private void findMaxFieldLink(List<DataField> dataFields, Map<String,FieldLink> lastFieldLinks) {
-        for (DataField df: dataFields) {
-            for (Subfield sf: df.getSubfields(FIELD_LINK_CODE)) {
-                FieldLink fl;
-                try {
-                    fl = FieldLink.of(sf.getData());
-                } catch (Exception e) {
+    private void findMaxFieldLink(List<DataField> dataFields) {
+        for (int i = 0; i < dataFields.size(); i++) {
+            List<Subfield> subfields = dataFields.get(i).getSubfields();
+            for (int j = 0; j < subfields.size(); j++) {
+                Subfield sf = subfields.get(j);
+                if (sf.getCode() != FIELD_LINK_CODE) {
                     continue;
                 }
 
-                String type = fl.type;
-
-                if (lastFieldLinks.getOrDefault(type, null) == null) {
-                    lastFieldLinks.put(type, fl);
+                long packed = FieldLink.parse(sf.getData(), fieldLinkTable.types());
+                if (packed != FieldLink.INVALID) {
+                    fieldLinkTable.update(FieldLink.typeIdOf(packed), FieldLink.numberOf(packed));
                 } else {
-                    FieldLink maximum = lastFieldLinks.get(type);
-                    maximum = maximum.compareTo(fl) > 0 ? maximum : fl;
-                    lastFieldLinks.put(type, maximum);
+                    invalidFieldLinks++;
                 }
             }
         }
     }
 
+    /**
+     * Whether a parsed field link is already written as <code>number\type</code>.
+     * <P> Any sign, leading zero or sequence number makes a field link longer than its canonical form.
+     */
+    private static boolean isCanonical(String data, int number, String type) {
+        return data.length() == stringSize(number) + 1 + type.length();
+    }
+
+    private static int stringSize(int number) {
+        if (number == Integer.MIN_VALUE) {
+            return 11;
+        }
+        int size = number < 0 ? 2 : 1;
+        for (int n = Math.abs(number); n >= 10; n /= 10) {
+            size++;
+        }
+        return size;
+    }
+
     /**
      * Reads field <i>001</i> (id) and <i>003</i> (cataloging agency) to create a idn that looks as follows <code>(AGENCY)ID</code>.
      * <P> If <i>003</i> is missing, the field <i>040$a</i> is used for the cataloging agency.
      * <P> If <i>040$a</i> is missing, the value <i>Undefined</i> is used.
+     * <P> The <i>040</i> is looked up with a linear scan of the data fields of the record, which stops at the first
+     * tag after <i>040</i>, with every merge strategy: the record is read before its fields enter the pool, and the
+     * pool of <code>TAG_BUCKETS</code> mixes them with those of the other records of the group.
      * @return A composite id.
      */
     private String createIdn(Record record) {
@@ -237,35 +367,35 @@ public class AggregatedRecordBuilderImpl implements AggregatedRecordBuilder {
     private void linkEachDataFieldToIdn(Record record) {
         String idn = createIdn(record);
 
-        FieldLink recordFieldLink = new FieldLink(1, PROVENANCE);
-
         for (DataField df: record.getDataFields()) {
-            List<Subfield> subfields = df.getSubfields(FIELD_LINK_CODE);
+            List<Subfield> subfields = df.getSubfields();
+            int subfieldCount = subfields.size();
 
             String tag = df.getTag();
             if (!tag.equals("035") && !tag.equals("883")) {
-                df.addSubfield(factory.newSubfield(FIELD_LINK_CODE, recordFieldLink.asString()));
+                df.addSubfield(factory.newSubfield(FIELD_LINK_CODE, RECORD_FIELD_LINK));
             }
 
-            for (Subfield sf: subfields) {
-                String data = sf.getData();
+            for (int i = 0; i < subfieldCount; i++) {
+                Subfield sf = subfields.get(i);
+                if (sf.getCode() != FIELD_LINK_CODE) {
+                    continue;
+                }
 
-                FieldLink fl;
-                try {
-                    fl = FieldLink.of(data);
-                } catch (Exception e) {
+                long packed = FieldLink.parse(sf.getData(), fieldLinkTable.types());
+                if (packed == FieldLink.INVALID) {
                     continue;
                 }
 
-                if (fl.type.equals(PROVENANCE)) {
-                    sf.setData(fl.increment(1).asString());
+                if (FieldLink.typeIdOf(packed) == FieldLinkTypes.PROVENANCE) {
+                    sf.setData(FieldLink.asString(FieldLink.numberOf(packed) + 1, PROVENANCE));
                 }
             }
         }
 
         DataField systemControlNumber = factory.newDataField("035", ' ', ' ');
         systemControlNumber.addSubfield(factory.newSubfield('a', idn));
-        systemControlNumber.addSubfield(factory.newSubfield(FIELD_LINK_CODE, recordFieldLink.asString()));
+        systemControlNumber.addSubfield(factory.newSubfield(FIELD_LINK_CODE, RECORD_FIELD_LINK));
         record.addVariableField(systemControlNumber);
     }
 }
@@ -0,0 +1,195 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out build numbers that are unique among all builders and threads sharing the allocator.
+ *
+ * <P> A shared atomic counter is advanced by a whole block of numbers at a time, and each thread takes its numbers
+ * from its current block without synchronization. Numbers are therefore unique but, across threads, neither
+ * ascending nor free of gaps. {@link #save(Path)} persists the number after the highest one handed out, and
+ * {@link #resume(Path, int)} continues from there in the next run, so the unused rest of the blocks is not lost.
+ *
+ * <P> With deterministic numbering, {@link #numberOf(String)} derives the build number from the cluster key instead:
+ * the same cluster gets the same control number in every run and process, without any coordination. Derived numbers
+ * are 62 bit hashes from <i>2<sup>62</sup></i> on, above all sequential numbers, which clusters without a key
+ * receive; two keys receive the same number with a probability of about <i>n<sup>2</sup>/2<sup>63</sup></i> for
+ * <i>n</i> keys. A key that occurs in two groups gives two aggregates the same number, so the groups of a cluster
+ * have to be adjacent, which sorted input and the external sort of unsorted input guarantee. Only a key that repeats
+ * the previous key of the calling thread is rejected; nothing is kept per key, so memory use does not grow with the
+ * number of clusters.
+ */
+public class BuildNumberAllocator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /** The first derived number; sequential numbers of a deterministic allocator stay below */
+    static final long DERIVED_NUMBERS = 1L << 62;
+
+    private final long first;
+    private final AtomicLong next;
+    /** End of the ranges taken by {@link #allocate(int)} */
+    private final AtomicLong allocated;
+    private final int blockSize;
+    private final boolean deterministic;
+    private final Queue<Block> allBlocks;
+    private final ThreadLocal<Block> blocks;
+
+    /** Allocates sequential numbers from 1 in blocks of {@link #DEFAULT_BLOCK_SIZE}. */
+    public BuildNumberAllocator() {
+        this(1, DEFAULT_BLOCK_SIZE, false);
+    }
+
+    /**
+     * @param first First number to hand out.
+     * @param blockSize Numbers a thread takes at a time, <i>1</i> for strictly ascending numbers without gaps.
+     * @param deterministic Whether {@link #numberOf(String)} derives the number from the cluster key.
+     */
+    public BuildNumberAllocator(long first, int blockSize, boolean deterministic) {
+        if (first < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("First number and block size must be positive");
+        }
+        if (deterministic && first >= DERIVED_NUMBERS) {
+            throw new IllegalArgumentException("Sequential numbers must stay below the derived numbers, but start at "
+                    + first);
+        }
+        this.first = first;
+        this.next = new AtomicLong(first);
+        this.allocated = new AtomicLong(first);
+        this.blockSize = blockSize;
+        this.deterministic = deterministic;
+        this.allBlocks = new ConcurrentLinkedQueue<>();
+        this.blocks = ThreadLocal.withInitial(() -> {
+            Block block = new Block();
+            allBlocks.add(block);
+            return block;
+        });
+    }
+
+    /**
+     * Continues the numbers saved by {@link #save(Path)}, or starts at 1 if the file does not exist.
+     */
+    public static BuildNumberAllocator resume(Path file, int blockSize, boolean deterministic) throws IOException {
+        long first = 1;
+        if (Files.exists(file)) {
+            String saved = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            try {
+                first = Long.parseLong(saved);
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected the next build number in " + file + ", but was " + saved);
+            }
+        }
+        return new BuildNumberAllocator(first, blockSize, deterministic);
+    }
+
+    public static BuildNumberAllocator resume(Path file, int blockSize) throws IOException {
+        return resume(file, blockSize, false);
+    }
+
+    /**
+     * Writes the number after the highest one handed out to the file, replacing it atomically.
+     * <P> Called after the threads that take numbers have finished, which makes the numbers they took visible.
+     */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, (highWaterMark() + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** The next number of the block of the calling thread; takes a new block when the block is used up. */
+    public long next() {
+        Block block = blocks.get();
+        if (block.next == block.end) {
+            long start = take(blockSize);
+            block.end = start + blockSize;
+            block.next = start;
+        }
+        return block.next++;
+    }
+
+    /**
+     * Takes a range of consecutive numbers directly from the shared counter.
+     * @return The first number of the range.
+     */
+    public long allocate(int count) {
+        long start = take(count);
+        allocated.accumulateAndGet(start + count, Math::max);
+        return start;
+    }
+
+    /**
+     * The build number of a cluster: derived from the key with deterministic numbering, otherwise the next number.
+     * A cluster without a key (<code>null</code>) always gets the next number.
+     * @throws IllegalStateException If a deterministic allocator numbered the same key just before on this thread,
+     *                               which means that a cluster was split into two groups.
+     */
+    public long numberOf(String clusterKey) {
+        if (!deterministic || clusterKey == null) {
+            return next();
+        }
+        Block block = blocks.get();
+        if (clusterKey.equals(block.lastKey)) {
+            throw new IllegalStateException("Cluster key " + clusterKey + " occurs in two adjacent groups");
+        }
+        block.lastKey = clusterKey;
+        return derive(clusterKey);
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /** The first number that no block has taken yet. */
+    public long peek() {
+        return next.get();
+    }
+
+    /** One more than the highest number handed out, or the first number if none was. */
+    long highWaterMark() {
+        long mark = Math.max(first, allocated.get());
+        for (Block block: allBlocks) {
+            mark = Math.max(mark, block.next);
+        }
+        return mark;
+    }
+
+    private long take(int count) {
+        long start = next.getAndAdd(count);
+        long limit = deterministic ? DERIVED_NUMBERS : Long.MAX_VALUE;
+        if (start > limit - count) {
+            throw new IllegalStateException("Build numbers are exhausted");
+        }
+        return start;
+    }
+
+    /** A number from <i>2<sup>62</sup></i> to <i>2<sup>63</sup>-1</i> from the first bytes of the SHA-256 digest. */
+    static long derive(String clusterKey) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(clusterKey.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        long number = 0;
+        for (int i = 0; i < 8; i++) {
+            number = number << 8 | digest[i] & 0xFF;
+        }
+        return number & DERIVED_NUMBERS - 1 | DERIVED_NUMBERS;
+    }
+
+    private static final class Block {
+        long next;
+        long end;
+        /** The cluster key numbered last by the thread */
+        String lastKey;
+    }
+}
@@ -0,0 +1,549 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Stores the pooled data fields encoded into a contiguous byte array and materializes marc4j objects only for the
+ * merged result.
+ *
+ * <P> Each field is merged into the pool while it is added, like {@link IncrementalDataFieldPool}, so the added
+ * records are not retained. A unique field is stored as
+ * <pre>
+ *   key block:  tag | ind1 | ind2 | sorted non-link subfields ($ code data ...)
+ *   rest:       subfield count | key subfield count | (position, code, data length) per subfield | link data
+ * </pre>
+ * With a {@link SubfieldNormalizer} the key block holds the normalized subfields, and the original data of all
+ * subfields follows the entries instead of only the link data.
+ * A duplicate only contributes its field links, which are appended to a separate link arena and chained to the
+ * surviving field.
+ *
+ * <P> Characters are encoded per UTF-16 code unit in one to three bytes (like UTF-8, but surrogates are encoded
+ * individually), so comparing encoded strings byte by byte yields the order of {@link String#compareTo(String)}.
+ * Sorting and merging therefore match {@link DataFieldKey}.
+ */
+class CompactDataFieldPool implements DataFieldPool {
+
+    private static final int INITIAL_ARENA_SIZE = 1 << 12;
+    private static final int INITIAL_FIELD_CAPACITY = 1 << 6;
+    /** Arenas that grew beyond this size are released on clear. */
+    private static final int RETAINED_ARENA_LIMIT = 1 << 20;
+    private static final int NONE = -1;
+
+    private final char fieldLinkCode;
+    private final SubfieldNormalizer normalizer;
+    private final boolean normalized;
+    private final MarcFactory factory;
+
+    /** Encoded unique fields */
+    private byte[] arena;
+    private int arenaSize;
+    private int[] offsets;
+    private int[] hashes;
+    private int[] firstLinks;
+    private int[] lastLinks;
+    private int fieldCount;
+
+    /** Field links of merged duplicates, each entry is a length prefixed encoded string */
+    private byte[] links;
+    private int linksSize;
+    private int[] linkOffsets;
+    private int[] nextLinks;
+    private int linkCount;
+
+    /** Open addressing hash index of the unique fields */
+    private int[] slots;
+
+    /** Scratch space for sorting the subfields of a field */
+    private int[] positions;
+    /** Scratch space for the compared data of each subfield of a field, indexed by position */
+    private String[] keyData;
+
+    CompactDataFieldPool(char fieldLinkCode) {
+        this(fieldLinkCode, SubfieldNormalizer.NONE);
+    }
+
+    CompactDataFieldPool(char fieldLinkCode, SubfieldNormalizer normalizer) {
+        this.fieldLinkCode = fieldLinkCode;
+        this.normalizer = normalizer;
+        this.normalized = normalizer != SubfieldNormalizer.NONE;
+        this.factory = SharedMarcFactory.get();
+        this.positions = new int[16];
+        this.keyData = new String[16];
+        allocate();
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        for (int i = 0; i < dataFields.size(); i++) {
+            add(dataFields.get(i));
+        }
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        int[] order = new int[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            order[i] = i;
+        }
+        sort(order);
+
+        for (int field: order) {
+            consumer.accept(materialize(field));
+        }
+
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        if (arena.length > RETAINED_ARENA_LIMIT || links.length > RETAINED_ARENA_LIMIT) {
+            allocate();
+            return;
+        }
+        arenaSize = 0;
+        fieldCount = 0;
+        linksSize = 0;
+        linkCount = 0;
+        Arrays.fill(slots, NONE);
+    }
+
+    /** Number of bytes used by the encoded fields and links. */
+    long encodedSize() {
+        return arenaSize + linksSize;
+    }
+
+    private void allocate() {
+        arena = new byte[INITIAL_ARENA_SIZE];
+        arenaSize = 0;
+        offsets = new int[INITIAL_FIELD_CAPACITY];
+        hashes = new int[INITIAL_FIELD_CAPACITY];
+        firstLinks = new int[INITIAL_FIELD_CAPACITY];
+        lastLinks = new int[INITIAL_FIELD_CAPACITY];
+        fieldCount = 0;
+
+        links = new byte[INITIAL_ARENA_SIZE];
+        linksSize = 0;
+        linkOffsets = new int[INITIAL_FIELD_CAPACITY];
+        nextLinks = new int[INITIAL_FIELD_CAPACITY];
+        linkCount = 0;
+
+        slots = new int[INITIAL_FIELD_CAPACITY * 2];
+        Arrays.fill(slots, NONE);
+    }
+
+    private void add(DataField df) {
+        List<Subfield> subfields = df.getSubfields();
+        int n = subfields.size();
+        String tag = df.getTag();
+        int k = sortKeySubfields(tag, subfields);
+
+        int start = arenaSize;
+        writeVarInt(encodedLength(tag));
+        writeChars(tag);
+        writeChar(df.getIndicator1());
+        writeChar(df.getIndicator2());
+
+        int keyLength = 0;
+        for (int i = 0; i < k; i++) {
+            int position = positions[i];
+            keyLength += 1 + encodedLength(subfields.get(position).getCode()) + encodedLength(keyData[position]);
+        }
+        writeVarInt(keyLength);
+        for (int i = 0; i < k; i++) {
+            writeChar('$');
+            writeChar(subfields.get(positions[i]).getCode());
+            writeChars(keyData[positions[i]]);
+        }
+        int keyEnd = arenaSize;
+        int hash = hash(arena, start, keyEnd);
+
+        int survivor = find(start, keyEnd, hash);
+        if (survivor != NONE) {
+            arenaSize = start;
+            for (int i = k; i < n; i++) {
+                appendLink(survivor, subfields.get(positions[i]).getData());
+            }
+            return;
+        }
+
+        writeVarInt(n);
+        writeVarInt(k);
+        for (int i = 0; i < n; i++) {
+            Subfield sf = subfields.get(positions[i]);
+            writeVarInt(positions[i]);
+            writeChar(sf.getCode());
+            writeVarInt(encodedLength(sf.getData()));
+        }
+        for (int i = normalized ? 0 : k; i < n; i++) {
+            writeChars(subfields.get(positions[i]).getData());
+        }
+
+        register(start, hash);
+    }
+
+    /**
+     * Fills {@link #positions} with the subfield positions in stored order: the non-link subfields sorted by code and
+     * (normalized) data, followed by the field links in their original order. Fills {@link #keyData} as well.
+     * @return Number of non-link subfields.
+     */
+    private int sortKeySubfields(String tag, List<Subfield> subfields) {
+        int n = subfields.size();
+        if (positions.length < n) {
+            positions = new int[Math.max(n, positions.length * 2)];
+            keyData = new String[positions.length];
+        }
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            Subfield sf = subfields.get(i);
+            if (sf.getCode() != fieldLinkCode) {
+                keyData[i] = normalized ? normalizer.normalize(tag, sf.getCode(), sf.getData()) : sf.getData();
+                // Insertion sort, fields rarely have more than a handful of subfields
+                int j = k++;
+                while (j > 0 && compareSubfields(subfields, positions[j - 1], i) > 0) {
+                    positions[j] = positions[j - 1];
+                    j--;
+                }
+                positions[j] = i;
+            }
+        }
+
+        int l = k;
+        for (int i = 0; i < n; i++) {
+            if (subfields.get(i).getCode() == fieldLinkCode) {
+                positions[l++] = i;
+            }
+        }
+        return k;
+    }
+
+    private int compareSubfields(List<Subfield> subfields, int position1, int position2) {
+        int codeComparison = Character.compare(subfields.get(position1).getCode(), subfields.get(position2).getCode());
+        if (codeComparison != 0) return codeComparison;
+        return keyData[position1].compareTo(keyData[position2]);
+    }
+
+    private int find(int start, int keyEnd, int hash) {
+        int mask = slots.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int field = slots[i];
+            if (field == NONE) {
+                return NONE;
+            }
+            if (hashes[field] == hash && keyBlockEquals(field, start, keyEnd)) {
+                return field;
+            }
+        }
+    }
+
+    private boolean keyBlockEquals(int field, int start, int keyEnd) {
+        int offset = offsets[field];
+        int length = keyEnd - start;
+        if (keyBlockEnd(offset) - offset != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (arena[offset + i] != arena[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void register(int offset, int hash) {
+        if (fieldCount == offsets.length) {
+            int capacity = fieldCount * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            firstLinks = Arrays.copyOf(firstLinks, capacity);
+            lastLinks = Arrays.copyOf(lastLinks, capacity);
+        }
+
+        int field = fieldCount++;
+        offsets[field] = offset;
+        hashes[field] = hash;
+        firstLinks[field] = NONE;
+        lastLinks[field] = NONE;
+
+        if (fieldCount * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            Arrays.fill(slots, NONE);
+            for (int i = 0; i < fieldCount; i++) {
+                insert(i);
+            }
+        } else {
+            insert(field);
+        }
+    }
+
+    private void insert(int field) {
+        int mask = slots.length - 1;
+        int i = hashes[field] & mask;
+        while (slots[i] != NONE) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = field;
+    }
+
+    private void appendLink(int field, String data) {
+        int length = encodedLength(data);
+        ensureLinksCapacity(5 + length);
+        if (linkCount == linkOffsets.length) {
+            linkOffsets = Arrays.copyOf(linkOffsets, linkCount * 2);
+            nextLinks = Arrays.copyOf(nextLinks, linkCount * 2);
+        }
+
+        int link = linkCount++;
+        linkOffsets[link] = linksSize;
+        nextLinks[link] = NONE;
+        linksSize = putVarInt(links, linksSize, length);
+        linksSize = putChars(links, linksSize, data);
+
+        if (firstLinks[field] == NONE) {
+            firstLinks[field] = link;
+        } else {
+            nextLinks[lastLinks[field]] = link;
+        }
+        lastLinks[field] = link;
+    }
+
+    private DataField materialize(int field) {
+        int[] cursor = {offsets[field]};
+        int tagLength = readVarInt(arena, cursor);
+        String tag = decode(arena, cursor[0], tagLength);
+        cursor[0] += tagLength;
+        char ind1 = readChar(arena, cursor);
+        char ind2 = readChar(arena, cursor);
+        DataField df = factory.newDataField(tag, ind1, ind2);
+
+        int keyLength = readVarInt(arena, cursor);
+        int keyData = cursor[0];
+        cursor[0] += keyLength;
+
+        int n = readVarInt(arena, cursor);
+        int k = readVarInt(arena, cursor);
+        int[] subfieldPositions = new int[n];
+        char[] codes = new char[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            subfieldPositions[i] = readVarInt(arena, cursor);
+            codes[i] = readChar(arena, cursor);
+            lengths[i] = readVarInt(arena, cursor);
+        }
+        // Data that is not read from the key block
+        int linkData = cursor[0];
+
+        Subfield[] subfields = new Subfield[n];
+        for (int i = 0; i < n; i++) {
+            String data;
+            if (i < k && !normalized) {
+                // Skip '$' and the code in front of the data
+                keyData += 1 + encodedLength(codes[i]);
+                data = decode(arena, keyData, lengths[i]);
+                keyData += lengths[i];
+            } else {
+                data = decode(arena, linkData, lengths[i]);
+                linkData += lengths[i];
+            }
+            subfields[subfieldPositions[i]] = factory.newSubfield(codes[i], data);
+        }
+        for (Subfield sf: subfields) {
+            df.addSubfield(sf);
+        }
+
+        for (int link = firstLinks[field]; link != NONE; link = nextLinks[link]) {
+            int[] linkCursor = {linkOffsets[link]};
+            int length = readVarInt(links, linkCursor);
+            df.addSubfield(factory.newSubfield(fieldLinkCode, decode(links, linkCursor[0], length)));
+        }
+
+        return df;
+    }
+
+    /** Orders fields like {@link DataFieldKey#compareTo(DataFieldKey)}. */
+    private int compare(int field1, int field2) {
+        int[] c1 = {offsets[field1]};
+        int[] c2 = {offsets[field2]};
+
+        int tagComparison = compareSegments(c1, c2);
+        if (tagComparison != 0) return tagComparison;
+
+        int ind1Comparison = Character.compare(readChar(arena, c1), readChar(arena, c2));
+        if (ind1Comparison != 0) return ind1Comparison;
+
+        int ind2Comparison = Character.compare(readChar(arena, c1), readChar(arena, c2));
+        if (ind2Comparison != 0) return ind2Comparison;
+
+        return compareSegments(c1, c2);
+    }
+
+    /** Compares two length prefixed segments byte by byte and advances both cursors behind them. */
+    private int compareSegments(int[] c1, int[] c2) {
+        int length1 = readVarInt(arena, c1);
+        int length2 = readVarInt(arena, c2);
+        int start1 = c1[0];
+        int start2 = c2[0];
+        c1[0] += length1;
+        c2[0] += length2;
+
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int b1 = arena[start1 + i] & 0xFF;
+            int b2 = arena[start2 + i] & 0xFF;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        return length1 - length2;
+    }
+
+    private int keyBlockEnd(int offset) {
+        int[] cursor = {offset};
+        int tagLength = readVarInt(arena, cursor);
+        cursor[0] += tagLength;
+        readChar(arena, cursor);
+        readChar(arena, cursor);
+        int keyLength = readVarInt(arena, cursor);
+        return cursor[0] + keyLength;
+    }
+
+    /** Merge sort of field indices; keys are unique, so stability does not matter. */
+    private void sort(int[] fields) {
+        int[] buffer = new int[fields.length];
+        for (int width = 1; width < fields.length; width *= 2) {
+            for (int lo = 0; lo < fields.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, fields.length);
+                int hi = Math.min(lo + 2 * width, fields.length);
+                int i = lo, j = mid, o = lo;
+                while (i < mid && j < hi) {
+                    buffer[o++] = compare(fields[i], fields[j]) <= 0 ? fields[i++] : fields[j++];
+                }
+                while (i < mid) buffer[o++] = fields[i++];
+                while (j < hi) buffer[o++] = fields[j++];
+            }
+            System.arraycopy(buffer, 0, fields, 0, fields.length);
+        }
+    }
+
+    private void writeVarInt(int value) {
+        ensureArenaCapacity(5);
+        arenaSize = putVarInt(arena, arenaSize, value);
+    }
+
+    private void writeChar(char c) {
+        ensureArenaCapacity(3);
+        arenaSize = putChar(arena, arenaSize, c);
+    }
+
+    private void writeChars(String s) {
+        ensureArenaCapacity(3 * s.length());
+        arenaSize = putChars(arena, arenaSize, s);
+    }
+
+    private void ensureArenaCapacity(int additional) {
+        if (arenaSize + additional > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + additional));
+        }
+    }
+
+    private void ensureLinksCapacity(int additional) {
+        if (linksSize + additional > links.length) {
+            links = Arrays.copyOf(links, Math.max(links.length * 2, linksSize + additional));
+        }
+    }
+
+    static int encodedLength(char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+
+    static int encodedLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            length += encodedLength(s.charAt(i));
+        }
+        return length;
+    }
+
+    static int putChar(byte[] buffer, int offset, char c) {
+        if (c < 0x80) {
+            buffer[offset++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[offset++] = (byte) (0xC0 | (c >> 6));
+            buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buffer[offset++] = (byte) (0xE0 | (c >> 12));
+            buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return offset;
+    }
+
+    static int putChars(byte[] buffer, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            offset = putChar(buffer, offset, s.charAt(i));
+        }
+        return offset;
+    }
+
+    static String decode(byte[] buffer, int offset, int length) {
+        char[] chars = new char[length];
+        int n = 0;
+        int end = offset + length;
+        while (offset < end) {
+            int b = buffer[offset++] & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[n++] = (char) (((b & 0x1F) << 6) | (buffer[offset++] & 0x3F));
+            } else {
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((buffer[offset++] & 0x3F) << 6) | (buffer[offset++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private static char readChar(byte[] buffer, int[] cursor) {
+        int b = buffer[cursor[0]++] & 0xFF;
+        if (b < 0x80) {
+            return (char) b;
+        } else if (b < 0xE0) {
+            return (char) (((b & 0x1F) << 6) | (buffer[cursor[0]++] & 0x3F));
+        }
+        int b2 = buffer[cursor[0]++] & 0x3F;
+        return (char) (((b & 0x0F) << 12) | (b2 << 6) | (buffer[cursor[0]++] & 0x3F));
+    }
+
+    static int putVarInt(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int readVarInt(byte[] buffer, int[] cursor) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+        int h = 0x811C9DC5;
+        for (int i = start; i < end; i++) {
+            h = (h ^ (buffer[i] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
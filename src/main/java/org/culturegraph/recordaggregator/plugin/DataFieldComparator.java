@@ -1,28 +1,46 @@
 package org.culturegraph.recordaggregator.plugin;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 import org.marc4j.marc.DataField;
 import org.marc4j.marc.Subfield;
 
 public class DataFieldComparator implements Comparator<DataField> {
 
+    private static final Comparator<Subfield> SUBFIELD_COMPARATOR = new Comparator<Subfield>() {
+        @Override
+        public int compare(Subfield sf1, Subfield sf2) {
+            int codeComparison = Character.compare(sf1.getCode(), sf2.getCode());
+            if (codeComparison != 0) return codeComparison;
+            return sf1.getData().compareTo(sf2.getData());
+        }
+    };
+
     private char ignoreSubfieldCode;
+    private final SubfieldNormalizer normalizer;
 
     public DataFieldComparator(char ignoreSubfieldCode) {
+        this(ignoreSubfieldCode, SubfieldNormalizer.NONE);
+    }
+
+    /** Compares the subfields in the form given by the normalizer, see {@link SubfieldNormalizer}. */
+    public DataFieldComparator(char ignoreSubfieldCode, SubfieldNormalizer normalizer) {
         this.ignoreSubfieldCode = ignoreSubfieldCode;
+        this.normalizer = normalizer;
     }
 
-    private Comparator<Subfield> createSubfieldComparator() {
-        return new Comparator<Subfield>() {
-            @Override
-            public int compare(Subfield sf1, Subfield sf2) {
-                int codeComparison = Character.compare(sf1.getCode(), sf2.getCode());
-                if (codeComparison != 0) return codeComparison;
-                return sf1.getData().compareTo(sf2.getData());
-            }
-        };
+    SubfieldNormalizer getNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * Computes the canonical key of a data field.
+     * <P> Comparing two keys yields the same result as comparing their fields with this comparator, so a key may be
+     * computed once per field and reused for sorting and merging. The key holds the normalized subfields, so each
+     * subfield is normalized only once as well.
+     */
+    public DataFieldKey keyOf(DataField df) {
+        return new DataFieldKey(df.getTag(), df.getIndicator1(), df.getIndicator2(), joinSubfields(df));
     }
 
     @Override
@@ -36,18 +54,47 @@ public class DataFieldComparator implements Comparator<DataField> {
         int ind2Comparison = Character.compare(o1.getIndicator2(), o2.getIndicator2());
         if (ind2Comparison != 0) return ind2Comparison;
 
-        String s1 = o1.getSubfields().stream()
-                .filter(sf -> sf.getCode() != ignoreSubfieldCode)
-                .sorted(createSubfieldComparator())
-                .map(Subfield::toString)
-                .collect(Collectors.joining(""));
+        return joinSubfields(o1).compareTo(joinSubfields(o2));
+    }
+
+    /** Sorts the normalized subfields except the ignored one and joins them (<code>$code data</code>). */
+    private String joinNormalizedSubfields(DataField df) {
+        String tag = df.getTag();
+        List<Subfield> subfields = df.getSubfields();
+        // Ordering "code data" strings orders by code first and by data second, like SUBFIELD_COMPARATOR
+        List<String> normalized = new ArrayList<>(subfields.size());
+        for (int i = 0; i < subfields.size(); i++) {
+            Subfield sf = subfields.get(i);
+            if (sf.getCode() != ignoreSubfieldCode) {
+                normalized.add(sf.getCode() + normalizer.normalize(tag, sf.getCode(), sf.getData()));
+            }
+        }
+        normalized.sort(null);
 
-        String s2 = o2.getSubfields().stream()
-                .filter(sf -> sf.getCode() != ignoreSubfieldCode)
-                .sorted(createSubfieldComparator())
-                .map(Subfield::toString)
-                .collect(Collectors.joining(""));
+        StringBuilder sb = new StringBuilder();
+        for (String sf: normalized) {
+            sb.append('$').append(sf);
+        }
+        return sb.toString();
+    }
+
+    /** Sorts all subfields except the ignored one and joins their string representation (<code>$code data</code>). */
+    private String joinSubfields(DataField df) {
+        if (normalizer != SubfieldNormalizer.NONE) {
+            return joinNormalizedSubfields(df);
+        }
+        List<Subfield> subfields = new ArrayList<>(df.getSubfields().size());
+        for (Subfield sf: df.getSubfields()) {
+            if (sf.getCode() != ignoreSubfieldCode) {
+                subfields.add(sf);
+            }
+        }
+        subfields.sort(SUBFIELD_COMPARATOR);
 
-        return s1.compareTo(s2);
+        StringBuilder sb = new StringBuilder();
+        for (Subfield sf: subfields) {
+            sb.append('$').append(sf.getCode()).append(sf.getData());
+        }
+        return sb.toString();
     }
 }
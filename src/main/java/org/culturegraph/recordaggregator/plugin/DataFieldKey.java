@@ -0,0 +1,68 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.Objects;
+
+/**
+ * The canonical comparison key of a data field: tag, both indicators and the sorted, concatenated subfields without
+ * the ignored subfield code.
+ *
+ * <P> A key orders and equals exactly like {@link DataFieldComparator} does for the fields it was created from, but
+ * is computed only once per field. See {@link DataFieldComparator#keyOf(org.marc4j.marc.DataField)}.
+ */
+public final class DataFieldKey implements Comparable<DataFieldKey> {
+    private final String tag;
+    private final char indicator1;
+    private final char indicator2;
+    private final String subfields;
+
+    DataFieldKey(String tag, char indicator1, char indicator2, String subfields) {
+        this.tag = tag;
+        this.indicator1 = indicator1;
+        this.indicator2 = indicator2;
+        this.subfields = subfields;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    @Override
+    public int compareTo(DataFieldKey o) {
+        int tagComparison = tag.compareTo(o.tag);
+        if (tagComparison != 0) return tagComparison;
+
+        int ind1Comparison = Character.compare(indicator1, o.indicator1);
+        if (ind1Comparison != 0) return ind1Comparison;
+
+        int ind2Comparison = Character.compare(indicator2, o.indicator2);
+        if (ind2Comparison != 0) return ind2Comparison;
+
+        return subfields.compareTo(o.subfields);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DataFieldKey that = (DataFieldKey) o;
+        return indicator1 == that.indicator1 &&
+                indicator2 == that.indicator2 &&
+                tag.equals(that.tag) &&
+                subfields.equals(that.subfields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tag, indicator1, indicator2, subfields);
+    }
+
+    @Override
+    public String toString() {
+        return "DataFieldKey{" +
+                "tag='" + tag + '\'' +
+                ", indicator1=" + indicator1 +
+                ", indicator2=" + indicator2 +
+                ", subfields='" + subfields + '\'' +
+                '}';
+    }
+}
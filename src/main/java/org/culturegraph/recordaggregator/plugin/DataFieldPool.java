@@ -0,0 +1,53 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Collects the data fields of all records added to a builder and merges duplicates.
+ *
+ * <P> Duplicates are fields with equal {@link DataFieldKey}s. The first occurrence survives and receives the field
+ * links (subfield <i>8</i>) of all later occurrences in the order they were added.
+ */
+interface DataFieldPool {
+
+    /** Lists and maps that grew beyond this many entries are released on clear instead of being reused. */
+    int RETAINED_CAPACITY = 1 << 14;
+
+    /** Adds the data fields of a single record whose field links are already rewritten. */
+    void add(List<DataField> dataFields);
+
+    /** Returns the merged data fields sorted by their keys in a new list and empties the pool. */
+    default List<DataField> drain() {
+        List<DataField> dataFields = new ArrayList<>();
+        drain(dataFields::add);
+        return dataFields;
+    }
+
+    /**
+     * Passes the merged data fields sorted by their keys to the consumer and empties the pool.
+     * <P> Pools that merge in key order pass each field on as soon as it is merged. No list of the pool is handed
+     * out, so the pool can reuse its lists for the next group.
+     */
+    void drain(Consumer<? super DataField> consumer);
+
+    /** Empties the pool. */
+    void clear();
+
+    /** Empties a list for reuse, or replaces it if an unusually large group made it grow. */
+    static <T> ArrayList<T> recycle(ArrayList<T> list) {
+        if (list.size() > RETAINED_CAPACITY) {
+            return new ArrayList<>();
+        }
+        list.clear();
+        return list;
+    }
+
+    /** Appends all field links of <i>duplicate</i> to <i>survivor</i>. */
+    static void mergeFieldLinks(DataField survivor, DataField duplicate, char fieldLinkCode) {
+        duplicate.getSubfields(fieldLinkCode).forEach(survivor::addSubfield);
+    }
+}
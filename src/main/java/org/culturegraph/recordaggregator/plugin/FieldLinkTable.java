@@ -0,0 +1,76 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.Arrays;
+
+import org.culturegraph.recordaggregator.core.entity.FieldLinkTypes;
+
+/**
+ * Tracks the highest field link number per type while records are added to a builder.
+ *
+ * <P> Types are indexed by their id in the {@link FieldLinkTypes} of the table, which are forgotten with the maxima
+ * when the table is cleared. The field links of a record are shifted by the offsets of their type, which are the
+ * maxima of all previously added records. Neither lookups nor updates box or allocate, except for growing the table
+ * when a new type shows up.
+ */
+public class FieldLinkTable {
+
+    private final FieldLinkTypes types;
+    private int[] maxima;
+    private boolean[] present;
+    private int[] offsets;
+
+    public FieldLinkTable() {
+        int capacity = 8;
+        this.types = new FieldLinkTypes();
+        this.maxima = new int[capacity];
+        this.present = new boolean[capacity];
+        this.offsets = new int[capacity];
+    }
+
+    /** The types of the field links in the table, see <code>FieldLink.parse(CharSequence, FieldLinkTypes)</code>. */
+    public FieldLinkTypes types() {
+        return types;
+    }
+
+    /** Fixes the offsets for the field links of the next record. */
+    public void beginRecord() {
+        System.arraycopy(maxima, 0, offsets, 0, maxima.length);
+    }
+
+    /** Returns the offset of a type, which is <i>0</i> for a type that no previous record used. */
+    public int offset(int typeId) {
+        return typeId < offsets.length ? offsets[typeId] : 0;
+    }
+
+    /** Records a field link number. */
+    public void update(int typeId, int number) {
+        if (typeId >= maxima.length) {
+            grow(typeId + 1);
+        }
+        if (!present[typeId] || number >= maxima[typeId]) {
+            maxima[typeId] = number;
+            present[typeId] = true;
+        }
+    }
+
+    public boolean isEmpty() {
+        for (boolean p: present) {
+            if (p) return false;
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(maxima, 0);
+        Arrays.fill(present, false);
+        Arrays.fill(offsets, 0);
+        types.clear();
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, maxima.length * 2);
+        maxima = Arrays.copyOf(maxima, capacity);
+        present = Arrays.copyOf(present, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+    }
+}
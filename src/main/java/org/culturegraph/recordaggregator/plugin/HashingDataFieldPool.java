@@ -0,0 +1,93 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Groups all pooled data fields by their keys in a hash table and sorts only the surviving unique fields.
+ *
+ * <P> The hash code of a {@link DataFieldKey} serves as fingerprint, colliding fingerprints are told apart by
+ * {@link DataFieldKey#equals(Object)}. Produces the same fields in the same order as {@link SortingDataFieldPool}.
+ */
+class HashingDataFieldPool implements DataFieldPool {
+
+    private final DataFieldComparator dataFieldComparator;
+    private final char fieldLinkCode;
+    private ArrayList<DataField> dataFields;
+    private HashMap<DataFieldKey,DataField> survivors;
+    private final KeySorter keySorter;
+
+    HashingDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+        this.dataFieldComparator = dataFieldComparator;
+        this.fieldLinkCode = fieldLinkCode;
+        this.dataFields = new ArrayList<>();
+        this.survivors = new HashMap<>();
+        this.keySorter = new KeySorter();
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        this.dataFields.addAll(dataFields);
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        for (int i = 0; i < dataFields.size(); i++) {
+            DataField df = dataFields.get(i);
+            DataFieldKey key = dataFieldComparator.keyOf(df);
+            DataField survivor = survivors.putIfAbsent(key, df);
+            if (survivor != null) {
+                DataFieldPool.mergeFieldLinks(survivor, df, fieldLinkCode);
+            }
+        }
+
+        keySorter.sort(survivors).forEach(consumer);
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        dataFields = DataFieldPool.recycle(dataFields);
+        survivors = recycle(survivors);
+        keySorter.clear();
+    }
+
+    /** Empties a map for reuse, or replaces it if an unusually large group made its table grow. */
+    static <K,V> HashMap<K,V> recycle(HashMap<K,V> map) {
+        if (map.size() > RETAINED_CAPACITY) {
+            return new HashMap<>();
+        }
+        map.clear();
+        return map;
+    }
+
+    /** Sorts unique data fields by their keys, reusing its lists across calls. */
+    static class KeySorter {
+        private ArrayList<KeyedDataField> keyed = new ArrayList<>();
+        private ArrayList<DataField> result = new ArrayList<>();
+
+        /** @return The sorted fields, valid until the next call. */
+        List<DataField> sort(Map<DataFieldKey,DataField> uniqueDataFields) {
+            keyed = DataFieldPool.recycle(keyed);
+            uniqueDataFields.forEach((key, df) -> keyed.add(new KeyedDataField(key, df)));
+            keyed.sort(KeyedDataField.BY_KEY);
+
+            result = DataFieldPool.recycle(result);
+            for (int i = 0; i < keyed.size(); i++) {
+                result.add(keyed.get(i).dataField);
+            }
+            keyed = DataFieldPool.recycle(keyed);
+            return result;
+        }
+
+        /** Lets go of the fields of the last call. */
+        void clear() {
+            result = DataFieldPool.recycle(result);
+        }
+    }
+}
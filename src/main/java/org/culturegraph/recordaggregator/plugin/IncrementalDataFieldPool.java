@@ -0,0 +1,52 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Merges the data fields of each record into a live hash index as soon as the record is added.
+ *
+ * <P> Only the first occurrence of each field is retained, so the added records may be discarded right after
+ * {@link #add(List)}. Draining the pool just sorts the unique fields.
+ */
+class IncrementalDataFieldPool implements DataFieldPool {
+
+    private final DataFieldComparator dataFieldComparator;
+    private final char fieldLinkCode;
+    private HashMap<DataFieldKey,DataField> survivors;
+    private final HashingDataFieldPool.KeySorter keySorter;
+
+    IncrementalDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+        this.dataFieldComparator = dataFieldComparator;
+        this.fieldLinkCode = fieldLinkCode;
+        this.survivors = new HashMap<>();
+        this.keySorter = new HashingDataFieldPool.KeySorter();
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        for (int i = 0; i < dataFields.size(); i++) {
+            DataField df = dataFields.get(i);
+            DataFieldKey key = dataFieldComparator.keyOf(df);
+            DataField survivor = survivors.putIfAbsent(key, df);
+            if (survivor != null) {
+                DataFieldPool.mergeFieldLinks(survivor, df, fieldLinkCode);
+            }
+        }
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        keySorter.sort(survivors).forEach(consumer);
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        survivors = HashingDataFieldPool.recycle(survivors);
+        keySorter.clear();
+    }
+}
@@ -0,0 +1,18 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.Comparator;
+
+import org.marc4j.marc.DataField;
+
+/** A data field paired with its precomputed {@link DataFieldKey}. */
+class KeyedDataField {
+    static final Comparator<KeyedDataField> BY_KEY = Comparator.comparing(kdf -> kdf.key);
+
+    final DataFieldKey key;
+    final DataField dataField;
+
+    KeyedDataField(DataFieldKey key, DataField dataField) {
+        this.key = key;
+        this.dataField = dataField;
+    }
+}
@@ -0,0 +1,97 @@
+package org.culturegraph.recordaggregator.plugin;
+
+/**
+ * Selects how an {@link AggregatedRecordBuilderImpl} finds and merges duplicate data fields.
+ *
+ * <P> All strategies produce identical aggregates.
+ */
+public enum MergeStrategy {
+
+    /** Sorts all data fields and merges adjacent duplicates. */
+    SORT {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new SortingDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+    },
+
+    /**
+     * Sorts the data fields of each record while it is added and merges the sorted records with a heap, which passes
+     * each merged field on as soon as it is complete. Suits clusters with many members.
+     */
+    KWAY {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new MergingDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+    },
+
+    /** Merges duplicates in a hash table and sorts only the unique data fields. */
+    HASH {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new HashingDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+    },
+
+    /**
+     * Distributes the data fields into a bucket per tag while they are added and merges each bucket in a hash table,
+     * so that fields are only compared with fields of the same tag.
+     */
+    TAG_BUCKETS {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new TagBucketDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+    },
+
+    /**
+     * Merges the data fields of each record into a hash index while it is added, so that build only sorts the
+     * unique data fields. The builder does not retain the added records.
+     */
+    INCREMENTAL {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new IncrementalDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+
+        @Override
+        boolean retainsRecords() {
+            return false;
+        }
+    },
+
+    /**
+     * Like {@link #INCREMENTAL}, but keeps the unique data fields encoded in a contiguous byte array instead of
+     * marc4j objects until build. Needs a fraction of the heap for large groups.
+     */
+    COMPACT {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new CompactDataFieldPool(fieldLinkCode, dataFieldComparator.getNormalizer());
+        }
+
+        @Override
+        boolean retainsRecords() {
+            return false;
+        }
+    },
+
+    /**
+     * Chooses by the size of each group when it is built: sorts small groups, merges larger ones in a hash table and
+     * sorts and merges very large groups in parallel.
+     */
+    ADAPTIVE {
+        @Override
+        DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+            return new AdaptiveDataFieldPool(dataFieldComparator, fieldLinkCode);
+        }
+    };
+
+    abstract DataFieldPool newPool(DataFieldComparator dataFieldComparator, char fieldLinkCode);
+
+    /** Whether the builder keeps the added records until build. */
+    boolean retainsRecords() {
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Sorts the data fields of each record while it is added and merges the sorted runs of all records with a heap.
+ *
+ * <P> The fields of a record are mostly in tag order already, so sorting a run is close to linear. Draining merges
+ * <i>k</i> runs of <i>n</i> fields in <i>O(n log k)</i> instead of sorting all fields. Equal keys surface in the order
+ * the records were added, like in the stable sort of {@link SortingDataFieldPool}, and each merged field is passed on
+ * as soon as the next key differs, see {@link #drain(Consumer)}.
+ */
+class MergingDataFieldPool implements DataFieldPool {
+
+    private final DataFieldComparator dataFieldComparator;
+    private final char fieldLinkCode;
+    /** The sorted runs of all records, one after the other */
+    private ArrayList<KeyedDataField> keyed;
+    private ArrayList<KeyedDataField> run;
+    /** Start of each run in {@link #keyed}; the run ends where the next one starts */
+    private int[] runStarts;
+    private int runCount;
+
+    /** Binary min-heap of run indices, ordered by the key at the cursor of the run and by run index */
+    private int[] heap;
+    private int[] cursors;
+
+    MergingDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+        this.dataFieldComparator = dataFieldComparator;
+        this.fieldLinkCode = fieldLinkCode;
+        this.keyed = new ArrayList<>();
+        this.run = new ArrayList<>();
+        this.runStarts = new int[16];
+        this.heap = new int[16];
+        this.cursors = new int[16];
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        if (dataFields.isEmpty()) {
+            return;
+        }
+        run = DataFieldPool.recycle(run);
+        for (int i = 0; i < dataFields.size(); i++) {
+            DataField df = dataFields.get(i);
+            run.add(new KeyedDataField(dataFieldComparator.keyOf(df), df));
+        }
+        run.sort(KeyedDataField.BY_KEY);
+
+        if (runCount == runStarts.length) {
+            runStarts = Arrays.copyOf(runStarts, runCount * 2);
+        }
+        runStarts[runCount++] = keyed.size();
+        keyed.addAll(run);
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        if (heap.length < runCount) {
+            heap = new int[runCount];
+            cursors = new int[runCount];
+        }
+        for (int r = 0; r < runCount; r++) {
+            heap[r] = r;
+            cursors[r] = runStarts[r];
+        }
+        int size = runCount;
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+
+        KeyedDataField last = null;
+        while (size > 0) {
+            int r = heap[0];
+            KeyedDataField kdf = keyed.get(cursors[r]++);
+            if (last != null && last.key.equals(kdf.key)) {
+                DataFieldPool.mergeFieldLinks(last.dataField, kdf.dataField, fieldLinkCode);
+            } else {
+                if (last != null) {
+                    consumer.accept(last.dataField);
+                }
+                last = kdf;
+            }
+
+            if (cursors[r] == runEnd(r)) {
+                heap[0] = heap[--size];
+            }
+            siftDown(0, size);
+        }
+        if (last != null) {
+            consumer.accept(last.dataField);
+        }
+
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        keyed = DataFieldPool.recycle(keyed);
+        run = DataFieldPool.recycle(run);
+        runCount = 0;
+    }
+
+    private int runEnd(int r) {
+        return r + 1 < runCount ? runStarts[r + 1] : keyed.size();
+    }
+
+    private void siftDown(int i, int size) {
+        int r = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], r)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+
+    /** Orders runs by their current keys, and runs of earlier records first if the keys are equal. */
+    private boolean less(int r1, int r2) {
+        int comparison = keyed.get(cursors[r1]).key.compareTo(keyed.get(cursors[r2]).key);
+        return comparison < 0 || comparison == 0 && r1 < r2;
+    }
+}
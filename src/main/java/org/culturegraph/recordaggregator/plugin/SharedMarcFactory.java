@@ -0,0 +1,21 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import org.marc4j.marc.MarcFactory;
+
+/**
+ * The {@link MarcFactory} of the class path, looked up only once.
+ *
+ * <P> {@link MarcFactory#newInstance()} searches system properties and service descriptors on every call, which
+ * dominates the cost of creating a builder. The marc4j factory is stateless, so all threads share one instance.
+ */
+public final class SharedMarcFactory {
+
+    private static final MarcFactory INSTANCE = MarcFactory.newInstance();
+
+    private SharedMarcFactory() {
+    }
+
+    public static MarcFactory get() {
+        return INSTANCE;
+    }
+}
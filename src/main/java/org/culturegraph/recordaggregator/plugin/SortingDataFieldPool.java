@@ -0,0 +1,63 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.marc4j.marc.DataField;
+
+/** Sorts all pooled data fields by their keys and merges adjacent duplicates. */
+class SortingDataFieldPool implements DataFieldPool {
+
+    private final DataFieldComparator dataFieldComparator;
+    private final char fieldLinkCode;
+    private ArrayList<DataField> dataFields;
+    private ArrayList<KeyedDataField> keyed;
+    private ArrayList<DataField> result;
+
+    SortingDataFieldPool(DataFieldComparator dataFieldComparator, char fieldLinkCode) {
+        this.dataFieldComparator = dataFieldComparator;
+        this.fieldLinkCode = fieldLinkCode;
+        this.dataFields = new ArrayList<>();
+        this.keyed = new ArrayList<>();
+        this.result = new ArrayList<>();
+    }
+
+    @Override
+    public void add(List<DataField> dataFields) {
+        this.dataFields.addAll(dataFields);
+    }
+
+    @Override
+    public void drain(Consumer<? super DataField> consumer) {
+        // Each key is computed once; sorting and merging only compare the cached keys
+        keyed = DataFieldPool.recycle(keyed);
+        for (int i = 0; i < dataFields.size(); i++) {
+            DataField df = dataFields.get(i);
+            keyed.add(new KeyedDataField(dataFieldComparator.keyOf(df), df));
+        }
+        keyed.sort(KeyedDataField.BY_KEY);
+
+        result = DataFieldPool.recycle(result);
+        KeyedDataField lastDataField = null;
+        for (int i = 0; i < keyed.size(); i++) {
+            KeyedDataField kdf = keyed.get(i);
+            if (lastDataField != null && lastDataField.key.equals(kdf.key)) {
+                DataFieldPool.mergeFieldLinks(lastDataField.dataField, kdf.dataField, fieldLinkCode);
+            } else {
+                result.add(kdf.dataField);
+                lastDataField = kdf;
+            }
+        }
+
+        result.forEach(consumer);
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        dataFields = DataFieldPool.recycle(dataFields);
+        keyed = DataFieldPool.recycle(keyed);
+        result = DataFieldPool.recycle(result);
+    }
+}
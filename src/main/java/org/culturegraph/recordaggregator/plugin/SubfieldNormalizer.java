@@ -0,0 +1,83 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Maps the data of a subfield to the form in which it is compared when duplicate data fields are detected.
+ *
+ * <P> Two data fields are duplicates if their tags, indicators and normalized subfields are equal. The surviving
+ * field keeps its original data. The normalized data is computed once per subfield when the {@link DataFieldKey} of
+ * its field is computed, so normalization does not add to the cost of comparing keys.
+ *
+ * <P> Normalizers return the given string itself if it is already normalized. Rules are combined with
+ * {@link #andThen(SubfieldNormalizer)} or parsed with {@link #parse(String)}.
+ */
+@FunctionalInterface
+public interface SubfieldNormalizer {
+
+    /** Compares subfields as they are. */
+    SubfieldNormalizer NONE = (tag, code, data) -> data;
+
+    String normalize(String tag, char code, String data);
+
+    default SubfieldNormalizer andThen(SubfieldNormalizer next) {
+        if (this == NONE) return next;
+        if (next == NONE) return this;
+        return (tag, code, data) -> next.normalize(tag, code, normalize(tag, code, data));
+    }
+
+    /** Composes characters and their combining marks (Unicode normalization form C). */
+    static SubfieldNormalizer nfc() {
+        return (tag, code, data) -> Normalizer.isNormalized(data, Normalizer.Form.NFC)
+                ? data : Normalizer.normalize(data, Normalizer.Form.NFC);
+    }
+
+    /** Removes leading and trailing whitespace and replaces every other run of whitespace by a single space. */
+    static SubfieldNormalizer collapseWhitespace() {
+        return (tag, code, data) -> SubfieldNormalizers.collapseWhitespace(data);
+    }
+
+    /**
+     * Removes the punctuation that ISBD places at the end of an element (<i>. , : ; / =</i>) together with the
+     * surrounding whitespace, e.g. <i>"Title /"</i> becomes <i>"Title"</i>.
+     */
+    static SubfieldNormalizer trailingPunctuation() {
+        return (tag, code, data) -> SubfieldNormalizers.stripTrailingPunctuation(data);
+    }
+
+    /** Folds the case of the subfields of the given tags; all tags if none are given. */
+    static SubfieldNormalizer caseFold(String... tags) {
+        Set<String> folded = new HashSet<>(Arrays.asList(tags));
+        return (tag, code, data) -> folded.isEmpty() || folded.contains(tag) ? data.toLowerCase(Locale.ROOT) : data;
+    }
+
+    /**
+     * Parses a comma separated list of rules that are applied in the given order: <code>nfc</code>,
+     * <code>whitespace</code>, <code>punctuation</code> and <code>casefold</code>, which may be restricted to
+     * tags separated by colons (<code>casefold=245:260</code>).
+     */
+    static SubfieldNormalizer parse(String rules) {
+        SubfieldNormalizer normalizer = NONE;
+        for (String rule: rules.split(",")) {
+            rule = rule.trim();
+            if (rule.equals("nfc")) {
+                normalizer = normalizer.andThen(nfc());
+            } else if (rule.equals("whitespace")) {
+                normalizer = normalizer.andThen(collapseWhitespace());
+            } else if (rule.equals("punctuation")) {
+                normalizer = normalizer.andThen(trailingPunctuation());
+            } else if (rule.equals("casefold")) {
+                normalizer = normalizer.andThen(caseFold());
+            } else if (rule.startsWith("casefold=")) {
+                normalizer = normalizer.andThen(caseFold(rule.substring("casefold=".length()).split(":")));
+            } else {
+                throw new IllegalArgumentException("Unknown normalization rule " + rule);
+            }
+        }
+        return normalizer;
+    }
+}
@@ -0,0 +1,56 @@
+package org.culturegraph.recordaggregator.plugin;
+
+/** The string operations behind the rules of {@link SubfieldNormalizer}. */
+final class SubfieldNormalizers {
+
+    private static final String ISBD_PUNCTUATION = ".,:;/=";
+
+    private SubfieldNormalizers() {
+    }
+
+    static String collapseWhitespace(String data) {
+        if (isCollapsed(data)) {
+            return data;
+        }
+
+        StringBuilder sb = new StringBuilder(data.length());
+        boolean pending = false;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (isSpace(c)) {
+                pending = sb.length() > 0;
+            } else {
+                if (pending) {
+                    sb.append(' ');
+                    pending = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String stripTrailingPunctuation(String data) {
+        int end = data.length();
+        while (end > 0 && (isSpace(data.charAt(end - 1)) || ISBD_PUNCTUATION.indexOf(data.charAt(end - 1)) >= 0)) {
+            end--;
+        }
+        return end == data.length() ? data : data.substring(0, end);
+    }
+
+    /** Whether all whitespace consists of single spaces between other characters. */
+    private static boolean isCollapsed(String data) {
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (isSpace(c) && (c != ' ' || i == 0 || i == length - 1 || isSpace(data.charAt(i + 1)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+}
@@ -0,0 +1,30 @@
+package org.culturegraph.recordaggregator.plugin;
+
+/** Parses the three digit tags of MARC fields into numbers that order like the tags. */
+final class Tags {
+
+    /** Numbers of tags are below this bound. */
+    static final int COUNT = 1000;
+    /** Returned for tags that are not three ASCII digits, like the local tags of some systems. */
+    static final int NOT_NUMERIC = -1;
+
+    private Tags() {
+    }
+
+    /**
+     * Returns the number of a tag of three digits, or {@link #NOT_NUMERIC}.
+     * <P> Numbers compare like their tags: both are three digits with leading zeros.
+     */
+    static int numberOf(String tag) {
+        if (tag.length() != 3) {
+            return NOT_NUMERIC;
+        }
+        int d0 = tag.charAt(0) - '0';
+        int d1 = tag.charAt(1) - '0';
+        int d2 = tag.charAt(2) - '0';
+        if ((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+            return NOT_NUMERIC;
+        }
+        return d0 * 100 + d1 * 10 + d2;
+    }
+}
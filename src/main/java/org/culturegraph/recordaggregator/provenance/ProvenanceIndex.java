@@ -0,0 +1,169 @@
+package org.culturegraph.recordaggregator.provenance;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Finds the aggregate that contains a source record, by the identifier <code>(ISIL)ID</code> the builder stores in the
+ * <i>035</i> of the aggregate, without scanning the output.
+ *
+ * <P> The file is written by {@link ProvenanceIndexWriter}. It starts with a header of magic number, format version,
+ * number of entries and the start of the aggregates and the keys. Fixed length entries of key pointer and aggregate
+ * pointer follow, sorted by the UTF-8 bytes of the keys; entries with equal keys are in output order. The aggregates
+ * (byte offset in the output and control number) and the keys follow the entries. Strings are stored as an unsigned
+ * short length and UTF-8 bytes.
+ *
+ * <P> The file is mapped into memory in segments of 1 GiB that overlap by more than the longest entry, so that any
+ * entry can be read from a single segment. A lookup is a binary search over the entries that compares the keys in
+ * place, which touches about <i>log2(n)</i> pages. Lookups may run concurrently.
+ */
+public final class ProvenanceIndex implements Closeable {
+
+    static final int MAGIC = 0x43475049;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 32;
+    static final int ENTRY_LENGTH = 16;
+    /** Longest string that can be stored */
+    static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final int OVERLAP = 1 << 17;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long entries;
+
+    private ProvenanceIndex(FileChannel channel, MappedByteBuffer[] segments, long entries) {
+        this.channel = channel;
+        this.segments = segments;
+        this.entries = entries;
+    }
+
+    public static ProvenanceIndex open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                throw new IOException("Not a provenance index: " + path);
+            }
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size - 1) >>> SEGMENT_SHIFT) + 1];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(size - start, (1L << SEGMENT_SHIFT) + OVERLAP);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+
+            ByteBuffer header = segments[0];
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a provenance index of version " + VERSION + ": " + path);
+            }
+            return new ProvenanceIndex(channel, segments, header.getLong(8));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** @return The number of source records in the index. */
+    public long size() {
+        return entries;
+    }
+
+    /**
+     * Finds the aggregate of a source record.
+     * <P> If the record contributed to several aggregates, the one written first is returned.
+     * @return The aggregate or <code>null</code> if the index does not contain the source record.
+     */
+    public Location find(String sourceId) {
+        byte[] key = sourceId.getBytes(StandardCharsets.UTF_8);
+        long low = 0;
+        long high = entries;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (compareKey(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == entries || compareKey(low, key) != 0) {
+            return null;
+        }
+
+        long aggregate = getLong(entry(low) + 8);
+        return new Location(getString(aggregate + 8), getLong(aggregate));
+    }
+
+    /** Releases the file; the mapped segments are released by the garbage collector. */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** Compares the key of an entry with the UTF-8 bytes of a key like unsigned bytes. */
+    private int compareKey(long entry, byte[] key) {
+        long position = getLong(entry(entry));
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) (position & SEGMENT_MASK);
+        int length = segment.getShort(offset) & 0xFFFF;
+        offset += 2;
+
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = (segment.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static long entry(long entry) {
+        return HEADER_LENGTH + entry * ENTRY_LENGTH;
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+    }
+
+    private String getString(long position) {
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) (position & SEGMENT_MASK);
+        byte[] bytes = new byte[segment.getShort(offset) & 0xFFFF];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = segment.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** The control number of an aggregate and the byte offset at which it starts in the output. */
+    public static final class Location {
+        private final String controlNumber;
+        private final long offset;
+
+        Location(String controlNumber, long offset) {
+            this.controlNumber = controlNumber;
+            this.offset = offset;
+        }
+
+        public String getControlNumber() {
+            return controlNumber;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return controlNumber + "@" + offset;
+        }
+    }
+}
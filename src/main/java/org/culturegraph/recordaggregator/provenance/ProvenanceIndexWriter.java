@@ -0,0 +1,304 @@
+package org.culturegraph.recordaggregator.provenance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes a {@link ProvenanceIndex} while the aggregates are written, with a bounded heap.
+ *
+ * <P> The aggregates are appended to a temporary file in output order. The source identifiers are collected in
+ * memory, and every {@value #DEFAULT_RUN_SIZE} identifiers are sorted and spilled to a temporary run. Closing the
+ * writer merges the runs into the entries and keys of the index and appends the aggregates. The index is written next
+ * to its path and then renamed, so it is either complete or not there; {@link #abort()} only deletes the temporary
+ * files.
+ */
+public class ProvenanceIndexWriter implements Closeable {
+
+    static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Orders the UTF-8 bytes of keys like unsigned bytes; entries with equal keys keep their order. */
+    private static final Comparator<Entry> BY_KEY = (e1, e2) -> compare(e1.key, e2.key);
+
+    private final Path path;
+    private final Path tempDirectory;
+    private final int runSize;
+    private final Path aggregatesFile;
+    private final DataOutputStream aggregates;
+    private long aggregatesLength;
+    private final ArrayList<Entry> buffer;
+    private final List<Path> runs;
+    private long entries;
+    private boolean closed;
+
+    public ProvenanceIndexWriter(Path path, Path tempDirectory) throws IOException {
+        this(path, tempDirectory, DEFAULT_RUN_SIZE);
+    }
+
+    ProvenanceIndexWriter(Path path, Path tempDirectory, int runSize) throws IOException {
+        this.path = path;
+        this.tempDirectory = tempDirectory;
+        this.runSize = runSize;
+        this.aggregatesFile = Files.createTempFile(tempDirectory, "provenance", ".aggregates");
+        this.aggregates = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(aggregatesFile),
+                BUFFER_SIZE));
+        this.buffer = new ArrayList<>();
+        this.runs = new ArrayList<>();
+    }
+
+    /**
+     * Adds an aggregate with the identifiers of its source records.
+     * @param offset The byte offset at which the aggregate starts in the output.
+     */
+    public void add(String controlNumber, long offset, Collection<String> sourceIds) throws IOException {
+        long pointer = aggregatesLength;
+        aggregates.writeLong(offset);
+        aggregatesLength += 8 + writeString(aggregates, utf8(controlNumber));
+
+        for (String sourceId: sourceIds) {
+            byte[] key = utf8(sourceId);
+            if (key.length > ProvenanceIndex.MAX_STRING_LENGTH) {
+                throw new IOException("Source id is longer than " + ProvenanceIndex.MAX_STRING_LENGTH + " bytes");
+            }
+            buffer.add(new Entry(key, pointer));
+            entries += 1;
+            if (buffer.size() >= runSize) {
+                spill();
+            }
+        }
+    }
+
+    /** Writes the index and deletes the temporary files. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            aggregates.close();
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                finish(temp);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } finally {
+            deleteTemporaryFiles();
+        }
+    }
+
+    /** Deletes the temporary files without writing the index, e.g. when the aggregation failed. */
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            aggregates.close();
+        } finally {
+            deleteTemporaryFiles();
+        }
+    }
+
+    private void deleteTemporaryFiles() throws IOException {
+        Files.deleteIfExists(aggregatesFile);
+        for (Path run: runs) {
+            Files.deleteIfExists(run);
+        }
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(BY_KEY);
+        Path run = Files.createTempFile(tempDirectory, "provenance", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run),
+                BUFFER_SIZE))) {
+            out.writeInt(buffer.size());
+            for (Entry entry: buffer) {
+                writeString(out, entry.key);
+                out.writeLong(entry.aggregate);
+            }
+        }
+        buffer.clear();
+    }
+
+    private void finish(Path path) throws IOException {
+        buffer.sort(BY_KEY);
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            // Earlier runs first, so that equal keys stay in output order
+            for (Path run: runs) {
+                cursors.add(new FileCursor(cursors.size(), run));
+            }
+            cursors.add(new BufferCursor(cursors.size(), buffer));
+            PriorityQueue<Cursor> queue = new PriorityQueue<>((c1, c2) -> {
+                int comparison = compare(c1.key, c2.key);
+                return comparison != 0 ? comparison : Integer.compare(c1.run, c2.run);
+            });
+            for (Cursor cursor: cursors) {
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+
+            long aggregatesStart = ProvenanceIndex.HEADER_LENGTH + entries * ProvenanceIndex.ENTRY_LENGTH;
+            long keysStart = aggregatesStart + aggregatesLength;
+            try (FileChannel table = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel keys = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                DataOutputStream tableOut = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(table), BUFFER_SIZE));
+                DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(keys.position(keysStart)), BUFFER_SIZE));
+
+                tableOut.writeInt(ProvenanceIndex.MAGIC);
+                tableOut.writeInt(ProvenanceIndex.VERSION);
+                tableOut.writeLong(entries);
+                tableOut.writeLong(aggregatesStart);
+                tableOut.writeLong(keysStart);
+                long keyPointer = keysStart;
+                while (!queue.isEmpty()) {
+                    Cursor cursor = queue.poll();
+                    tableOut.writeLong(keyPointer);
+                    tableOut.writeLong(aggregatesStart + cursor.aggregate);
+                    keyPointer += writeString(keysOut, cursor.key);
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+                tableOut.flush();
+                keysOut.flush();
+
+                try (FileChannel source = FileChannel.open(aggregatesFile, StandardOpenOption.READ)) {
+                    long copied = 0;
+                    while (copied < aggregatesLength) {
+                        copied += table.transferFrom(source, aggregatesStart + copied, aggregatesLength - copied);
+                    }
+                }
+            }
+        } finally {
+            for (Cursor cursor: cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static int writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > ProvenanceIndex.MAX_STRING_LENGTH) {
+            throw new IOException("String is longer than " + ProvenanceIndex.MAX_STRING_LENGTH + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 2 + bytes.length;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int compare(byte[] b1, byte[] b2) {
+        int common = Math.min(b1.length, b2.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return b1.length - b2.length;
+    }
+
+    private static class Entry {
+        final byte[] key;
+        final long aggregate;
+
+        Entry(byte[] key, long aggregate) {
+            this.key = key;
+            this.aggregate = aggregate;
+        }
+    }
+
+    /** The current entry of a sorted run. */
+    private abstract static class Cursor implements Closeable {
+        final int run;
+        byte[] key;
+        long aggregate;
+
+        Cursor(int run) {
+            this.run = run;
+        }
+
+        /** Moves to the next entry; returns <code>false</code> at the end of the run. */
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class BufferCursor extends Cursor {
+        private final List<Entry> entries;
+        private int next;
+
+        BufferCursor(int run, List<Entry> entries) {
+            super(run);
+            this.entries = entries;
+        }
+
+        @Override
+        boolean next() {
+            if (next == entries.size()) {
+                return false;
+            }
+            Entry entry = entries.get(next++);
+            key = entry.key;
+            aggregate = entry.aggregate;
+            return true;
+        }
+    }
+
+    private static class FileCursor extends Cursor {
+        private final DataInputStream in;
+        private int remaining;
+
+        FileCursor(int run, Path path) throws IOException {
+            super(run);
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+            this.remaining = in.readInt();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining -= 1;
+            key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            aggregate = in.readLong();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.culturegraph.recordaggregator.provenance;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.culturegraph.recordaggregator.core.entity.FieldLink;
+import org.culturegraph.recordaggregator.core.entity.FieldLinkTypes;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Passes the aggregates on to a sink and adds each of them to a {@link ProvenanceIndexWriter}.
+ *
+ * <P> The source identifiers of an aggregate are the <i>035 $a</i> of the fields that link to their source record
+ * with a provenance field link (<code>$8 n\p</code>), which the builder adds for every record. The offset of an
+ * aggregate is taken from {@link RecordSink#position()}, so the sink has to be an encoder that counts its bytes.
+ */
+public class ProvenanceRecorder implements RecordSink {
+
+    private final RecordSink sink;
+    private final ProvenanceIndexWriter writer;
+    private final List<String> sourceIds;
+    private final FieldLinkTypes fieldLinkTypes;
+    private long offset;
+    private String controlNumber;
+
+    public ProvenanceRecorder(RecordSink sink, ProvenanceIndexWriter writer) {
+        if (sink.position() < 0) {
+            throw new IllegalArgumentException("The sink does not report the offsets of its records");
+        }
+        this.sink = sink;
+        this.writer = writer;
+        this.sourceIds = new ArrayList<>();
+        this.fieldLinkTypes = new FieldLinkTypes();
+    }
+
+    @Override
+    public void startRecord(String leader) {
+        offset = sink.position();
+        controlNumber = "";
+        sourceIds.clear();
+        sink.startRecord(leader);
+    }
+
+    @Override
+    public void controlField(String tag, String data) {
+        if (tag.equals("001")) {
+            controlNumber = data;
+        }
+        sink.controlField(tag, data);
+    }
+
+    @Override
+    public void dataField(DataField dataField) {
+        if (dataField.getTag().equals("035") && hasProvenanceLink(dataField)) {
+            Subfield sourceId = dataField.getSubfield('a');
+            if (sourceId != null) {
+                sourceIds.add(sourceId.getData());
+            }
+        }
+        sink.dataField(dataField);
+    }
+
+    @Override
+    public void endRecord() {
+        sink.endRecord();
+        try {
+            writer.add(controlNumber, offset, sourceIds);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long position() {
+        return sink.position();
+    }
+
+    @Override
+    public void flush() {
+        sink.flush();
+    }
+
+    /** Closes the sink and writes the index. */
+    @Override
+    public void close() {
+        try {
+            sink.close();
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private boolean hasProvenanceLink(DataField dataField) {
+        try {
+            for (Subfield sf: dataField.getSubfields('8')) {
+                long packed = FieldLink.parse(sf.getData(), fieldLinkTypes);
+                if (packed != FieldLink.INVALID && FieldLink.typeIdOf(packed) == FieldLinkTypes.PROVENANCE) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            // Only the provenance type matters, so the other types are not kept
+            fieldLinkTypes.clear();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the worker of each shard as a child JVM on the local host that talks to the coordinator over its standard
+ * input and output. The children use the class path of the current JVM and inherit its standard error.
+ */
+public class ProcessShardLauncher implements ShardLauncher {
+
+    private final List<String> jvmOptions;
+
+    public ProcessShardLauncher() {
+        this(Collections.emptyList());
+    }
+
+    /** @param jvmOptions Options of the child JVMs, e.g. <code>-Xmx2g</code>. */
+    public ProcessShardLauncher(List<String> jvmOptions) {
+        this.jvmOptions = new ArrayList<>(jvmOptions);
+    }
+
+    @Override
+    public ShardConnection launch(int shard) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        return new ProcessConnection(shard, process);
+    }
+
+    private static class ProcessConnection implements ShardConnection {
+        private final int shard;
+        private final Process process;
+
+        ProcessConnection(int shard, Process process) {
+            this.shard = shard;
+            this.process = process;
+        }
+
+        @Override
+        public OutputStream requests() {
+            return process.getOutputStream();
+        }
+
+        @Override
+        public InputStream responses() {
+            return process.getInputStream();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            process.getOutputStream().close();
+            try {
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker of shard " + shard + " exited with code " + exitCode);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+                throw new IOException("Interrupted while waiting for the worker of shard " + shard, e);
+            }
+        }
+
+        @Override
+        public void abort() {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The two streams between a {@link ShardCoordinator} and a {@link ShardWorker}, e.g. the pipes of a child process or
+ * a socket.
+ */
+public interface ShardConnection {
+
+    /** Receives the groups for the worker. */
+    OutputStream requests() throws IOException;
+
+    /** Delivers the aggregates of the worker. */
+    InputStream responses() throws IOException;
+
+    /** Waits until the worker has finished its session. Fails if it did not end normally. */
+    void finish() throws IOException;
+
+    /** Terminates the session without waiting for the worker. */
+    void abort();
+}
@@ -0,0 +1,285 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.culturegraph.recordaggregator.pipeline.PipelineStatistics;
+import org.culturegraph.recordaggregator.pipeline.RecordCodec;
+import org.culturegraph.recordaggregator.plugin.BuildNumberAllocator;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.culturegraph.recordaggregator.plugin.SubfieldNormalizer;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.marc4j.marc.Record;
+
+/**
+ * Aggregates groups of records in several worker processes, each with its own heap and builder.
+ *
+ * <P> Groups are assigned to shards by consistent hashing of their cluster keys, see {@link ShardRing}. The
+ * coordinator numbers the groups in input order and sends each group with its build number to the worker of its
+ * shard, see {@link ShardWorker}. The aggregates are collected from all workers and passed to the sink in input
+ * order, so the output is the same as that of a single process, independent of the number of shards.
+ *
+ * <P> How workers are reached is left to the {@link ShardLauncher}: {@link ProcessShardLauncher} starts them as child
+ * processes on the local host, {@link SocketShardLauncher} connects to workers on other hosts. A dispatcher thread
+ * writes the groups, one thread per shard reads the aggregates, and the calling thread writes to the sink. At most
+ * {@value #PENDING_GROUPS_PER_SHARD} groups per shard are on their way at any time.
+ */
+public class ShardCoordinator {
+
+    private static final int PENDING_GROUPS_PER_SHARD = 256;
+    /** Minimal interval between two progress reports. */
+    private static final long PROGRESS_INTERVAL_NANOS = 10_000_000_000L;
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Ends the queue of shards in input order */
+    private static final int NO_SHARD = -1;
+    /** Ends the queue of aggregates of a shard */
+    private static final Object END_OF_SHARD = new Object();
+
+    private final ShardLauncher launcher;
+    private final ShardRing ring;
+    private final ShardSettings settings;
+    private BuildNumberAllocator buildNumbers;
+    private Consumer<PipelineStatistics> progressListener;
+
+    public ShardCoordinator(ShardLauncher launcher, int shards) {
+        this.launcher = launcher;
+        this.ring = new ShardRing(shards);
+        this.settings = new ShardSettings();
+        this.progressListener = statistics -> {};
+    }
+
+    public void setBuildNumberPrefix(String prefix) {
+        settings.prefix = prefix;
+    }
+
+    public void setBuildNumberSuffix(String suffix) {
+        settings.suffix = suffix;
+    }
+
+    public void setCatalogingAgency(String catalogingAgency) {
+        settings.catalogingAgency = catalogingAgency;
+    }
+
+    public void setMergeStrategy(MergeStrategy mergeStrategy) {
+        settings.mergeStrategy = mergeStrategy;
+    }
+
+    /** Normalizes subfields in the workers, see {@link SubfieldNormalizer#parse(String)}. */
+    public void setNormalization(String rules) {
+        settings.normalization = rules == null ? "" : rules;
+    }
+
+    /** Numbers the aggregates with the allocator instead of counting them; only the coordinator uses it. */
+    public void setBuildNumberAllocator(BuildNumberAllocator buildNumbers) {
+        this.buildNumbers = buildNumbers;
+    }
+
+    /** Receives intermediate statistics about every ten seconds. */
+    public void setProgressListener(Consumer<PipelineStatistics> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Starts a session with a worker per shard, aggregates all groups and ends the session.
+     * <P> Groups without a cluster key (<code>null</code>) are distributed round robin.
+     */
+    public PipelineStatistics run(Iterator<Map.Entry<String,List<Record>>> groups, RecordSink sink)
+            throws IOException {
+        long start = System.nanoTime();
+        Session session = new Session();
+        try {
+            session.start(groups);
+            long aggregates = session.collect(sink, start);
+            session.finish();
+            return new PipelineStatistics(session.records.get(), aggregates, System.nanoTime() - start);
+        } finally {
+            session.abort();
+        }
+    }
+
+    /** The connections and threads of one run. */
+    private class Session {
+        final int shards = ring.size();
+        final List<ShardConnection> connections = new ArrayList<>();
+        final List<DataOutputStream> requests = new ArrayList<>();
+        final List<BlockingQueue<Object>> responses = new ArrayList<>();
+        final BlockingQueue<Integer> order = new LinkedBlockingQueue<>();
+        final Semaphore pending = new Semaphore(shards * PENDING_GROUPS_PER_SHARD);
+        final AtomicLong records = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        volatile Throwable dispatchFailure;
+        boolean finished;
+
+        void start(Iterator<Map.Entry<String,List<Record>>> groups) throws IOException {
+            for (int shard = 0; shard < shards; shard++) {
+                ShardConnection connection = launcher.launch(shard);
+                connections.add(connection);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.requests(),
+                        BUFFER_SIZE));
+                settings.write(out);
+                out.flush();
+                requests.add(out);
+
+                BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+                responses.add(queue);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.responses(),
+                        BUFFER_SIZE));
+                startThread("shard-reader-" + shard, () -> read(in, queue));
+            }
+            startThread("shard-dispatcher", () -> dispatch(groups));
+        }
+
+        void dispatch(Iterator<Map.Entry<String,List<Record>>> groups) {
+            RecordCodec codec = new RecordCodec();
+            long count = 0;
+            try {
+                while (groups.hasNext()) {
+                    Map.Entry<String,List<Record>> group = groups.next();
+                    count += 1;
+                    String key = group.getKey();
+                    int shard = key == null ? (int) ((count - 1) % shards) : ring.shardOf(key);
+                    long buildNumber = buildNumbers == null ? count : buildNumbers.numberOf(key);
+
+                    if (!pending.tryAcquire()) {
+                        // Let the workers catch up with what is buffered before waiting for them
+                        flushRequests();
+                        pending.acquire();
+                    }
+
+                    List<Record> members = group.getValue();
+                    DataOutputStream out = requests.get(shard);
+                    out.writeByte(ShardSettings.GROUP);
+                    out.writeLong(buildNumber);
+                    out.writeInt(members.size());
+                    for (Record record: members) {
+                        codec.write(record, out);
+                    }
+                    records.addAndGet(members.size());
+                    order.add(shard);
+                }
+
+                for (DataOutputStream out: requests) {
+                    out.writeByte(ShardSettings.END);
+                }
+                flushRequests();
+            } catch (InterruptedException e) {
+                dispatchFailure = new InterruptedIOException("Interrupted while dispatching groups");
+            } catch (IOException | RuntimeException | Error e) {
+                dispatchFailure = e;
+            } finally {
+                order.add(NO_SHARD);
+            }
+        }
+
+        void read(DataInputStream in, BlockingQueue<Object> queue) {
+            RecordCodec codec = new RecordCodec();
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == ShardSettings.END) {
+                        queue.add(END_OF_SHARD);
+                        return;
+                    }
+                    if (type != ShardSettings.AGGREGATE) {
+                        throw new IOException("Unexpected frame type " + type);
+                    }
+                    queue.add(codec.read(in));
+                }
+            } catch (IOException | RuntimeException e) {
+                queue.add(e);
+            }
+        }
+
+        /** Passes the aggregates to the sink in the order of their groups. */
+        long collect(RecordSink sink, long start) throws IOException {
+            long aggregates = 0;
+            long lastReport = start;
+            while (true) {
+                int shard = take(order);
+                if (shard == NO_SHARD) {
+                    break;
+                }
+                sink.write(aggregate(shard, take(responses.get(shard))));
+                pending.release();
+                aggregates += 1;
+
+                long now = System.nanoTime();
+                if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                    lastReport = now;
+                    progressListener.accept(new PipelineStatistics(records.get(), aggregates, now - start));
+                }
+            }
+
+            Throwable failure = dispatchFailure;
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            return aggregates;
+        }
+
+        void finish() throws IOException {
+            for (int shard = 0; shard < shards; shard++) {
+                Object response = take(responses.get(shard));
+                if (response != END_OF_SHARD) {
+                    aggregate(shard, response);
+                    throw new IOException("Shard " + shard + " returned more aggregates than it received groups");
+                }
+                connections.get(shard).finish();
+            }
+            finished = true;
+        }
+
+        void abort() {
+            if (finished) {
+                return;
+            }
+            connections.forEach(ShardConnection::abort);
+            threads.forEach(Thread::interrupt);
+        }
+
+        private Record aggregate(int shard, Object response) throws IOException {
+            if (response instanceof Record) {
+                return (Record) response;
+            }
+            if (response == END_OF_SHARD) {
+                throw new IOException("Shard " + shard + " returned fewer aggregates than it received groups");
+            }
+            throw new IOException("Shard " + shard + " failed", (Throwable) response);
+        }
+
+        private void flushRequests() throws IOException {
+            for (DataOutputStream out: requests) {
+                out.flush();
+            }
+        }
+
+        private void startThread(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        private <T> T take(BlockingQueue<T> queue) throws IOException {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for aggregates");
+            }
+        }
+    }
+}
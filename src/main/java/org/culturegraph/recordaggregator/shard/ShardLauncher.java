@@ -0,0 +1,10 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.IOException;
+
+/** Starts or connects to the worker of a shard. */
+@FunctionalInterface
+public interface ShardLauncher {
+
+    ShardConnection launch(int shard) throws IOException;
+}
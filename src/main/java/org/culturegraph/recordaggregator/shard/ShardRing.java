@@ -0,0 +1,69 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.util.Arrays;
+
+/**
+ * Assigns cluster keys to shards by consistent hashing.
+ *
+ * <P> Every shard owns a number of virtual nodes on a ring of 64 bit hashes, and a key belongs to the shard of the
+ * first node at or after the hash of the key. Keys are spread evenly, and adding a shard only moves the keys that the
+ * new shard takes over. The hashes do not depend on the JVM, so every process assigns a key to the same shard.
+ */
+public class ShardRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int shards;
+    private final long[] points;
+    private final int[] owners;
+
+    public ShardRing(int shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardRing(int shards, int virtualNodes) {
+        if (shards < 1 || virtualNodes < 1) {
+            throw new IllegalArgumentException("Shards and virtual nodes must be positive");
+        }
+        this.shards = shards;
+
+        long[][] nodes = new long[shards * virtualNodes][];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                nodes[shard * virtualNodes + node] = new long[]{hash("shard-" + shard + "#" + node), shard};
+            }
+        }
+        Arrays.sort(nodes, (n1, n2) -> Long.compare(n1[0], n2[0]));
+
+        this.points = new long[nodes.length];
+        this.owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    public int size() {
+        return shards;
+    }
+
+    public int shardOf(String clusterKey) {
+        int i = Arrays.binarySearch(points, hash(clusterKey));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /** FNV-1a over the UTF-16 code units, finished with the mixing function of SplitMix64. */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
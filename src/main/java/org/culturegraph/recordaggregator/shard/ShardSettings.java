@@ -0,0 +1,77 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.culturegraph.recordaggregator.plugin.SubfieldNormalizer;
+
+/**
+ * The builder settings that a coordinator sends to its workers at the start of a session.
+ *
+ * <P> A session consists of
+ * <pre>
+ *   coordinator: MAGIC | VERSION | settings | (GROUP build number, record count, records)* | END
+ *   worker:      (AGGREGATE record)* | END
+ * </pre>
+ * where records are encoded by a {@link org.culturegraph.recordaggregator.pipeline.RecordCodec}. The worker answers
+ * the groups in the order it received them.
+ */
+class ShardSettings {
+
+    static final int MAGIC = 0x43475348;
+    static final int VERSION = 1;
+    static final byte GROUP = 1;
+    static final byte AGGREGATE = 1;
+    static final byte END = 2;
+
+    String prefix = "";
+    String suffix = "";
+    String catalogingAgency = "";
+    MergeStrategy mergeStrategy = MergeStrategy.SORT;
+    /** Rules of {@link SubfieldNormalizer#parse(String)}, empty for none */
+    String normalization = "";
+
+    AggregatedRecordBuilderImpl newBuilder() {
+        SubfieldNormalizer normalizer = normalization.isEmpty()
+                ? SubfieldNormalizer.NONE
+                : SubfieldNormalizer.parse(normalization);
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(mergeStrategy, normalizer);
+        builder.setBuildNumberPrefix(prefix);
+        builder.setBuildNumberSuffix(suffix);
+        builder.setCatalogingAgency(catalogingAgency);
+        return builder;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(prefix);
+        out.writeUTF(suffix);
+        out.writeUTF(catalogingAgency);
+        out.writeUTF(mergeStrategy.name());
+        out.writeUTF(normalization);
+    }
+
+    static ShardSettings read(DataInput in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Not a shard session of version " + VERSION);
+        }
+
+        ShardSettings settings = new ShardSettings();
+        settings.prefix = in.readUTF();
+        settings.suffix = in.readUTF();
+        settings.catalogingAgency = in.readUTF();
+        try {
+            settings.mergeStrategy = MergeStrategy.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown merge strategy", e);
+        }
+        settings.normalization = in.readUTF();
+        return settings;
+    }
+}
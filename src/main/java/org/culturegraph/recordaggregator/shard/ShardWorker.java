@@ -0,0 +1,157 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.culturegraph.recordaggregator.pipeline.RecordCodec;
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.marc4j.marc.Record;
+
+/**
+ * Aggregates the groups that a {@link ShardCoordinator} sends to one shard.
+ *
+ * <P> Started without arguments, the worker serves a single session over its standard input and output, as child
+ * process of a {@link ProcessShardLauncher}. Started with <code>--port PORT</code>, it serves one session after the
+ * other on a TCP port for a {@link SocketShardLauncher}. The sessions are not authenticated, so the port is bound to
+ * the loopback address unless another address is given with <code>--bind ADDRESS</code>, e.g. <i>0.0.0.0</i> for
+ * all interfaces of a host in a trusted network.
+ *
+ * <P> The build numbers come with the groups, so the aggregates of all shards are numbered as if a single builder
+ * had built them.
+ */
+public class ShardWorker {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: ShardWorker [--port PORT [--bind ADDRESS]]",
+            "",
+            "Without options, serves one session over standard input and output.",
+            "",
+            "  --port PORT      serve one session after the other on a TCP port",
+            "  --bind ADDRESS   address to listen on (default: the loopback address); the sessions are",
+            "                   not authenticated, so only bind to addresses of a trusted network");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final RecordCodec codec = new RecordCodec();
+
+    public static void main(String[] args) {
+        System.exit(new ShardWorker().run(args, System.in, System.out, System.err));
+    }
+
+    /** @return The exit code: <i>0</i> on success, <i>1</i> on failure and <i>2</i> on invalid arguments. */
+    int run(String[] args, InputStream stdin, OutputStream stdout, PrintStream stderr) {
+        Integer port = null;
+        InetAddress address = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                switch (arg) {
+                    case "--port": port = port(args[++i]); break;
+                    case "--bind": address = InetAddress.getByName(args[++i]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (address != null && port == null) {
+                throw new IllegalArgumentException("--bind needs --port");
+            }
+        } catch (IllegalArgumentException | UnknownHostException e) {
+            stderr.println(e.getMessage());
+            stderr.println(USAGE);
+            return 2;
+        }
+
+        try {
+            if (port != null) {
+                serve(address != null ? address : InetAddress.getLoopbackAddress(), port, stderr);
+            } else {
+                run(stdin, stdout);
+            }
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            stderr.println("Shard worker failed: " + e);
+            return 1;
+        }
+    }
+
+    /** Serves sessions on a TCP port of the loopback address, see {@link #serve(InetAddress, int, PrintStream)}. */
+    public void serve(int port) throws IOException {
+        serve(InetAddress.getLoopbackAddress(), port, System.err);
+    }
+
+    /**
+     * Serves sessions on a TCP port until the process is terminated. A failed session is reported to
+     * <i>stderr</i> and does not end the worker.
+     * @param address The address to listen on; the sessions are not authenticated.
+     */
+    public void serve(InetAddress address, int port, PrintStream stderr) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 0, address)) {
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    run(socket.getInputStream(), socket.getOutputStream());
+                } catch (IOException | RuntimeException e) {
+                    stderr.println("Session failed: " + e);
+                }
+            }
+        }
+    }
+
+    private static int port(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 0xFFFF) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid port " + value);
+    }
+
+    /** Serves one session. */
+    public void run(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+        AggregatedRecordBuilderImpl builder = ShardSettings.read(in).newBuilder();
+
+        while (true) {
+            // Pass on the aggregates before waiting for more groups
+            if (in.available() == 0) {
+                out.flush();
+            }
+
+            byte type = in.readByte();
+            if (type == ShardSettings.END) {
+                break;
+            }
+            if (type != ShardSettings.GROUP) {
+                throw new IOException("Unexpected frame type " + type);
+            }
+
+            long buildNumber = in.readLong();
+            int records = in.readInt();
+            for (int i = 0; i < records; i++) {
+                builder.add(codec.read(in));
+            }
+            Record aggregate = builder.build(buildNumber);
+            out.writeByte(ShardSettings.AGGREGATE);
+            codec.write(aggregate, out);
+        }
+
+        out.writeByte(ShardSettings.END);
+        out.flush();
+    }
+}
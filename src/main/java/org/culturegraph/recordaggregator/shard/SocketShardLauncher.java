@@ -0,0 +1,67 @@
+package org.culturegraph.recordaggregator.shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connects to workers that listen on TCP ports, see
+ * {@link ShardWorker#serve(java.net.InetAddress, int, java.io.PrintStream)}. Shard <i>i</i> is served by the
+ * <i>i</i>-th address, which may be on any host whose worker was bound to an address the coordinator can reach.
+ */
+public class SocketShardLauncher implements ShardLauncher {
+
+    private final List<InetSocketAddress> workers;
+
+    public SocketShardLauncher(List<InetSocketAddress> workers) {
+        this.workers = new ArrayList<>(workers);
+    }
+
+    @Override
+    public ShardConnection launch(int shard) throws IOException {
+        if (shard >= workers.size()) {
+            throw new IOException("No worker address for shard " + shard);
+        }
+        Socket socket = new Socket();
+        socket.connect(workers.get(shard));
+        socket.setTcpNoDelay(true);
+        return new SocketConnection(socket);
+    }
+
+    private static class SocketConnection implements ShardConnection {
+        private final Socket socket;
+
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public OutputStream requests() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public InputStream responses() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            // The worker confirmed the end of the session before
+            socket.close();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The session is abandoned anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package org.culturegraph.recordaggregator.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.marc4j.marc.DataField;
+
+/**
+ * Encodes records on several threads and writes them to the output in the order in which they were passed in.
+ *
+ * <P> Each record is captured in a slot of a ring buffer that is allocated once: its leader, the tags and data of its
+ * control fields and references to its data fields. Encoder threads take the slots in sequence and encode each record
+ * into the byte buffer of its slot, and a writer thread writes the buffers to the output in sequence, so the output is
+ * identical to that of a single encoder. When all slots are taken, {@link #startRecord(String)} blocks until the
+ * writer has freed one, which bounds the memory held while the output is slower than the aggregation. The occupancy
+ * of the buffer is published through {@link AsyncRecordSinkMXBean}.
+ *
+ * <P> Unlike the {@link RecordSink} contract allows, data fields must not be modified after they were passed in,
+ * because they are encoded later; the builders never modify an aggregate once it was built. A record is encoded after
+ * it was passed in, so the sink cannot report its {@link #position()}. Failures of the encoder and writer threads
+ * are thrown by the next call.
+ */
+public class AsyncRecordSink implements RecordSink, AsyncRecordSinkMXBean {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Slot[] slots;
+    private final OutputStream out;
+    private final RecordSink frame;
+    private final Runnable startOutput;
+    private final Function<OutputStream,RecordSink> newEncoder;
+    private final List<Thread> threads;
+    private final ReentrantLock lock;
+    private final Condition slotFreed;
+    private final Condition recordEnded;
+    private final Condition recordEncoded;
+    /** Records ended by the caller; the next record is captured in slot <i>produced % capacity</i> */
+    private volatile long produced;
+    /** Records taken by an encoder */
+    private long claimed;
+    private volatile long written;
+    private volatile int maxOccupancy;
+    private volatile long blockedNanos;
+    private volatile RuntimeException failure;
+    private boolean closed;
+    private Slot current;
+
+    private AsyncRecordSink(OutputStream out, RecordSink frame, Runnable startOutput,
+                            Function<OutputStream,RecordSink> newEncoder, int encoderThreads, int capacity) {
+        if (encoderThreads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Expected encoder threads and capacity, but was " + encoderThreads
+                    + " and " + capacity);
+        }
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.out = out;
+        this.frame = frame;
+        this.startOutput = startOutput;
+        this.newEncoder = newEncoder;
+        this.lock = new ReentrantLock();
+        this.slotFreed = lock.newCondition();
+        this.recordEnded = lock.newCondition();
+        this.recordEncoded = lock.newCondition();
+
+        this.threads = new ArrayList<>();
+        for (int i = 0; i < encoderThreads; i++) {
+            threads.add(new Thread(this::encode, "record-encoder-" + (i + 1)));
+        }
+        threads.add(new Thread(this::write, "record-writer"));
+        for (Thread thread: threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Encodes like {@link Iso2709Encoder}.
+     * @param encoderThreads Number of threads that encode records.
+     * @param capacity Number of records that may wait to be encoded or written, see {@link #DEFAULT_CAPACITY}.
+     */
+    public static AsyncRecordSink iso2709(OutputStream out, boolean allowOversize, int encoderThreads, int capacity) {
+        return new AsyncRecordSink(out, new Iso2709Encoder(out, allowOversize), () -> {},
+                buffer -> new Iso2709Encoder(buffer, allowOversize), encoderThreads, capacity);
+    }
+
+    /** Encodes like {@link MarcXmlEncoder}, see {@link #iso2709(OutputStream, boolean, int, int)}. */
+    public static AsyncRecordSink marcXml(OutputStream out, int encoderThreads, int capacity) {
+        MarcXmlEncoder frame = new MarcXmlEncoder(out);
+        return new AsyncRecordSink(out, frame, () -> {
+            try {
+                frame.startCollection();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            frame.flush();
+        }, MarcXmlEncoder::records, encoderThreads, capacity);
+    }
+
+    @Override
+    public void startRecord(String leader) {
+        lock.lock();
+        try {
+            if (produced - written == slots.length) {
+                long start = System.nanoTime();
+                while (produced - written == slots.length && failure == null) {
+                    slotFreed.awaitUninterruptibly();
+                }
+                blockedNanos += System.nanoTime() - start;
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+        current = slots[(int) (produced % slots.length)];
+        current.leader = leader;
+        current.controlTags.clear();
+        current.controlData.clear();
+        current.dataFields.clear();
+    }
+
+    @Override
+    public void controlField(String tag, String data) {
+        current.controlTags.add(tag);
+        current.controlData.add(data);
+    }
+
+    @Override
+    public void dataField(DataField dataField) {
+        current.dataFields.add(dataField);
+    }
+
+    @Override
+    public void endRecord() {
+        current = null;
+        lock.lock();
+        try {
+            checkFailure();
+            produced++;
+            maxOccupancy = Math.max(maxOccupancy, (int) (produced - written));
+            recordEnded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits until all records ended so far are written and flushes the output. */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            while (written < produced && failure == null) {
+                slotFreed.awaitUninterruptibly();
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+        frame.flush();
+    }
+
+    /** Writes the remaining records, stops the threads, ends the output and closes the stream. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            recordEnded.signalAll();
+            recordEncoded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread thread: threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the records to be written", e);
+            }
+        }
+        if (failure != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+            throw failure;
+        }
+        frame.close();
+    }
+
+    @Override
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    @Override
+    public int getOccupancy() {
+        return (int) (produced - written);
+    }
+
+    @Override
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    @Override
+    public long getRecordsWritten() {
+        return written;
+    }
+
+    @Override
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "output buffer: %d records written, occupancy %d of %d at most, blocked %d ms",
+                getRecordsWritten(), getMaxOccupancy(), getCapacity(), getBlockedNanos() / 1_000_000);
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = e;
+            }
+            slotFreed.signalAll();
+            recordEnded.signalAll();
+            recordEncoded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Loop of an encoder thread, which encodes the next record that is not taken yet. */
+    private void encode() {
+        SlotStream stream = new SlotStream();
+        RecordSink encoder = newEncoder.apply(stream);
+        try {
+            while (true) {
+                Slot slot;
+                lock.lock();
+                try {
+                    while (claimed == produced && !closed && failure == null) {
+                        recordEnded.awaitUninterruptibly();
+                    }
+                    if (claimed == produced || failure != null) {
+                        return;
+                    }
+                    slot = slots[(int) (claimed++ % slots.length)];
+                } finally {
+                    lock.unlock();
+                }
+
+                slot.bytes.reset();
+                stream.target = slot.bytes;
+                encoder.startRecord(slot.leader);
+                for (int i = 0; i < slot.controlTags.size(); i++) {
+                    encoder.controlField(slot.controlTags.get(i), slot.controlData.get(i));
+                }
+                for (int i = 0; i < slot.dataFields.size(); i++) {
+                    encoder.dataField(slot.dataFields.get(i));
+                }
+                encoder.endRecord();
+                encoder.flush();
+                // Let go of the fields of the aggregate before the slot is taken again
+                slot.dataFields.clear();
+
+                lock.lock();
+                try {
+                    slot.encoded = true;
+                    recordEncoded.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            fail(e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e));
+        }
+    }
+
+    /** Loop of the writer thread, which writes the records in sequence as soon as they are encoded. */
+    private void write() {
+        try {
+            while (true) {
+                Slot slot;
+                lock.lock();
+                try {
+                    while (failure == null && !(written < produced && slots[(int) (written % slots.length)].encoded)
+                            && !(closed && written == produced)) {
+                        recordEncoded.awaitUninterruptibly();
+                    }
+                    if (failure != null || written == produced) {
+                        return;
+                    }
+                    slot = slots[(int) (written % slots.length)];
+                } finally {
+                    lock.unlock();
+                }
+
+                if (written == 0) {
+                    startOutput.run();
+                }
+                slot.bytes.writeTo(out);
+
+                lock.lock();
+                try {
+                    slot.encoded = false;
+                    written++;
+                    slotFreed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            fail(new UncheckedIOException(e));
+        } catch (RuntimeException | Error e) {
+            fail(e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e));
+        }
+    }
+
+    /** A record between the caller and the output. */
+    private static final class Slot {
+        final List<String> controlTags = new ArrayList<>();
+        final List<String> controlData = new ArrayList<>();
+        final List<DataField> dataFields = new ArrayList<>();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 12);
+        String leader;
+        /** Guarded by the lock */
+        boolean encoded;
+    }
+
+    /** Passes the bytes of an encoder on to the buffer of the slot it encodes. */
+    private static final class SlotStream extends OutputStream {
+        ByteArrayOutputStream target;
+
+        @Override
+        public void write(int b) {
+            target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.write(b, off, len);
+        }
+    }
+}
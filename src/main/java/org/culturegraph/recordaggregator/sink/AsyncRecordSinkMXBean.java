@@ -0,0 +1,22 @@
+package org.culturegraph.recordaggregator.sink;
+
+/**
+ * Management interface of {@link AsyncRecordSink}, see
+ * {@link org.culturegraph.recordaggregator.metrics.JmxExporter#register(AsyncRecordSinkMXBean, String)}.
+ */
+public interface AsyncRecordSinkMXBean {
+
+    /** Number of slots of the ring buffer. */
+    int getCapacity();
+
+    /** Records that were passed to the sink but not yet written to the output. */
+    int getOccupancy();
+
+    /** Highest occupancy so far; a full buffer means that the output was slower than the records arrived. */
+    int getMaxOccupancy();
+
+    long getRecordsWritten();
+
+    /** Time spent by the caller waiting for a free slot. */
+    long getBlockedNanos();
+}
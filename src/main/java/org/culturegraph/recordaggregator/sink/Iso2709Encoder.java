@@ -0,0 +1,213 @@
+package org.culturegraph.recordaggregator.sink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.marc4j.MarcException;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Encodes records as UTF-8 ISO 2709, byte for byte like marc4j's <code>MarcStreamWriter</code> with the encoding
+ * <i>UTF-8</i>.
+ *
+ * <P> The directory and the field data of the current record are encoded into two byte arrays that are reused for
+ * all records; characters are encoded without intermediate strings or byte arrays. Like <code>MarcStreamWriter</code>
+ * with oversize entries allowed, lengths and offsets that do not fit their digits are written as nines; otherwise
+ * records longer than 99999 bytes and fields longer than 9999 bytes are rejected.
+ */
+public class Iso2709Encoder implements RecordSink {
+
+    private static final int LEADER_LENGTH = 24;
+    private static final int FIELD_TERMINATOR = 0x1E;
+    private static final int RECORD_TERMINATOR = 0x1D;
+    private static final int SUBFIELD_DELIMITER = 0x1F;
+    private static final int MAX_RECORD_LENGTH = 99999;
+    private static final int MAX_FIELD_LENGTH = 9999;
+
+    private final OutputStream out;
+    private final boolean allowOversize;
+    private final Bytes directory;
+    private final Bytes data;
+    private final byte[] leader;
+    private long position;
+
+    /**
+     * @param allowOversize Whether records and fields that exceed the limits of ISO 2709 are written anyway.
+     */
+    public Iso2709Encoder(OutputStream out, boolean allowOversize) {
+        this(out, allowOversize, 0);
+    }
+
+    /**
+     * Continues an output of which <i>position</i> bytes were written before, for example by an interrupted run.
+     * @see #position()
+     */
+    public Iso2709Encoder(OutputStream out, boolean allowOversize, long position) {
+        this.out = out;
+        this.position = position;
+        this.allowOversize = allowOversize;
+        this.directory = new Bytes(1 << 10);
+        this.data = new Bytes(1 << 12);
+        this.leader = new byte[LEADER_LENGTH];
+    }
+
+    @Override
+    public void startRecord(String leader) {
+        if (leader.length() != LEADER_LENGTH) {
+            throw new MarcException("Leader must have " + LEADER_LENGTH + " characters, but was " + leader);
+        }
+        for (int i = 0; i < LEADER_LENGTH; i++) {
+            this.leader[i] = (byte) leader.charAt(i);
+        }
+        directory.size = 0;
+        data.size = 0;
+    }
+
+    @Override
+    public void controlField(String tag, String fieldData) {
+        int start = data.size;
+        data.putUtf8(fieldData);
+        data.put(FIELD_TERMINATOR);
+        putEntry(tag, start);
+    }
+
+    @Override
+    public void dataField(DataField dataField) {
+        int start = data.size;
+        data.put(dataField.getIndicator1());
+        data.put(dataField.getIndicator2());
+        List<Subfield> subfields = dataField.getSubfields();
+        for (int i = 0; i < subfields.size(); i++) {
+            Subfield subfield = subfields.get(i);
+            data.put(SUBFIELD_DELIMITER);
+            data.put(subfield.getCode());
+            data.putUtf8(subfield.getData());
+        }
+        data.put(FIELD_TERMINATOR);
+        putEntry(dataField.getTag(), start);
+    }
+
+    @Override
+    public void endRecord() {
+        directory.put(FIELD_TERMINATOR);
+        int baseAddress = LEADER_LENGTH + directory.size;
+        int recordLength = baseAddress + data.size + 1;
+        if (!allowOversize && recordLength > MAX_RECORD_LENGTH) {
+            throw new MarcException("Record is " + recordLength + " bytes long, more than ISO 2709 allows");
+        }
+
+        putDigits(leader, 0, recordLength, 5);
+        putDigits(leader, 12, baseAddress, 5);
+        try {
+            out.write(leader);
+            out.write(directory.bytes, 0, directory.size);
+            out.write(data.bytes, 0, data.size);
+            out.write(RECORD_TERMINATOR);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position += recordLength;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void putEntry(String tag, int start) {
+        int length = data.size - start;
+        if (!allowOversize && length > MAX_FIELD_LENGTH) {
+            throw new MarcException("Field " + tag + " is " + length + " bytes long, more than ISO 2709 allows");
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            directory.put(tag.charAt(i));
+        }
+        directory.ensureCapacity(9);
+        putDigits(directory.bytes, directory.size, length, 4);
+        putDigits(directory.bytes, directory.size + 4, start, 5);
+        directory.size += 9;
+    }
+
+    /** Writes a number with leading zeros, or all nines if it has more digits, as marc4j does. */
+    private static void putDigits(byte[] bytes, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        if (value > 0) {
+            Arrays.fill(bytes, offset, offset + digits, (byte) '9');
+        }
+    }
+
+    /** A growable byte array. */
+    private static final class Bytes {
+        byte[] bytes;
+        int size;
+
+        Bytes(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void put(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+        }
+
+        /** Encodes like {@link String#getBytes(java.nio.charset.Charset)}, which replaces lone surrogates by '?'. */
+        void putUtf8(String s) {
+            int length = s.length();
+            ensureCapacity(3 * length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                        bytes[size++] = (byte) (0xF0 | codePoint >> 18);
+                        bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                        bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                        bytes[size++] = (byte) (0x80 | codePoint & 0x3F);
+                    } else {
+                        bytes[size++] = '?';
+                    }
+                } else {
+                    bytes[size++] = (byte) (0xE0 | c >> 12);
+                    bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+
+        void ensureCapacity(int additional) {
+            if (size + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + additional, bytes.length * 2));
+            }
+        }
+    }
+}
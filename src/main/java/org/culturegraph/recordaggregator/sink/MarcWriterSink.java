@@ -0,0 +1,56 @@
+package org.culturegraph.recordaggregator.sink;
+
+import org.culturegraph.recordaggregator.plugin.SharedMarcFactory;
+import org.marc4j.MarcWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+/**
+ * Assembles the fields passed to the sink into a {@link Record} and writes it with a {@link MarcWriter}.
+ *
+ * <P> Adapts writers for which there is no encoder; {@link Iso2709Encoder} and {@link MarcXmlEncoder} encode
+ * without assembling records. Complete records are passed on as they are.
+ */
+public class MarcWriterSink implements RecordSink {
+
+    private final MarcWriter writer;
+    private final MarcFactory factory;
+    private Record record;
+
+    public MarcWriterSink(MarcWriter writer) {
+        this.writer = writer;
+        this.factory = SharedMarcFactory.get();
+    }
+
+    @Override
+    public void startRecord(String leader) {
+        record = factory.newRecord(leader);
+    }
+
+    @Override
+    public void controlField(String tag, String data) {
+        record.addVariableField(factory.newControlField(tag, data));
+    }
+
+    @Override
+    public void dataField(DataField dataField) {
+        record.addVariableField(dataField);
+    }
+
+    @Override
+    public void endRecord() {
+        writer.write(record);
+        record = null;
+    }
+
+    @Override
+    public void write(Record record) {
+        writer.write(record);
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
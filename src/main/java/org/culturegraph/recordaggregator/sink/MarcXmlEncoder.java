@@ -0,0 +1,257 @@
+package org.culturegraph.recordaggregator.sink;
+
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.marc4j.MarcException;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Encodes records as a MARCXML collection in UTF-8 that is equivalent to the output of marc4j's
+ * <code>MarcXmlWriter</code> with the encoding <i>UTF-8</i> and without indentation: it reads back as the same
+ * records, but the bytes are not promised to be identical.
+ *
+ * <P> Elements are written straight to a buffered writer instead of going through SAX events and a transformer.
+ * The escaping follows the serializer of current JDKs, which <code>MarcXmlWriter</code> uses, so the bytes usually
+ * match, but another JDK may escape or format differently: <i>&amp;</i>, <i>&lt;</i> and <i>&gt;</i> are written
+ * as entities, and carriage returns, other control characters and supplementary characters as numeric character
+ * references. Lone surrogates cannot be encoded and are rejected.
+ */
+public class MarcXmlEncoder implements RecordSink {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String COLLECTION = "<marc:collection xmlns:marc=\"http://www.loc.gov/MARC21/slim\"";
+
+    /** Length of the declaration and start tag written before the first record, all ASCII */
+    private static final int HEADER_LENGTH = DECLARATION.length() + COLLECTION.length() + 1;
+
+    private final CountingWriter out;
+    private boolean started;
+
+    public MarcXmlEncoder(OutputStream out) {
+        this(out, 0);
+    }
+
+    /**
+     * Continues a collection of which <i>position</i> bytes were written before, for example by an interrupted run.
+     * The collection is only started if nothing was written yet. See {@link #position()}.
+     */
+    public MarcXmlEncoder(OutputStream out, long position) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 13);
+        this.out = new CountingWriter(writer);
+        this.out.bytes = position;
+        this.started = position > 0;
+    }
+
+    /** An encoder that writes only the records, without the collection around them, see {@link AsyncRecordSink}. */
+    static MarcXmlEncoder records(OutputStream out) {
+        return new MarcXmlEncoder(out, HEADER_LENGTH);
+    }
+
+    @Override
+    public void startRecord(String leader) {
+        try {
+            startCollection();
+            out.write("<marc:record><marc:leader>");
+            text(leader);
+            out.write("</marc:leader>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void controlField(String tag, String data) {
+        try {
+            out.write("<marc:controlfield tag=\"");
+            attribute(tag);
+            out.write("\">");
+            text(data);
+            out.write("</marc:controlfield>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void dataField(DataField dataField) {
+        try {
+            out.write("<marc:datafield tag=\"");
+            attribute(dataField.getTag());
+            out.write("\" ind1=\"");
+            attribute(dataField.getIndicator1());
+            out.write("\" ind2=\"");
+            attribute(dataField.getIndicator2());
+            out.write("\">");
+            List<Subfield> subfields = dataField.getSubfields();
+            for (int i = 0; i < subfields.size(); i++) {
+                Subfield subfield = subfields.get(i);
+                out.write("<marc:subfield code=\"");
+                attribute(subfield.getCode());
+                out.write("\">");
+                text(subfield.getData());
+                out.write("</marc:subfield>");
+            }
+            out.write("</marc:datafield>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void endRecord() {
+        try {
+            out.write("</marc:record>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Writes the declaration and the start tag of the collection unless they were written before. */
+    void startCollection() throws IOException {
+        if (!started) {
+            out.write(DECLARATION);
+            out.write(COLLECTION);
+            out.write('>');
+            started = true;
+        }
+    }
+
+    @Override
+    public long position() {
+        return started ? out.bytes : HEADER_LENGTH;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Ends the collection and closes the stream. */
+    @Override
+    public void close() {
+        try {
+            if (started) {
+                out.write("</marc:collection>");
+            } else {
+                out.write(DECLARATION);
+                out.write(COLLECTION);
+                out.write("/>");
+            }
+            out.write('\n');
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void text(String s) throws IOException {
+        int length = s.length();
+        int clean = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7F && c != '&' && c != '<' && c != '>' || c == '\t' || c == '\n') {
+                continue;
+            }
+            if (c >= 0xA0 && !Character.isSurrogate(c)) {
+                continue;
+            }
+            out.write(s, clean, i - clean);
+            i = escape(s, i, c);
+            clean = i + 1;
+        }
+        out.write(s, clean, length - clean);
+    }
+
+    private void attribute(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            i = attribute(s, i, s.charAt(i));
+        }
+    }
+
+    private void attribute(char c) throws IOException {
+        attribute(String.valueOf(c), 0, c);
+    }
+
+    /** Attributes escape tabs, line breaks and quotes as well, but not the C1 control characters. */
+    private int attribute(String s, int i, char c) throws IOException {
+        if (c == '\t' || c == '\n' || c == '"') {
+            out.write(c == '"' ? "&quot;" : "&#" + (int) c + ";");
+            return i;
+        }
+        if (c >= 0x20 && c != '&' && c != '<' && c != '>' && !Character.isSurrogate(c)) {
+            out.write(c);
+            return i;
+        }
+        return escape(s, i, c);
+    }
+
+    /** @return The index of the last character consumed. */
+    private int escape(String s, int i, char c) throws IOException {
+        switch (c) {
+            case '&': out.write("&amp;"); return i;
+            case '<': out.write("&lt;"); return i;
+            case '>': out.write("&gt;"); return i;
+            default:
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            out.write("&#" + Character.toCodePoint(c, s.charAt(i + 1)) + ";");
+            return i + 1;
+        }
+        if (Character.isSurrogate(c)) {
+            throw new MarcException("Invalid UTF-16 surrogate " + Integer.toHexString(c));
+        }
+        out.write("&#" + (int) c + ";");
+        return i;
+    }
+
+    /** Counts the UTF-8 bytes of the characters written, before they are buffered. */
+    private static class CountingWriter extends FilterWriter {
+        long bytes;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            bytes += utf8Length((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            for (int i = off; i < off + len; i++) {
+                bytes += utf8Length(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            for (int i = off; i < off + len; i++) {
+                bytes += utf8Length(str.charAt(i));
+            }
+        }
+
+        /** A surrogate pair takes four bytes, two for each half. */
+        private static int utf8Length(char c) {
+            if (c < 0x80) return 1;
+            if (c < 0x800 || Character.isSurrogate(c)) return 2;
+            return 3;
+        }
+    }
+}
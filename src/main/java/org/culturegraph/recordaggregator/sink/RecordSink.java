@@ -0,0 +1,51 @@
+package org.culturegraph.recordaggregator.sink;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+/**
+ * Receives records field by field, so that an aggregate can be encoded without being assembled as a {@link Record}.
+ *
+ * <P> A record starts with {@link #startRecord(String)}, continues with its control fields and then its data fields,
+ * each in output order, and ends with {@link #endRecord()}. The fields passed to a sink belong to the caller and may
+ * be modified or reused once the record has ended.
+ */
+public interface RecordSink {
+
+    /** @param leader The 24 characters of the leader; lengths and addresses are computed by the sink. */
+    void startRecord(String leader);
+
+    void controlField(String tag, String data);
+
+    void dataField(DataField dataField);
+
+    void endRecord();
+
+    /** Passes a complete record to the sink. */
+    default void write(Record record) {
+        startRecord(record.getLeader().marshal());
+        for (ControlField controlField: record.getControlFields()) {
+            controlField(controlField.getTag(), controlField.getData());
+        }
+        for (DataField dataField: record.getDataFields()) {
+            dataField(dataField);
+        }
+        endRecord();
+    }
+
+    /**
+     * Returns the byte offset in the output at which the next record starts, counting bytes that are still buffered.
+     * <P> Sinks that do not encode bytes themselves return <i>-1</i>.
+     */
+    default long position() {
+        return -1;
+    }
+
+    /** Passes the bytes of the records ended so far on to the underlying stream and flushes it. */
+    default void flush() {
+    }
+
+    /** Ends the output and closes the underlying stream or writer, like {@link org.marc4j.MarcWriter#close()}. */
+    void close();
+}
@@ -0,0 +1,68 @@
+package helper;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.marc4j.MarcXmlReader;
+import org.marc4j.marc.Record;
+
+/**
+ * Reads the MARCXML records of the tests. Every call reads the records anew, since the builder modifies the records it
+ * aggregates.
+ */
+public class Records {
+
+    private static final String[] EXAMPLE_FILES = {"example/record1.xml", "example/record2.xml", "example/record3.xml"};
+
+    private Records() {
+    }
+
+    /** Reads all records of a MARCXML stream, which stays open. */
+    public static List<Record> read(InputStream inputStream) {
+        List<Record> records = new ArrayList<>();
+        MarcXmlReader reader = new MarcXmlReader(inputStream);
+        while (reader.hasNext()) {
+            records.add(reader.next());
+        }
+        return records;
+    }
+
+    /** Reads the records of a test resource, e.g. <i>issueWithSequenceNumber.marcxml</i>. */
+    public static List<Record> resource(String name) {
+        try (InputStream inputStream = Records.class.getClassLoader().getResourceAsStream(name)) {
+            if (inputStream == null) {
+                throw new IllegalArgumentException("No test resource " + name);
+            }
+            return read(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Reads the records of the files in <i>example/</i>, which belong to one cluster. */
+    public static List<Record> example() {
+        List<Record> records = new ArrayList<>();
+        for (String file: EXAMPLE_FILES) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                records.addAll(read(inputStream));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return records;
+    }
+
+    /** Returns the group of the {@link #example()} records followed by one group for each test resource. */
+    public static List<List<Record>> exampleGroups(String... resources) {
+        List<List<Record>> groups = new ArrayList<>();
+        groups.add(example());
+        for (String resource: resources) {
+            groups.add(resource(resource));
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,274 @@
+package org.culturegraph.recordaggregator.cli;
+
+import helper.Records;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MainTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    private ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+    @Test
+    public void shouldAggregateRecordsWithEqualClusterKeys() throws Exception {
+        int exitCode = run(resource("issueWithViolatedSortingOrder.marcxml"),
+                "--cluster-field", "003", "--prefix", "CG_", "--agency", "DE-101");
+
+        assertThat(stderr.toString("UTF-8"), exitCode, equalTo(0));
+        List<Record> aggregates = readXml(stdout.toByteArray());
+        assertThat(aggregates, not(empty()));
+        assertThat(aggregates.get(0).getControlNumber(), equalTo("CG_1"));
+        assertThat(stderr.toString("UTF-8"), containsString("records/s"));
+    }
+
+    @Test
+    public void shouldContinueSavedBuildNumbers() throws Exception {
+        String buildNumbers = folder.getRoot().toPath().resolve("build-numbers").toString();
+        String[] args = {"--cluster-field", "003", "--prefix", "CG_", "--build-numbers", buildNumbers, "--quiet"};
+
+        assertThat(run(resource("issueWithViolatedSortingOrder.marcxml"), args), equalTo(0));
+        int aggregates = readXml(stdout.toByteArray()).size();
+        stdout.reset();
+        assertThat(run(resource("issueWithViolatedSortingOrder.marcxml"), args), equalTo(0));
+
+        // The second run continues right after the last number of the first, not after its whole block
+        assertThat(readXml(stdout.toByteArray()).get(0).getControlNumber(), equalTo("CG_" + (aggregates + 1)));
+    }
+
+    @Test
+    public void shouldResumeAfterTheLastCheckpoint() throws Exception {
+        byte[] input = resource("issueWithSequenceNumber.marcxml");
+        String[] args = {"--cluster-field", "001", "--prefix", "CG_"};
+        assertThat(run(input, args), equalTo(0));
+        byte[] expected = stdout.toByteArray();
+
+        Path output = folder.getRoot().toPath().resolve("output.xml");
+        Path journal = folder.getRoot().toPath().resolve("checkpoints");
+        String[] checkpointed = concat(args, "-o", output.toString(), "--checkpoint", journal.toString(),
+                "--checkpoint-interval", "1");
+        assertThat(run(input, checkpointed), equalTo(0));
+        assertThat(Files.readAllBytes(output), equalTo(expected));
+
+        // A crash after the first checkpoint, while writing the next aggregates and checkpoint
+        byte[] checkpoints = Files.readAllBytes(journal);
+        int firstCheckpointEnd = 8 + 4 + ByteBuffer.wrap(checkpoints, 8, 4).getInt() + 4;
+        Files.write(journal, Arrays.copyOf(checkpoints, firstCheckpointEnd + 3));
+        Files.write(output, Arrays.copyOf(expected, expected.length / 2));
+
+        stderr.reset();
+        assertThat(run(input, concat(checkpointed, "--resume")), equalTo(0));
+        assertThat(stderr.toString("UTF-8"), containsString("Resuming: Checkpoint after 1 records, 1 aggregates"));
+        assertThat(Files.readAllBytes(output), equalTo(expected));
+    }
+
+    @Test
+    public void shouldTakeTheSameCheckpointsWithSeveralThreads() throws Exception {
+        byte[] input = resource("issueWithSequenceNumber.marcxml");
+        Path output = folder.getRoot().toPath().resolve("output.xml");
+        Path journal = folder.getRoot().toPath().resolve("checkpoints");
+        String[] args = {"--cluster-field", "001", "--prefix", "CG_", "-o", output.toString(), "--checkpoint",
+                journal.toString(), "--checkpoint-interval", "1"};
+        assertThat(run(input, args), equalTo(0));
+        byte[] expected = Files.readAllBytes(output);
+        byte[] expectedCheckpoints = Files.readAllBytes(journal);
+
+        Files.delete(journal);
+        String[] threaded = concat(args, "--threads", "2");
+        assertThat(run(input, threaded), equalTo(0));
+        assertThat(Files.readAllBytes(output), equalTo(expected));
+        byte[] checkpoints = Files.readAllBytes(journal);
+        assertThat(checkpoints, equalTo(expectedCheckpoints));
+
+        // A crash after the first checkpoint
+        int firstCheckpointEnd = 8 + 4 + ByteBuffer.wrap(checkpoints, 8, 4).getInt() + 4;
+        Files.write(journal, Arrays.copyOf(checkpoints, firstCheckpointEnd));
+        Files.write(output, Arrays.copyOf(expected, expected.length / 2));
+
+        assertThat(run(input, concat(threaded, "--resume")), equalTo(0));
+        assertThat(Files.readAllBytes(output), equalTo(expected));
+    }
+
+    @Test
+    public void shouldNotResumeOnAChangedInput() throws Exception {
+        byte[] input = resource("issueWithSequenceNumber.marcxml");
+        Path output = folder.getRoot().toPath().resolve("output.xml");
+        Path journal = folder.getRoot().toPath().resolve("checkpoints");
+        String[] args = {"--cluster-field", "001", "--prefix", "CG_", "-o", output.toString(), "--checkpoint",
+                journal.toString(), "--checkpoint-interval", "1"};
+        assertThat(run(input, args), equalTo(0));
+
+        // Another input with as many records, but other cluster keys
+        byte[] changed = new String(input, StandardCharsets.UTF_8)
+                .replaceAll("tag=\"001\">", "tag=\"001\">x").getBytes(StandardCharsets.UTF_8);
+        stderr.reset();
+        assertThat(run(changed, concat(args, "--resume")), equalTo(1));
+        assertThat(stderr.toString("UTF-8"), containsString("The input does not match the checkpoint"));
+    }
+
+    @Test
+    public void shouldWriteTheSameOutputWithEncoderThreads() throws Exception {
+        byte[] input = resource("issueWithSequenceNumber.marcxml");
+        String[] args = {"--cluster-field", "001", "--prefix", "CG_", "--metrics"};
+        assertThat(run(input, args), equalTo(0));
+        byte[] expected = stdout.toByteArray();
+        stdout.reset();
+
+        assertThat(run(input, concat(args, "--encoder-threads", "2", "--output-buffer", "1")), equalTo(0));
+        assertThat(stdout.toByteArray(), equalTo(expected));
+        assertThat(stderr.toString("UTF-8"), containsString("output buffer: "));
+    }
+
+    @Test
+    public void shouldReadClusterKeysFromMapping() throws Exception {
+        Path mapping = folder.newFile("mapping.tsv").toPath();
+        List<Record> records = readXml(resource("issueWithSequenceNumber.marcxml"));
+        List<String> lines = new ArrayList<>();
+        for (Record record: records) {
+            lines.add(record.getControlNumber() + "\tcluster");
+        }
+        Files.write(mapping, lines, StandardCharsets.UTF_8);
+
+        int exitCode = run(resource("issueWithSequenceNumber.marcxml"),
+                "--cluster-map", mapping.toString(), "--output-format", "iso2709", "--quiet");
+
+        assertThat(exitCode, equalTo(0));
+        MarcStreamReader reader = new MarcStreamReader(new ByteArrayInputStream(stdout.toByteArray()));
+        assertThat(reader.next().getControlNumber(), equalTo("1"));
+        assertThat(reader.hasNext(), is(false));
+        assertThat(stderr.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldAggregateMappedFilesLikeTheStreamingPipeline() throws Exception {
+        Path input = folder.newFile("input.mrc").toPath();
+        run(resource("issueWithSequenceNumber.marcxml"), "--cluster-field", "001", "--output-format", "iso2709", "-o",
+                input.toString(), "--quiet");
+        Path streamed = folder.newFile("streamed.mrc").toPath();
+        Path mapped = folder.newFile("mapped.mrc").toPath();
+        String[] options = {"--cluster-field", "003", "--input-format", "iso2709", "--output-format", "iso2709",
+                "-i", input.toString(), "--quiet", "-o"};
+
+        assertThat(run(new byte[0], concat(options, streamed.toString())), equalTo(0));
+        assertThat(run(new byte[0], concat(options, mapped.toString(), "--mapped")), equalTo(0));
+
+        assertThat(Files.size(mapped), greaterThan(0L));
+        assertThat(Files.readAllBytes(mapped), equalTo(Files.readAllBytes(streamed)));
+    }
+
+    @Test
+    public void shouldNumberMappedFilesLikeTheStreamingPipeline() throws Exception {
+        Path input = folder.newFile("input.mrc").toPath();
+        run(resource("issueWithSequenceNumber.marcxml"), "--cluster-field", "001", "--output-format", "iso2709", "-o",
+                input.toString(), "--quiet");
+        String[] options = {"--cluster-field", "001", "--input-format", "iso2709", "--output-format", "iso2709",
+                "-i", input.toString(), "--quiet"};
+
+        for (String[] numbering: new String[][]{{}, {"--deterministic-ids"}}) {
+            // Build numbers beyond the range of an int
+            Path streamedNumbers = folder.getRoot().toPath().resolve("streamed-numbers");
+            Path mappedNumbers = folder.getRoot().toPath().resolve("mapped-numbers");
+            Files.write(streamedNumbers, "3000000000".getBytes(StandardCharsets.US_ASCII));
+            Files.write(mappedNumbers, "3000000000".getBytes(StandardCharsets.US_ASCII));
+            Path streamed = folder.getRoot().toPath().resolve("streamed.mrc");
+            Path mapped = folder.getRoot().toPath().resolve("mapped.mrc");
+
+            assertThat(run(new byte[0], concat(concat(options, numbering), "-o", streamed.toString(),
+                    "--build-numbers", streamedNumbers.toString())), equalTo(0));
+            assertThat(run(new byte[0], concat(concat(options, numbering), "-o", mapped.toString(),
+                    "--build-numbers", mappedNumbers.toString(), "--mapped")), equalTo(0));
+
+            assertThat(Files.readAllBytes(mapped), equalTo(Files.readAllBytes(streamed)));
+            assertThat(Files.readAllLines(mappedNumbers), equalTo(Files.readAllLines(streamedNumbers)));
+            if (numbering.length == 0) {
+                MarcStreamReader reader = new MarcStreamReader(new ByteArrayInputStream(Files.readAllBytes(mapped)));
+                assertThat(reader.next().getControlNumber(), equalTo("3000000000"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldParseTheStrategyIndependentOfTheLocale() throws Exception {
+        Locale locale = Locale.getDefault();
+        // The Turkish upper case of i is a dotted capital I
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            int exitCode = run(resource("issueWithSequenceNumber.marcxml"), "--cluster-field", "001", "--strategy",
+                    "incremental", "--quiet");
+            assertThat(exitCode, equalTo(0));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void shouldRejectMappedStdin() throws Exception {
+        int exitCode = run(new byte[0], "--cluster-field", "001", "--input-format", "iso2709", "--output-format",
+                "iso2709", "--mapped");
+
+        assertThat(exitCode, equalTo(2));
+    }
+
+    @Test
+    public void shouldRejectFingerprintsWithoutMapped() throws Exception {
+        int exitCode = run(new byte[0], "--cluster-field", "001", "--reuse", "previous.xml");
+
+        assertThat(exitCode, equalTo(2));
+    }
+
+    @Test
+    public void shouldRejectMissingClusterKey() throws Exception {
+        int exitCode = run(new byte[0]);
+
+        assertThat(exitCode, equalTo(2));
+        assertThat(stderr.toString("UTF-8"), containsString("Usage"));
+    }
+
+    private int run(byte[] input, String... args) {
+        return new Main().run(args, new ByteArrayInputStream(input), new PrintStream(stdout), new PrintStream(stderr));
+    }
+
+    private static String[] concat(String[] args, String... more) {
+        String[] all = Arrays.copyOf(args, args.length + more.length);
+        System.arraycopy(more, 0, all, args.length, more.length);
+        return all;
+    }
+
+    private byte[] resource(String name) throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static List<Record> readXml(byte[] xml) {
+        return Records.read(new ByteArrayInputStream(xml));
+    }
+}
@@ -19,4 +19,62 @@ public class FieldLinkTest {
         assertThat(fl.number, equalTo(1));
         assertThat(fl.type, equalTo("p"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldParseIntoNumberAndTypeId() throws Exception {
+        FieldLinkTypes types = new FieldLinkTypes();
+        long packed = FieldLink.parse("12.3\\u", types);
+        assertThat(FieldLink.numberOf(packed), equalTo(12));
+        assertThat(FieldLink.typeIdOf(packed), equalTo(types.idOf("u")));
+        assertThat(types.nameOf(FieldLink.typeIdOf(packed)), equalTo("u"));
+        assertThat(FieldLink.typeIdOf(FieldLink.parse("1\\p", types)), equalTo(FieldLinkTypes.PROVENANCE));
+    }
+
+    @Test
+    public void shouldCompareTypesByValue() throws Exception {
+        FieldLink fl = FieldLink.of("1\\" + new String("p".toCharArray()));
+        assertThat(fl, equalTo(new FieldLink(1, "p")));
+        assertThat(fl.increment(), equalTo(FieldLink.of("2\\p")));
+    }
+
+    @Test
+    public void shouldKeepIdsWhenTheTypeTableGrows() throws Exception {
+        FieldLinkTypes types = new FieldLinkTypes();
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = types.idOf("growth" + i);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            assertThat(types.idOf("growth" + i), equalTo(ids[i]));
+            assertThat(types.nameOf(ids[i]), equalTo("growth" + i));
+        }
+        assertThat(types.idOf("p"), equalTo(FieldLinkTypes.PROVENANCE));
+    }
+
+    @Test
+    public void clearedTableShouldNumberTypesLikeANewOne() throws Exception {
+        FieldLinkTypes types = new FieldLinkTypes();
+        for (int i = 0; i < 5000; i++) {
+            types.idOf("junk" + i);
+        }
+        types.clear();
+
+        FieldLinkTypes fresh = new FieldLinkTypes();
+        assertThat(types.size(), equalTo(1));
+        assertThat(FieldLink.parse("3\\u", types), equalTo(FieldLink.parse("3\\u", fresh)));
+        assertThat(types.idOf("p"), equalTo(FieldLinkTypes.PROVENANCE));
+    }
+
+    @Test
+    public void shouldRejectMalformedFieldLinks() throws Exception {
+        for (String s: new String[]{"", "p", "1", "\\p", "a\\p", "1a\\p", ".1\\p", "99999999999\\p"}) {
+            assertThat(s, FieldLink.parse(s, new FieldLinkTypes()), equalTo(FieldLink.INVALID));
+        }
+        assertThat(FieldLink.parse(null, new FieldLinkTypes()), equalTo(FieldLink.INVALID));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowOnMalformedFieldLink() throws Exception {
+        FieldLink.of("Kant, Immanuel");
+    }
+}
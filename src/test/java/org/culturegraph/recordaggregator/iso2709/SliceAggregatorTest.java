@@ -0,0 +1,295 @@
+package org.culturegraph.recordaggregator.iso2709;
+
+import helper.RecordBuilder;
+import helper.Records;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SliceAggregatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldAggregateLikeTheBuilder() throws Exception {
+        for (List<Record> group: groups()) {
+            Path input = writeIso2709(group);
+            byte[] expected = aggregateWithBuilder(group);
+
+            SliceAggregator aggregator = newAggregator();
+            try (MappedIso2709Reader reader = new MappedIso2709Reader(input)) {
+                while (reader.hasNext()) {
+                    aggregator.add(reader.next());
+                }
+            }
+
+            assertThat(bytes(aggregator.build()), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void shouldReadRecordsAcrossWindows() throws Exception {
+        List<Record> records = groups().get(0);
+        Path input = writeIso2709(records);
+
+        List<String> ids = new ArrayList<>();
+        try (MappedIso2709Reader reader = new MappedIso2709Reader(input, 100)) {
+            while (reader.hasNext()) {
+                Iso2709Record record = reader.next();
+                ids.add(record.controlField("001"));
+            }
+            assertThat(reader.position(), equalTo(Files.size(input)));
+        }
+
+        assertThat(ids, hasSize(records.size()));
+        for (int i = 0; i < records.size(); i++) {
+            assertThat(ids.get(i), equalTo(records.get(i).getControlNumber()));
+        }
+    }
+
+    @Test
+    public void shouldWriteAggregatesThroughSmallChunks() throws Exception {
+        List<Record> group = groups().get(0);
+        Path input = writeIso2709(group);
+        Path output = folder.newFile("aggregates.mrc").toPath();
+
+        try (MappedIso2709Reader reader = new MappedIso2709Reader(input);
+             MappedIso2709Writer writer = new MappedIso2709Writer(output, 64)) {
+            SliceAggregationPipeline pipeline = new SliceAggregationPipeline(newAggregator());
+            pipeline.run(reader, record -> "cluster", writer);
+        }
+
+        assertThat(Files.readAllBytes(output), equalTo(aggregateWithBuilder(group)));
+    }
+
+    @Test
+    public void shouldWriteAggregatesBeyondTheRecordLengthLimitLikeTheDefaultPath() throws Exception {
+        List<Record> group = Records.resource("issueWithViolatedSortingOrder.marcxml");
+        Path input = writeIso2709(group);
+
+        SliceAggregator aggregator = newAggregator();
+        try (MappedIso2709Reader reader = new MappedIso2709Reader(input)) {
+            while (reader.hasNext()) {
+                aggregator.add(reader.next());
+            }
+        }
+        byte[] aggregate = bytes(aggregator.build());
+
+        assertThat(aggregate.length, greaterThan(99999));
+        assertThat(new String(aggregate, 0, 5, StandardCharsets.US_ASCII), equalTo("99999"));
+        List<Record> fresh = Records.resource("issueWithViolatedSortingOrder.marcxml");
+        assertThat(aggregate, equalTo(aggregateWithBuilder(fresh)));
+    }
+
+    @Test
+    public void shouldOrderSubfieldsLikeJavaStrings() throws Exception {
+        // U+1F600 is a surrogate pair in UTF-16, so it sorts before U+E000 and U+FFFD there but after them in UTF-8
+        List<Record> group = new ArrayList<>();
+        group.add(new RecordBuilder().addControlField("001", "1").addControlField("003", "DE-101")
+                .addDataField("500", ' ', ' ').addSubfield('a', "\uE000")
+                .addDataField("500", ' ', ' ').addSubfield('a', "\uD83D\uDE00")
+                .addDataField("650", ' ', ' ').addSubfield('a', "\uFFFD").addSubfield('a', "\uD83D\uDE00")
+                .build());
+        group.add(new RecordBuilder().addControlField("001", "2").addControlField("003", "DE-101")
+                .addDataField("500", ' ', ' ').addSubfield('a', "\uFFFD")
+                .addDataField("500", ' ', ' ').addSubfield('a', "\uD83D\uDE01")
+                .addDataField("650", ' ', ' ').addSubfield('a', "\uD83D\uDE00").addSubfield('a', "\uFFFD")
+                .build());
+        Path input = writeIso2709(group);
+        byte[] expected = aggregateWithBuilder(group);
+
+        SliceAggregator aggregator = newAggregator();
+        try (MappedIso2709Reader reader = new MappedIso2709Reader(input)) {
+            while (reader.hasNext()) {
+                aggregator.add(reader.next());
+            }
+        }
+
+        assertThat(bytes(aggregator.build()), equalTo(expected));
+    }
+
+    @Test
+    public void shouldReuseTheAggregatesOfUnchangedGroups() throws Exception {
+        Map<String,Record> distinct = new LinkedHashMap<>();
+        groups().forEach(group -> group.forEach(record -> distinct.putIfAbsent(record.getControlNumber(), record)));
+        List<Record> records = new ArrayList<>(distinct.values());
+        assertThat(records, hasSize(12));
+        Path input = writeIso2709(records);
+        Path first = folder.newFile("first.mrc").toPath();
+        Path second = folder.newFile("second.mrc").toPath();
+
+        assertThat(runWithCache(input, null, first, false).misses(), equalTo((long) records.size()));
+        FingerprintCache cache = runWithCache(input, first, second, false);
+        assertThat(cache.hits(), equalTo((long) records.size()));
+        assertThat(Files.readAllBytes(second), equalTo(Files.readAllBytes(first)));
+
+        // Without the first record all build numbers shift and the aggregates get new control numbers; CG_10 becomes
+        // CG_9, which is shorter, so that aggregate is built again
+        Path shorter = writeIso2709(records.subList(1, records.size()));
+        Path expected = folder.newFile("expected.mrc").toPath();
+        Path third = folder.newFile("third.mrc").toPath();
+        runWithCache(shorter, null, expected, false);
+        cache = runWithCache(shorter, second, third, false);
+        assertThat(cache.hits(), equalTo((long) records.size() - 2));
+        assertThat(cache.misses(), equalTo(1L));
+        assertThat(Files.readAllBytes(third), equalTo(Files.readAllBytes(expected)));
+    }
+
+    @Test
+    public void shouldOnlyReuseVerifiedAggregatesWhenVerifying() throws Exception {
+        List<Record> records = groups().get(0);
+        Path input = writeIso2709(records);
+        Path first = folder.newFile("first.mrc").toPath();
+        Path second = folder.newFile("second.mrc").toPath();
+        Path third = folder.newFile("third.mrc").toPath();
+
+        runWithCache(input, null, first, false);
+        // The first index has no digests
+        assertThat(runWithCache(input, first, second, true).hits(), equalTo(0L));
+        FingerprintCache cache = runWithCache(input, second, third, true);
+        assertThat(cache.hits(), equalTo((long) records.size()));
+        assertThat(cache.collisions(), equalTo(0L));
+        assertThat(Files.readAllBytes(third), equalTo(Files.readAllBytes(first)));
+    }
+
+    @Test
+    public void shouldNotReuseAggregatesOfOtherSettings() throws Exception {
+        List<Record> records = groups().get(0);
+        Path input = writeIso2709(records);
+        Path first = folder.newFile("first.mrc").toPath();
+        Path second = folder.newFile("second.mrc").toPath();
+        Path expected = folder.newFile("expected.mrc").toPath();
+
+        // Both agencies have the same String.hashCode()
+        runWithCache(input, null, first, false, "Aa");
+        FingerprintCache cache = runWithCache(input, first, second, false, "BB");
+        assertThat(cache.hits(), equalTo(0L));
+        assertThat(cache.misses(), equalTo((long) records.size()));
+        runWithCache(input, null, expected, false, "BB");
+        assertThat(Files.readAllBytes(second), equalTo(Files.readAllBytes(expected)));
+    }
+
+    @Test
+    public void shouldBuildGroupsWhoseHashCollidesWhenVerifying() throws Exception {
+        List<Record> records = groups().get(0);
+        Path input = writeIso2709(records);
+        Path first = folder.newFile("first.mrc").toPath();
+        Path second = folder.newFile("second.mrc").toPath();
+        runWithCache(input, null, first, true);
+
+        // Give each entry the hash of the next group, so that every group finds the aggregate of another one
+        Path index = FingerprintCache.indexOf(first);
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(index));
+        int entryLength = 20 + GroupFingerprint.DIGEST_LENGTH;
+        int entries = (bytes.capacity() - 20) / entryLength;
+        assertThat(entries, equalTo(records.size()));
+        long firstHash = bytes.getLong(20);
+        for (int i = 0; i < entries; i++) {
+            long next = i + 1 < entries ? bytes.getLong(20 + (i + 1) * entryLength) : firstHash;
+            bytes.putLong(20 + i * entryLength, next);
+        }
+        Files.write(index, bytes.array());
+
+        FingerprintCache cache = runWithCache(input, first, second, true);
+        assertThat(cache.hits(), equalTo(0L));
+        assertThat(cache.collisions(), equalTo((long) records.size()));
+        assertThat(Files.readAllBytes(second), equalTo(Files.readAllBytes(first)));
+    }
+
+    @Test
+    public void shouldIgnoreAnIndexWithAnInvalidDigestLength() throws Exception {
+        List<Record> records = groups().get(0);
+        Path input = writeIso2709(records);
+        Path first = folder.newFile("first.mrc").toPath();
+        runWithCache(input, null, first, true);
+        Path index = FingerprintCache.indexOf(first);
+        assertThat(FingerprintIndex.read(index).hasDigests(), equalTo(true));
+
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(index));
+        for (int digestLength: new int[]{16, -20, Integer.MAX_VALUE}) {
+            bytes.putInt(16, digestLength);
+            Files.write(index, bytes.array());
+            assertThat(FingerprintIndex.read(index), nullValue());
+        }
+    }
+
+    private static FingerprintCache runWithCache(Path input, Path previousOutput, Path output, boolean verify)
+            throws Exception {
+        return runWithCache(input, previousOutput, output, verify, "DE-101");
+    }
+
+    private static FingerprintCache runWithCache(Path input, Path previousOutput, Path output, boolean verify,
+                                                 String catalogingAgency) throws Exception {
+        SliceAggregator aggregator = newAggregator();
+        aggregator.setCatalogingAgency(catalogingAgency);
+        SliceAggregationPipeline pipeline = new SliceAggregationPipeline(aggregator);
+        try (FingerprintCache cache = new FingerprintCache(previousOutput, output, verify);
+             MappedIso2709Reader reader = new MappedIso2709Reader(input);
+             MappedIso2709Writer writer = new MappedIso2709Writer(output)) {
+            pipeline.setFingerprintCache(cache);
+            pipeline.run(reader, SliceAggregationPipeline.clusterKey("001"), writer);
+            return cache;
+        }
+    }
+
+    private static SliceAggregator newAggregator() {
+        SliceAggregator aggregator = new SliceAggregator();
+        aggregator.setBuildNumberPrefix("CG_");
+        aggregator.setCatalogingAgency("DE-101");
+        return aggregator;
+    }
+
+    private static byte[] aggregateWithBuilder(List<Record> group) {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        builder.setBuildNumberPrefix("CG_");
+        builder.setCatalogingAgency("DE-101");
+        group.forEach(builder::add);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MarcStreamWriter writer = new MarcStreamWriter(out, "UTF-8");
+        writer.setAllowOversizeEntry(true);
+        writer.write(builder.build());
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private Path writeIso2709(List<Record> records) throws Exception {
+        Path path = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(path)) {
+            MarcStreamWriter writer = new MarcStreamWriter(out, "UTF-8");
+            records.forEach(writer::write);
+            writer.close();
+        }
+        return path;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Reads the groups fresh on every call, since the builder modifies the records it aggregates. */
+    private static List<List<Record>> groups() {
+        return Records.exampleGroups("issueWithSequenceNumber.marcxml");
+    }
+}
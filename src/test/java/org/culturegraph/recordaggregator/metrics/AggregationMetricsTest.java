@@ -0,0 +1,79 @@
+package org.culturegraph.recordaggregator.metrics;
+
+import helper.RecordBuilder;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.openmbean.CompositeData;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.junit.Test;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AggregationMetricsTest {
+
+    @Test
+    public void builderShouldReportRecordsFieldsAndInvalidFieldLinks() {
+        AggregationMetrics metrics = new AggregationMetrics();
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        builder.setMetricsSink(metrics);
+
+        builder.add(record("1", "Title"));
+        builder.add(record("2", "Title"));
+        builder.build();
+
+        // Each record has a 245 with an invalid field link and the added 035; the 245 fields are merged
+        assertThat(metrics.getRecords(), equalTo(2L));
+        assertThat(metrics.getAggregates(), equalTo(1L));
+        assertThat(metrics.getDataFieldsIn(), equalTo(4L));
+        assertThat(metrics.getDataFieldsOut(), equalTo(3L));
+        assertThat(metrics.getDuplicateRatio(), closeTo(0.25, 1e-9));
+        assertThat(metrics.getInvalidFieldLinks(), equalTo(2L));
+        assertThat(metrics.getRecordsPerAggregate().getMax(), equalTo(2L));
+        assertThat(metrics.getAddNanos().getCount(), equalTo(2L));
+        assertThat(metrics.getBuildNanos().getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void histogramShouldReportPercentilesAsBucketBounds() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), equalTo(100L));
+        assertThat(snapshot.getMean(), closeTo(50.5, 1e-9));
+        assertThat(snapshot.getMedian(), equalTo(63L));
+        assertThat(snapshot.getPercentile99(), equalTo(100L));
+        assertThat(snapshot.percentile(0.01), equalTo(1L));
+    }
+
+    @Test
+    public void shouldExportMetricsOverJmx() throws Exception {
+        AggregationMetrics metrics = new AggregationMetrics();
+        metrics.aggregateBuilt(3, 10, 7, 1000);
+
+        try (JmxExporter exporter = JmxExporter.register(metrics, "test")) {
+            Object records = ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(exporter.getObjectName(), "RecordsPerAggregate");
+
+            assertThat(((CompositeData) records).get("max"), equalTo(3L));
+            assertThat(ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(exporter.getObjectName(), "DataFieldsOut"), equalTo(7L));
+        }
+    }
+
+    private static Record record(String id, String title) {
+        return new RecordBuilder()
+                .addControlField("001", id)
+                .addControlField("003", "DE-101")
+                .addDataField("245", '1', '0')
+                .addSubfield('a', title)
+                .addSubfield('8', "not a field link")
+                .build();
+    }
+}
@@ -0,0 +1,41 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CheckpointJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepClusterKeysOfAnyLength() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("checkpoints");
+        // Three bytes per character in UTF-8, beyond the 64 KB of writeUTF
+        char[] chars = new char[100_000];
+        Arrays.fill(chars, '€');
+        String longKey = new String(chars);
+
+        try (CheckpointJournal journal = new CheckpointJournal(path, null, () -> {}, 1, false)) {
+            journal.aggregateWritten(longKey, 2, 1, true, 100);
+        }
+        CheckpointJournal.Checkpoint checkpoint = CheckpointJournal.last(path);
+        assertThat(checkpoint.clusterKey, equalTo(longKey));
+
+        try (CheckpointJournal journal = new CheckpointJournal(path, checkpoint, () -> {}, 1, false)) {
+            journal.aggregateWritten(null, 1, 2, true, 200);
+        }
+        checkpoint = CheckpointJournal.last(path);
+        assertThat(checkpoint.clusterKey, nullValue());
+        assertThat(checkpoint.records, equalTo(3L));
+        assertThat(checkpoint.nextBuildNumber, equalTo(3L));
+        assertThat(checkpoint.outputPosition, equalTo(200L));
+    }
+}
@@ -0,0 +1,84 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ClusterKeyMappingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldLookUpUnsortedMappingsLikeAMap() throws Exception {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        Map<String,String> expected = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            // Duplicate ids, ids that are prefixes of others and non-ASCII ids
+            String id = random.nextInt(3) == 0 ? "ü" + random.nextInt(100) : String.valueOf(random.nextInt(300));
+            String key = "cluster " + i;
+            lines.add(id + "\t" + key + (i % 7 == 0 ? "\r" : ""));
+            expected.put(id, key);
+        }
+        lines.add(5, "");
+        Path path = folder.getRoot().toPath().resolve("mapping.tsv");
+        Files.write(path, lines, StandardCharsets.UTF_8);
+        Path temp = folder.newFolder().toPath();
+
+        // Every line is a run of its own, so the runs are merged in several passes
+        try (ClusterKeyMapping mapping = ClusterKeyMapping.open(path, temp, 1)) {
+            for (Map.Entry<String,String> entry: expected.entrySet()) {
+                assertThat(entry.getKey(), mapping.get(entry.getKey()), equalTo(entry.getValue()));
+            }
+            for (String unknown: new String[]{"", "-1", "1000", "ü", "ü1000", "\uFFFF"}) {
+                assertThat(mapping.get(unknown), nullValue());
+            }
+            assertThat(files(temp), equalTo(1L));
+        }
+        assertThat(files(temp), equalTo(0L));
+    }
+
+    @Test
+    public void shouldMapSortedMappingsInPlace() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("mapping.tsv");
+        Files.write(path, "a\t1\nab\t2\nab\t3\nb\t4".getBytes(StandardCharsets.UTF_8));
+        Path temp = folder.newFolder().toPath();
+
+        try (ClusterKeyMapping mapping = ClusterKeyMapping.open(path, temp)) {
+            assertThat(files(temp), equalTo(0L));
+            assertThat(mapping.get("a"), equalTo("1"));
+            assertThat(mapping.get("ab"), equalTo("3"));
+            assertThat(mapping.get("b"), equalTo("4"));
+            assertThat(mapping.get("aa"), nullValue());
+            assertThat(mapping.get("c"), nullValue());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectLinesWithoutTab() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("mapping.tsv");
+        Files.write(path, "a\t1\nb\n".getBytes(StandardCharsets.UTF_8));
+        ClusterKeyMapping.open(path, folder.getRoot().toPath());
+    }
+
+    private static long files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import helper.Records;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class DeltaAggregatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldBuildTheSameAggregateAsAFullRun() throws Exception {
+        try (AggregateStateStore store = AggregateStateStore.open(folder.getRoot().toPath())) {
+            DeltaAggregator delta = new DeltaAggregator(store, newBuilder());
+            List<Record> members = members();
+
+            Record aggregate = null;
+            for (Record member: members()) {
+                aggregate = delta.put("cluster", member);
+            }
+            assertThat(aggregate.toString(), equalTo(fullRun(members, 1)));
+
+            // Update the second member in place
+            Record changed = members().get(1);
+            changed.getDataFields().get(0).getSubfields().get(0).setData("changed");
+            List<Record> updated = new ArrayList<>(members());
+            updated.set(1, copy(changed));
+            aggregate = delta.put("cluster", changed);
+            assertThat(aggregate.toString(), equalTo(fullRun(updated, 1)));
+
+            // Remove the first member
+            aggregate = delta.remove("cluster", updated.get(0).getControlNumber());
+            assertThat(aggregate.toString(), equalTo(fullRun(updated.subList(1, updated.size()), 1)));
+        }
+    }
+
+    @Test
+    public void shouldKeepStatesAndBuildNumbersAcrossReopening() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        String expected;
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            DeltaAggregator delta = new DeltaAggregator(store, newBuilder());
+            delta.putAll("a", members());
+            expected = delta.putAll("b", members()).toString();
+            delta.putAll("c", members());
+            assertThat(delta.remove("c", "c-missing"), notNullValue());
+            for (Record member: members()) {
+                delta.remove("c", member.getControlNumber());
+            }
+            assertThat(store.contains("c"), is(false));
+        }
+
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            DeltaAggregator delta = new DeltaAggregator(store, newBuilder());
+            assertThat(store.size(), equalTo(2));
+            assertThat(delta.aggregate("b").toString(), equalTo(expected));
+            // Build number 3 was used by the deleted aggregate
+            assertThat(store.newState().getBuildNumber(), equalTo(4L));
+
+            long before = store.logSize();
+            store.compact();
+            assertThat(store.logSize(), lessThan(before));
+            assertThat(store.garbageBytes(), equalTo(0L));
+            assertThat(delta.aggregate("b").toString(), equalTo(expected));
+        }
+
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            assertThat(store.newState().getBuildNumber(), equalTo(5L));
+        }
+    }
+
+    @Test
+    public void shouldDropAnIncompleteEntryAtTheEndOfTheLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        long size;
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            new DeltaAggregator(store, newBuilder()).putAll("a", members());
+            size = store.logSize();
+        }
+        try (FileChannel log = FileChannel.open(directory.resolve(AggregateStateStore.LOG_FILE),
+                StandardOpenOption.APPEND)) {
+            log.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 42, 42}));
+        }
+
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            assertThat(store.logSize(), equalTo(size));
+            assertThat(store.load("a").getMemberIds(), hasSize(members().size()));
+        }
+    }
+
+    @Test
+    public void shouldFailOnACorruptEntryInTheMiddleOfTheLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        long middle;
+        long size;
+        try (AggregateStateStore store = AggregateStateStore.open(directory)) {
+            DeltaAggregator delta = new DeltaAggregator(store, newBuilder());
+            delta.putAll("a", members());
+            middle = store.logSize();
+            delta.putAll("b", members());
+            delta.putAll("c", members());
+            size = store.logSize();
+        }
+        Path log = directory.resolve(AggregateStateStore.LOG_FILE);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            // A byte in the body of the first entry after those of a
+            channel.write(ByteBuffer.wrap(new byte[]{42}), middle + 8 + 20);
+        }
+
+        try {
+            AggregateStateStore.open(directory).close();
+            fail("Expected the corrupt entry to be reported");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("position " + middle));
+        }
+        assertThat(Files.size(log), equalTo(size));
+    }
+
+    @Test
+    public void shouldStoreEqualFieldsOfMembersOnce() throws Exception {
+        AggregateState state = new AggregateState(1);
+        Record member = members().get(0);
+        state.put("1", member);
+        state.put("2", copy(member));
+
+        assertThat(state.distinctDataFields(), equalTo(member.getDataFields().size()));
+        AggregateState decoded = AggregateState.decode(state.encode());
+        assertThat(decoded.getMemberIds(), equalTo(Arrays.asList("1", "2")));
+        assertThat(decoded.records().get(1).toString(), equalTo(member.toString()));
+
+        decoded.remove("1");
+        assertThat(decoded.distinctDataFields(), equalTo(member.getDataFields().size()));
+    }
+
+    private static String fullRun(List<Record> members, long buildNumber) {
+        AggregatedRecordBuilderImpl builder = newBuilder();
+        for (Record member: members) {
+            builder.add(copy(member));
+        }
+        return builder.build(buildNumber).toString();
+    }
+
+    private static Record copy(Record record) {
+        RecordCodec codec = new RecordCodec();
+        return codec.decode(codec.encode(record));
+    }
+
+    private static AggregatedRecordBuilderImpl newBuilder() {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        builder.setBuildNumberPrefix("CG_");
+        builder.setCatalogingAgency("DE-101");
+        return builder;
+    }
+
+    /** Reads the members fresh on every call, since the builder modifies the records it aggregates. */
+    private static List<Record> members() {
+        return Records.example();
+    }
+}
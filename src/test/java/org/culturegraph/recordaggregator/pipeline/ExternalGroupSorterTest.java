@@ -0,0 +1,124 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import helper.Records;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ExternalGroupSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreRecordsWithTheCodec() {
+        RecordCodec codec = new RecordCodec();
+        for (Record record: Records.resource("issueDatafield689.marcxml")) {
+            assertThat(codec.decode(codec.encode(record)).toString(), equalTo(record.toString()));
+        }
+    }
+
+    @Test
+    public void shouldGroupUnsortedRecordsAcrossSpilledRuns() throws Exception {
+        List<Record> records = Records.resource("issueWithSequenceNumber.marcxml");
+
+        List<String> groups = new ArrayList<>();
+        try (ExternalGroupSorter sorter = new ExternalGroupSorter(folder.getRoot().toPath(), 1)) {
+            for (int i = 0; i < records.size(); i++) {
+                sorter.add(String.valueOf(i % 3), records.get(i));
+            }
+            assertThat(sorter.runCount(), equalTo(records.size()));
+
+            Iterator<List<Record>> iterator = sorter.groups();
+            while (iterator.hasNext()) {
+                StringBuilder ids = new StringBuilder();
+                for (Record record: iterator.next()) {
+                    ids.append(record.getControlNumber()).append(' ');
+                }
+                groups.add(ids.toString());
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int key = 0; key < 3; key++) {
+            StringBuilder ids = new StringBuilder();
+            for (int i = key; i < records.size(); i += 3) {
+                ids.append(records.get(i).getControlNumber()).append(' ');
+            }
+            expected.add(ids.toString());
+        }
+        assertThat(groups, equalTo(expected));
+        assertThat(folder.getRoot().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldMergeMoreRunsThanTheFanInInPasses() throws Exception {
+        List<Record> records = Records.resource("issueWithSequenceNumber.marcxml");
+
+        List<String> groups = new ArrayList<>();
+        try (ExternalGroupSorter sorter = new ExternalGroupSorter(folder.getRoot().toPath(), 1, 3)) {
+            for (int i = 0; i < records.size(); i++) {
+                sorter.add(String.valueOf(i % 3), records.get(i));
+            }
+            Iterator<List<Record>> iterator = sorter.groups();
+
+            assertThat(sorter.runCount(), lessThan(3));
+            while (iterator.hasNext()) {
+                StringBuilder ids = new StringBuilder();
+                for (Record record: iterator.next()) {
+                    ids.append(record.getControlNumber()).append(' ');
+                }
+                groups.add(ids.toString());
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int key = 0; key < 3; key++) {
+            StringBuilder ids = new StringBuilder();
+            for (int i = key; i < records.size(); i += 3) {
+                ids.append(records.get(i).getControlNumber()).append(' ');
+            }
+            expected.add(ids.toString());
+        }
+        assertThat(groups, equalTo(expected));
+        assertThat(folder.getRoot().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldDeleteTheRunsWhenClosedBeforeTheLastGroup() throws Exception {
+        List<Record> records = Records.resource("issueWithSequenceNumber.marcxml");
+
+        try (ExternalGroupSorter sorter = new ExternalGroupSorter(folder.getRoot().toPath(), 1)) {
+            for (int i = 0; i < records.size(); i++) {
+                sorter.add(String.valueOf(i % 3), records.get(i));
+            }
+            Iterator<List<Record>> groups = sorter.groups();
+            groups.next();
+        }
+        assertThat(folder.getRoot().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldGroupInMemoryWithinBudget() throws Exception {
+        List<Record> records = Records.resource("issueWithSequenceNumber.marcxml");
+
+        try (ExternalGroupSorter sorter = new ExternalGroupSorter(folder.getRoot().toPath(), Long.MAX_VALUE)) {
+            for (Record record: records) {
+                sorter.add("cluster", record);
+            }
+            Iterator<List<Record>> groups = sorter.groups();
+
+            assertThat(sorter.runCount(), equalTo(0));
+            assertThat(groups.next(), hasSize(records.size()));
+            assertThat(groups.hasNext(), is(false));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.culturegraph.recordaggregator.pipeline;
+
+import helper.Records;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.plugin.MergeStrategy;
+import org.junit.Test;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class GroupAggregatorTest {
+
+    @Test
+    public void shouldNumberAggregatesIndependentOfParallelism() {
+        List<String> sequential = aggregate(1);
+        List<String> parallel = aggregate(4);
+
+        assertThat(sequential, hasSize(groups().size()));
+        assertThat(parallel, equalTo(sequential));
+    }
+
+    @Test
+    public void shouldEmitAggregatesInInputOrder() {
+        List<String> ids = new ArrayList<>();
+        try (GroupAggregator aggregator = new GroupAggregator(GroupAggregatorTest::newBuilder, 3)) {
+            aggregator.aggregate(groups(), aggregate -> ids.add(aggregate.getControlNumber()));
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= groups().size(); i++) {
+            expected.add("CG_" + i);
+        }
+        assertThat(ids, equalTo(expected));
+    }
+
+    @Test
+    public void shouldGroupAdjacentClusterKeys() {
+        List<Record> records = Records.resource("issueWithSequenceNumber.marcxml").subList(0, 5);
+        // A key that comes back after another key starts a new group
+        String[] keys = {"a", "a", "b", "a", "c"};
+        List<Map.Entry<String,Record>> clustered = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            clustered.add(new AbstractMap.SimpleEntry<>(keys[i], records.get(i)));
+        }
+
+        List<Record> aggregates = new ArrayList<>();
+        try (GroupAggregator aggregator = new GroupAggregator(GroupAggregatorTest::newBuilder, 2)) {
+            long count = aggregator.aggregateClustered(clustered.iterator(), aggregates::add);
+            assertThat(count, equalTo(4L));
+        }
+        List<String> ids = new ArrayList<>();
+        List<Integer> sourceRecords = new ArrayList<>();
+        for (Record aggregate: aggregates) {
+            ids.add(aggregate.getControlNumber());
+            sourceRecords.add(aggregate.getVariableFields("035").size());
+        }
+        assertThat(ids, contains("CG_1", "CG_2", "CG_3", "CG_4"));
+        assertThat(sourceRecords.get(0), greaterThan(sourceRecords.get(1)));
+    }
+
+    private List<String> aggregate(int parallelism) {
+        List<String> result = new ArrayList<>();
+        try (GroupAggregator aggregator = new GroupAggregator(GroupAggregatorTest::newBuilder, parallelism)) {
+            aggregator.aggregate(groups(), aggregate -> result.add(aggregate.toString()));
+        }
+        return result;
+    }
+
+    private static AggregatedRecordBuilderImpl newBuilder() {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(MergeStrategy.INCREMENTAL);
+        builder.setBuildNumberPrefix("CG_");
+        builder.setCatalogingAgency("DE-101");
+        return builder;
+    }
+
+    /** A skewed mix of small groups and one large group, read anew because aggregation modifies the records. */
+    private List<List<Record>> groups() {
+        List<List<Record>> groups = new ArrayList<>();
+        for (Record record: Records.resource("issueWithSequenceNumber.marcxml")) {
+            groups.add(Collections.singletonList(record));
+        }
+        groups.add(Records.resource("issueWithViolatedSortingOrder.marcxml"));
+        groups.add(Records.resource("issueDatafield689.marcxml"));
+        for (Record record: Records.resource("issueWithSequenceNumber.marcxml")) {
+            groups.add(Collections.singletonList(record));
+        }
+        return groups;
+    }
+}
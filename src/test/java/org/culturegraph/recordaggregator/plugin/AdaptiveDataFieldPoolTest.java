@@ -0,0 +1,68 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AdaptiveDataFieldPoolTest {
+
+    private static final char FIELD_LINK_CODE = '8';
+
+    @Test
+    public void parallelMergeShouldEqualTheSortedMerge() {
+        DataFieldComparator comparator = new DataFieldComparator(FIELD_LINK_CODE);
+        String expected = drain(new SortingDataFieldPool(comparator, FIELD_LINK_CODE), 3000, 7);
+
+        assertThat(drain(new AdaptiveDataFieldPool(comparator, FIELD_LINK_CODE), 3000, 7), equalTo(expected));
+        // Small chunks, so that runs of equal keys span many chunk boundaries
+        for (int chunkSize: new int[]{1, 2, 7, 100}) {
+            String actual = drain(new AdaptiveDataFieldPool(comparator, FIELD_LINK_CODE, 1, chunkSize), 3000, 7);
+            assertThat(actual, equalTo(expected));
+        }
+    }
+
+    @Test
+    public void shouldChooseByGroupSize() {
+        DataFieldComparator comparator = new DataFieldComparator(FIELD_LINK_CODE);
+        for (int records: new int[]{1, AdaptiveDataFieldPool.SMALL_GROUP, 50}) {
+            String expected = drain(new SortingDataFieldPool(comparator, FIELD_LINK_CODE), records, 3);
+            String actual = drain(new AdaptiveDataFieldPool(comparator, FIELD_LINK_CODE), records, 3);
+            assertThat(actual, equalTo(expected));
+        }
+    }
+
+    /** Adds the same random records to the pool, with a field link per record, and drains it twice. */
+    private static String drain(DataFieldPool pool, int records, int values) {
+        StringBuilder result = new StringBuilder();
+        for (int pass = 0; pass < 2; pass++) {
+            Random random = new Random(42);
+            for (int r = 0; r < records; r++) {
+                pool.add(dataFields(random, "r" + r, values));
+            }
+            List<DataField> drained = pool.drain();
+            assertThat(drained, not(empty()));
+            result.append(drained.stream().map(DataField::toString).collect(Collectors.joining("\n")));
+        }
+        return result.toString();
+    }
+
+    private static List<DataField> dataFields(Random random, String link, int values) {
+        MarcFactory factory = MarcFactory.newInstance();
+        List<DataField> dataFields = new ArrayList<>();
+        for (String tag: new String[]{"100", "245", "650", "650", "700"}) {
+            DataField df = factory.newDataField(tag, ' ', ' ');
+            df.addSubfield(factory.newSubfield('a', "v" + random.nextInt(values)));
+            df.addSubfield(factory.newSubfield(FIELD_LINK_CODE, link));
+            dataFields.add(df);
+        }
+        return dataFields;
+    }
+}
@@ -0,0 +1,68 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import helper.RecordBuilder;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class AggregatedRecordBuilderFactoryTest {
+
+    @Test
+    public void threadLocalBuilderShouldBeReusedWithinAThread() throws Exception {
+        AggregatedRecordBuilderImpl builder = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT);
+        builder.add(record());
+        builder.build(1);
+        builder.add(record());
+
+        AggregatedRecordBuilderImpl again = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT);
+        AggregatedRecordBuilderImpl otherStrategy = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.HASH);
+        AggregatedRecordBuilderImpl otherThread = CompletableFuture
+                .supplyAsync(() -> AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT)).get();
+
+        assertThat(again, sameInstance(builder));
+        assertThat(otherStrategy, not(sameInstance(builder)));
+        assertThat(otherThread, not(sameInstance(builder)));
+        // Reset: no pending record
+        assertThat(again.getRecords(), is(empty()));
+    }
+
+    @Test
+    public void threadLocalBuilderShouldNeedBuildNumbersFromTheCaller() {
+        AggregatedRecordBuilderImpl builder = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT);
+        builder.setBuildNumberAllocator(null);
+        builder.add(record());
+        assertThat(builder.build(7).getControlNumber(), equalTo("7"));
+
+        builder = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT);
+        builder.add(record());
+        try {
+            builder.build();
+            fail("Expected the counter of the builder to be rejected");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("build(long)"));
+        }
+
+        BuildNumberAllocator buildNumbers = new BuildNumberAllocator(1, 1, false);
+        for (int group = 1; group <= 2; group++) {
+            builder = AggregatedRecordBuilderFactory.threadLocalBuilder(MergeStrategy.SORT);
+            builder.setBuildNumberAllocator(buildNumbers);
+            builder.add(record());
+            assertThat(builder.build().getControlNumber(), equalTo(String.valueOf(group)));
+        }
+        builder.setBuildNumberAllocator(null);
+    }
+
+    private static Record record() {
+        return new RecordBuilder()
+                .addControlField("001", "1")
+                .addDataField("245", '1', '0')
+                .addSubfield('a', "Title")
+                .build();
+    }
+}
@@ -305,6 +305,50 @@ public class AggregatedRecordBuilderImplTest {
         assertThat(df.toString(), containsString("$82\\u"));
     }
 
+    @Test
+    public void shouldRenumberValidLinksAfterManyTypesWereSeen() {
+        // More types than a process-wide table of 4096 types could hold
+        RecordBuilder junk = new RecordBuilder()
+                .addControlField("001", "1")
+                .addControlField("003", "DE-601");
+        for (int i = 0; i < 5000; i++) {
+            junk.addDataField("500", ' ', ' ')
+                    .addSubfield('8', "1\\junk" + i)
+                    .addSubfield('a', "Note " + i);
+        }
+        aggregator.add(junk.build());
+        aggregator.build();
+
+        AggregatedRecordBuilderImpl fresh = new AggregatedRecordBuilderImpl();
+        for (AggregatedRecordBuilderImpl builder: Arrays.asList(aggregator, fresh)) {
+            for (String id: new String[]{"1", "2"}) {
+                builder.add(new RecordBuilder()
+                        .addControlField("001", id)
+                        .addControlField("003", "DE-601")
+                        .addDataField("041", '0', ' ')
+                        .addSubfield('8', "1\\unseen")
+                        .addSubfield('a', "eng " + id)
+                        .build());
+            }
+        }
+
+        List<String> links = allSubfieldData(aggregator.build(), "041");
+        assertThat(links, hasItems("1\\unseen", "2\\unseen"));
+        assertThat(links, equalTo(allSubfieldData(fresh.build(), "041")));
+    }
+
+    @Test
+    public void incrementalBuilderShouldNotRetainRecords() {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(MergeStrategy.INCREMENTAL);
+        builder.add(createRecordOne());
+        builder.add(createRecordTwo());
+
+        assertThat(builder.getRecords(), is(empty()));
+
+        List<String> all600data = allSubfieldData(builder.build(), "600");
+        assertThat(all600data, hasItems("1\\p", "2\\p"));
+    }
+
     @Ignore
     @Test
     public void printAggregatedRecordAsMARCXML() throws Exception {
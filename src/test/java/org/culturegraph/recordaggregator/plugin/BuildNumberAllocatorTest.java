@@ -0,0 +1,119 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import helper.RecordBuilder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class BuildNumberAllocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void buildersSharingAnAllocatorShouldNeverCollide() throws Exception {
+        BuildNumberAllocator allocator = new BuildNumberAllocator(1, 16, false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Callable<List<String>>> tasks = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            tasks.add(() -> {
+                AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+                builder.setBuildNumberAllocator(allocator);
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    builder.add(record());
+                    ids.add(builder.build().getControlNumber());
+                    if (i % 100 == 0) {
+                        builder.reset();
+                    }
+                }
+                return ids;
+            });
+        }
+
+        Set<String> ids = new HashSet<>();
+        try {
+            for (Future<List<String>> result: executor.invokeAll(tasks)) {
+                ids.addAll(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(ids, hasSize(4000));
+    }
+
+    @Test
+    public void shouldResumeAfterTheSavedNumbers() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("build-numbers");
+        BuildNumberAllocator first = BuildNumberAllocator.resume(file, 10);
+        assertThat(first.next(), equalTo(1L));
+        assertThat(first.next(), equalTo(2L));
+        first.save(file);
+
+        // The rest of the first block is not lost
+        BuildNumberAllocator second = BuildNumberAllocator.resume(file, 10);
+        assertThat(second.next(), equalTo(3L));
+        assertThat(second.allocate(5), equalTo(13L));
+        assertThat(second.peek(), equalTo(18L));
+        second.save(file);
+
+        assertThat(BuildNumberAllocator.resume(file, 10).next(), equalTo(18L));
+    }
+
+    @Test
+    public void shouldDeriveStableNumbersFromClusterKeys() {
+        BuildNumberAllocator allocator = new BuildNumberAllocator(1, 10, true);
+
+        long number = allocator.numberOf("cluster");
+        assertThat(number, equalTo(new BuildNumberAllocator(1, 10, true).numberOf("cluster")));
+        assertThat(number, not(equalTo(allocator.numberOf("other"))));
+        // Above all sequential numbers, which clusters without a key get
+        assertThat(number, greaterThanOrEqualTo(BuildNumberAllocator.DERIVED_NUMBERS));
+        assertThat(allocator.numberOf(null), equalTo(1L));
+    }
+
+    @Test
+    public void shouldRejectAClusterKeyInTwoAdjacentGroups() {
+        BuildNumberAllocator allocator = new BuildNumberAllocator(1, 10, true);
+        long number = allocator.numberOf("cluster");
+        allocator.numberOf("other");
+        // Keys are not kept, so only a split into adjacent groups is noticed
+        assertThat(allocator.numberOf("cluster"), equalTo(number));
+        try {
+            allocator.numberOf("cluster");
+            fail("Expected the repeated key to be rejected");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("cluster"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldKeepSequentialNumbersBelowTheDerivedNumbers() {
+        BuildNumberAllocator allocator = new BuildNumberAllocator(BuildNumberAllocator.DERIVED_NUMBERS - 5, 10, true);
+        allocator.numberOf(null);
+    }
+
+    private static Record record() {
+        return new RecordBuilder()
+                .addControlField("001", "1")
+                .addDataField("245", '1', '0')
+                .addSubfield('a', "Title")
+                .build();
+    }
+}
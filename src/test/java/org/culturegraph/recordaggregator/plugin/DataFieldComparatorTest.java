@@ -0,0 +1,67 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import helper.RecordBuilder;
+import helper.Records;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class DataFieldComparatorTest {
+
+    private DataFieldComparator comparator = new DataFieldComparator('8');
+
+    @Test
+    public void keyShouldIgnoreSubfieldOrderAndFieldLinks() {
+        Record record = new RecordBuilder()
+                .addDataField("650", ' ', '7')
+                .addSubfield('a', "Religionsphilosophie")
+                .addSubfield('2', "gnd")
+                .addSubfield('8', "1\\p")
+                .addDataField("650", ' ', '7')
+                .addSubfield('2', "gnd")
+                .addSubfield('8', "2\\p")
+                .addSubfield('a', "Religionsphilosophie")
+                .build();
+
+        List<DataField> dataFields = record.getDataFields();
+        DataFieldKey k1 = comparator.keyOf(dataFields.get(0));
+        DataFieldKey k2 = comparator.keyOf(dataFields.get(1));
+
+        assertThat(k1, equalTo(k2));
+        assertThat(k1.hashCode(), equalTo(k2.hashCode()));
+        assertThat(k1.compareTo(k2), equalTo(0));
+    }
+
+    @Test
+    public void keyShouldOrderLikeTheComparator() throws Exception {
+        List<DataField> dataFields = new ArrayList<>();
+        for (String resource: new String[]{"issueWithViolatedSortingOrder.marcxml", "issueDatafield689.marcxml"}) {
+            for (Record record: Records.resource(resource)) {
+                dataFields.addAll(record.getDataFields());
+            }
+        }
+
+        List<DataFieldKey> keys = new ArrayList<>();
+        for (DataField df: dataFields) {
+            keys.add(comparator.keyOf(df));
+        }
+
+        for (int i = 0; i < dataFields.size(); i++) {
+            DataField df1 = dataFields.get(i);
+            DataFieldKey k1 = keys.get(i);
+            for (int j = 0; j < dataFields.size(); j++) {
+                DataField df2 = dataFields.get(j);
+                DataFieldKey k2 = keys.get(j);
+                assertThat(Integer.signum(k1.compareTo(k2)), equalTo(Integer.signum(comparator.compare(df1, df2))));
+                assertThat(k1.equals(k2), equalTo(comparator.compare(df1, df2) == 0));
+            }
+        }
+    }
+}
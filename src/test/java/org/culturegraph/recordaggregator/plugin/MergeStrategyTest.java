@@ -0,0 +1,138 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import helper.RecordBuilder;
+import helper.Records;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.culturegraph.recordaggregator.core.entity.AggregatedRecordBuilder;
+import org.culturegraph.recordaggregator.sink.Iso2709Encoder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/** Every merge strategy has to produce the same aggregates as {@link MergeStrategy#SORT}. */
+@RunWith(Parameterized.class)
+public class MergeStrategyTest {
+
+    @Parameters(name = "{0}")
+    public static Collection<MergeStrategy> strategies() {
+        return Arrays.asList(MergeStrategy.values());
+    }
+
+    private final MergeStrategy strategy;
+
+    public MergeStrategyTest(MergeStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    @Test
+    public void shouldAggregateLikeTheSortStrategy() throws Exception {
+        String expected = aggregateAll(AggregatedRecordBuilderFactory.newBuilder(MergeStrategy.SORT));
+        String actual = aggregateAll(AggregatedRecordBuilderFactory.newBuilder(strategy));
+
+        assertThat(actual, not(isEmptyString()));
+        assertThat(actual, equalTo(expected));
+    }
+
+    @Test
+    public void shouldStreamTheAggregatesItBuilds() throws Exception {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(strategy);
+        ByteArrayOutputStream built = new ByteArrayOutputStream();
+        MarcStreamWriter writer = new MarcStreamWriter(built, "UTF-8", true);
+        for (List<Record> group: groups()) {
+            group.forEach(builder::add);
+            writer.write(builder.build());
+        }
+        writer.close();
+
+        builder.reset();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        Iso2709Encoder encoder = new Iso2709Encoder(streamed, true);
+        for (List<Record> group: groups()) {
+            group.forEach(builder::add);
+            builder.build(encoder);
+        }
+        encoder.close();
+
+        assertThat(streamed.toByteArray(), equalTo(built.toByteArray()));
+    }
+
+    @Test
+    public void shouldMergeNormalizedDuplicatesLikeTheSortStrategy() throws Exception {
+        SubfieldNormalizer normalizer = SubfieldNormalizer.parse("nfc,whitespace,punctuation,casefold=245");
+        String expected = aggregateAll(new AggregatedRecordBuilderImpl(MergeStrategy.SORT, normalizer));
+        String actual = aggregateAll(new AggregatedRecordBuilderImpl(strategy, normalizer));
+        assertThat(actual, equalTo(expected));
+
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl(strategy, normalizer);
+        builder.add(record("1", "Cafe\u0301  au lait /", "Paris :"));
+        builder.add(record("2", "Caf\u00e9 au Lait", "Paris"));
+        Record aggregate = builder.build();
+
+        List<String> titles = new ArrayList<>();
+        List<String> places = new ArrayList<>();
+        for (DataField df: aggregate.getDataFields()) {
+            if (df.getTag().equals("245")) titles.add(df.getSubfield('a').getData());
+            if (df.getTag().equals("260")) places.add(df.getSubfield('a').getData());
+        }
+        assertThat(titles, contains("Cafe\u0301  au lait /"));
+        assertThat(places, contains("Paris :"));
+    }
+
+    @Test
+    public void drainShouldReturnAListThatTheNextDrainKeeps() {
+        DataFieldPool pool = strategy.newPool(new DataFieldComparator('8', SubfieldNormalizer.NONE), '8');
+        pool.add(record("1", "First", "Paris").getDataFields());
+        List<DataField> first = pool.drain();
+        String firstFields = first.toString();
+
+        pool.add(record("2", "Second", "Berlin").getDataFields());
+        List<DataField> second = pool.drain();
+
+        assertThat(second, not(sameInstance(first)));
+        assertThat(first.toString(), equalTo(firstFields));
+        assertThat(first, hasSize(2));
+    }
+
+    private static Record record(String id, String title, String place) {
+        return new RecordBuilder()
+                .addControlField("001", id)
+                .addDataField("245", '1', '0')
+                .addSubfield('a', title)
+                .addDataField("260", ' ', ' ')
+                .addSubfield('a', place)
+                .build();
+    }
+
+    private String aggregateAll(AggregatedRecordBuilder builder) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MarcXmlWriter writer = new MarcXmlWriter(outputStream, true);
+
+        for (List<Record> group: groups()) {
+            group.forEach(builder::add);
+            writer.write(builder.build());
+        }
+
+        writer.close();
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<List<Record>> groups() {
+        return Records.exampleGroups("issueDatafield689.marcxml", "issueWithSequenceNumber.marcxml",
+                "issueWithViolatedSortingOrder.marcxml");
+    }
+}
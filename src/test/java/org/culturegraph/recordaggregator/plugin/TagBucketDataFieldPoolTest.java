@@ -0,0 +1,79 @@
+package org.culturegraph.recordaggregator.plugin;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TagBucketDataFieldPoolTest {
+
+    private static final char FIELD_LINK_CODE = '8';
+    private static final MarcFactory FACTORY = MarcFactory.newInstance();
+
+    @Test
+    public void shouldOrderTheFieldsOfABucketByIndicatorsAndSubfields() {
+        DataFieldPool pool = new TagBucketDataFieldPool(new DataFieldComparator(FIELD_LINK_CODE), FIELD_LINK_CODE);
+        pool.add(Arrays.asList(
+                dataField("650", '1', '7', "b", "1\\p"),
+                dataField("650", ' ', '7', "b", "1\\p"),
+                dataField("650", '1', ' ', "c", "1\\p"),
+                dataField("650", '1', ' ', "a", "1\\p")));
+        pool.add(Arrays.asList(
+                dataField("650", '1', ' ', "a", "2\\p"),
+                dataField("650", ' ', '7', "b", "2\\p")));
+
+        assertThat(strings(pool.drain()), contains(
+                "650  7$ab$81\\p$82\\p",
+                "650 1 $aa$81\\p$82\\p",
+                "650 1 $ac$81\\p",
+                "650 17$ab$81\\p"));
+    }
+
+    @Test
+    public void shouldPlaceTagsThatAreNotNumericBetweenTheBucketsInStringOrder() {
+        DataFieldPool pool = new TagBucketDataFieldPool(new DataFieldComparator(FIELD_LINK_CODE), FIELD_LINK_CODE);
+        pool.add(Arrays.asList(
+                dataField("245", '1', '0', "a", "1\\p"),
+                dataField("LOW", ' ', ' ', "a", "1\\p"),
+                dataField("04X", ' ', ' ', "a", "1\\p"),
+                dataField("040", ' ', ' ', "a", "1\\p"),
+                dataField("0/0", ' ', ' ', "a", "1\\p"),
+                dataField("A", ' ', ' ', "a", "1\\p")));
+        pool.add(Arrays.asList(
+                dataField("00A", ' ', ' ', "a", "2\\p"),
+                dataField("04X", ' ', ' ', "a", "2\\p"),
+                dataField("500", ' ', ' ', "a", "2\\p")));
+
+        List<DataField> drained = pool.drain();
+        assertThat(drained.stream().map(DataField::getTag).collect(Collectors.toList()),
+                contains("0/0", "00A", "040", "04X", "245", "500", "A", "LOW"));
+        assertThat(drained.get(3).toString(), equalTo("04X   $aa$81\\p$82\\p"));
+        assertThat(pool.drain(), empty());
+    }
+
+    @Test
+    public void shouldParseNumericTagsOnly() {
+        assertThat(Tags.numberOf("040"), equalTo(40));
+        assertThat(Tags.numberOf("999"), equalTo(999));
+        assertThat(Tags.numberOf("04X"), equalTo(Tags.NOT_NUMERIC));
+        assertThat(Tags.numberOf("0/0"), equalTo(Tags.NOT_NUMERIC));
+        assertThat(Tags.numberOf("0400"), equalTo(Tags.NOT_NUMERIC));
+    }
+
+    private static DataField dataField(String tag, char ind1, char ind2, String value, String link) {
+        DataField df = FACTORY.newDataField(tag, ind1, ind2);
+        df.addSubfield(FACTORY.newSubfield('a', value));
+        df.addSubfield(FACTORY.newSubfield(FIELD_LINK_CODE, link));
+        return df;
+    }
+
+    private static List<String> strings(List<DataField> dataFields) {
+        return dataFields.stream().map(DataField::toString).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,130 @@
+package org.culturegraph.recordaggregator.provenance;
+
+import helper.Records;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.sink.Iso2709Encoder;
+import org.culturegraph.recordaggregator.sink.MarcXmlEncoder;
+import org.culturegraph.recordaggregator.sink.RecordSink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProvenanceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFindTheAggregateOfEachSourceRecord() throws Exception {
+        Path output = folder.getRoot().toPath().resolve("aggregates.mrc");
+        Path index = folder.getRoot().toPath().resolve("aggregates.mrc.provenance");
+        Map<String,String> aggregateOf = aggregate(output, index, out -> new Iso2709Encoder(out, true));
+        byte[] bytes = Files.readAllBytes(output);
+
+        try (ProvenanceIndex provenance = ProvenanceIndex.open(index)) {
+            assertThat(provenance.size(), equalTo((long) aggregateOf.size()));
+            for (Map.Entry<String,String> entry: aggregateOf.entrySet()) {
+                ProvenanceIndex.Location location = provenance.find(entry.getKey());
+                assertThat(location.getControlNumber(), equalTo(entry.getValue()));
+
+                MarcStreamReader reader = new MarcStreamReader(new ByteArrayInputStream(bytes,
+                        (int) location.getOffset(), bytes.length), "UTF-8");
+                assertThat(reader.next().getControlNumber(), equalTo(entry.getValue()));
+            }
+            assertThat(provenance.find("(DE-101)unknown"), nullValue());
+            assertThat(provenance.find(""), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldPointToTheRecordsOfMarcXml() throws Exception {
+        Path output = folder.getRoot().toPath().resolve("aggregates.xml");
+        Path index = folder.getRoot().toPath().resolve("aggregates.xml.provenance");
+        Map<String,String> aggregateOf = aggregate(output, index, MarcXmlEncoder::new);
+        byte[] bytes = Files.readAllBytes(output);
+
+        try (ProvenanceIndex provenance = ProvenanceIndex.open(index)) {
+            for (String sourceId: aggregateOf.keySet()) {
+                int offset = (int) provenance.find(sourceId).getOffset();
+                String record = new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8);
+                assertThat(record, startsWith("<marc:record><marc:leader>"));
+                assertThat(record.substring(0, record.indexOf("</marc:record>")),
+                        containsString(">" + aggregateOf.get(sourceId) + "</marc:controlfield>"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldLeaveNoTemporaryFiles() throws Exception {
+        Path tempDirectory = folder.newFolder("temp").toPath();
+        Path index = folder.getRoot().toPath().resolve("aggregates.provenance");
+
+        ProvenanceIndexWriter aborted = new ProvenanceIndexWriter(index, tempDirectory, 2);
+        aborted.add("CG_1", 0, Arrays.asList("(DE-101)1", "(DE-101)2", "(DE-101)3"));
+        assertThat(files(tempDirectory), hasSize(2));
+        aborted.abort();
+        assertThat(files(tempDirectory), empty());
+        assertThat(Files.exists(index), equalTo(false));
+
+        try (ProvenanceIndexWriter writer = new ProvenanceIndexWriter(index, tempDirectory, 2)) {
+            writer.add("CG_1", 0, Arrays.asList("(DE-101)1", "(DE-101)2", "(DE-101)3"));
+        }
+        assertThat(files(tempDirectory), empty());
+        assertThat(files(folder.getRoot().toPath()), containsInAnyOrder("aggregates.provenance", "temp"));
+        try (ProvenanceIndex provenance = ProvenanceIndex.open(index)) {
+            assertThat(provenance.find("(DE-101)3").getControlNumber(), equalTo("CG_1"));
+        }
+    }
+
+    /** Aggregates the example groups with two ids per run and returns the aggregate of each source id. */
+    private Map<String,String> aggregate(Path output, Path index, Function<OutputStream,RecordSink> newSink) throws Exception {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        builder.setBuildNumberPrefix("CG_");
+        Map<String,String> aggregateOf = new HashMap<>();
+        try (OutputStream out = Files.newOutputStream(output)) {
+            RecordSink sink = new ProvenanceRecorder(newSink.apply(out),
+                    new ProvenanceIndexWriter(index, folder.getRoot().toPath(), 2));
+            for (List<Record> group: Records.exampleGroups("issueDatafield689.marcxml",
+                    "issueWithSequenceNumber.marcxml")) {
+                group.forEach(builder::add);
+                Record aggregate = builder.build();
+                for (DataField df: aggregate.getDataFields()) {
+                    if (df.getTag().equals("035") && df.getSubfield('8') != null) {
+                        aggregateOf.put(df.getSubfield('a').getData(), aggregate.getControlNumber());
+                    }
+                }
+                sink.write(aggregate);
+            }
+            sink.close();
+        }
+        assertThat(aggregateOf.size(), greaterThan(2));
+        return aggregateOf;
+    }
+
+    private static List<String> files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.culturegraph.recordaggregator.shard;
+
+import helper.Records;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.recordaggregator.pipeline.AggregationPipeline;
+import org.culturegraph.recordaggregator.pipeline.PipelineStatistics;
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.culturegraph.recordaggregator.sink.Iso2709Encoder;
+import org.junit.Test;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ShardCoordinatorTest {
+
+    @Test
+    public void workerProcessesShouldAggregateLikeASingleProcess() throws Exception {
+        AggregationPipeline pipeline = new AggregationPipeline(() -> {
+            AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+            builder.setBuildNumberPrefix("CG_");
+            builder.setCatalogingAgency("DE-101");
+            return builder;
+        });
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Iso2709Encoder encoder = new Iso2709Encoder(expected, true);
+        pipeline.runKeyed(groups().iterator(), encoder);
+        encoder.close();
+
+        ShardCoordinator coordinator = new ShardCoordinator(new ProcessShardLauncher(), 3);
+        coordinator.setBuildNumberPrefix("CG_");
+        coordinator.setCatalogingAgency("DE-101");
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        encoder = new Iso2709Encoder(actual, true);
+        PipelineStatistics statistics = coordinator.run(groups().iterator(), encoder);
+        encoder.close();
+
+        assertThat(statistics.aggregates, equalTo((long) groups().size()));
+        assertThat(actual.toByteArray(), equalTo(expected.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailIfAWorkerFails() throws Exception {
+        ShardCoordinator coordinator = new ShardCoordinator(shard -> {
+            if (shard == 1) {
+                // A worker that ends the session before answering
+                return new PipedConnection(connection -> {});
+            }
+            return new PipedConnection(connection -> new ShardWorker().run(connection.input, connection.output));
+        }, 2);
+
+        coordinator.run(groups().iterator(), new Iso2709Encoder(new ByteArrayOutputStream(), true));
+    }
+
+    @Test
+    public void workerShouldRejectInvalidArgumentsLikeTheCli() {
+        for (String[] args: new String[][]{{"--bind", "127.0.0.1"}, {"--port"}, {"--port", "65536"}, {"--host", "x"}}) {
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int exitCode = new ShardWorker().run(args, new ByteArrayInputStream(new byte[0]),
+                    new ByteArrayOutputStream(), new PrintStream(stderr, true));
+
+            assertThat(exitCode, equalTo(2));
+            assertThat(stderr.toString(), containsString(ShardWorker.USAGE));
+        }
+    }
+
+    @Test
+    public void workerShouldReportAFailedSessionLikeTheCli() {
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int exitCode = new ShardWorker().run(new String[0], new ByteArrayInputStream(new byte[0]),
+                new ByteArrayOutputStream(), new PrintStream(stderr, true));
+
+        assertThat(exitCode, equalTo(1));
+        assertThat(stderr.toString(), startsWith("Shard worker failed: java.io.EOFException"));
+    }
+
+    @Test
+    public void ringShouldMoveFewKeysWhenAShardIsAdded() {
+        ShardRing four = new ShardRing(4);
+        ShardRing five = new ShardRing(5);
+
+        int[] counts = new int[4];
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = "cluster-" + i;
+            counts[four.shardOf(key)]++;
+            if (four.shardOf(key) != five.shardOf(key)) {
+                moved++;
+                assertThat(five.shardOf(key), equalTo(4));
+            }
+        }
+
+        for (int count: counts) {
+            assertThat(count, allOf(greaterThan(2000), lessThan(3000)));
+        }
+        assertThat(moved, allOf(greaterThan(1500), lessThan(2500)));
+    }
+
+    private static List<Map.Entry<String,List<Record>>> groups() {
+        List<Map.Entry<String,List<Record>>> groups = new ArrayList<>();
+        groups.add(new AbstractMap.SimpleImmutableEntry<>("example", Records.example()));
+
+        for (String resource: new String[]{"issueDatafield689.marcxml", "issueWithSequenceNumber.marcxml",
+                "issueWithViolatedSortingOrder.marcxml"}) {
+            groups.add(new AbstractMap.SimpleImmutableEntry<>(resource, Records.resource(resource)));
+            // Single record groups of copies, as the builder updates the field links of the added records
+            int i = 0;
+            for (Record record: Records.resource(resource)) {
+                groups.add(new AbstractMap.SimpleImmutableEntry<>(resource + i++, Collections.singletonList(record)));
+            }
+        }
+        return groups;
+    }
+
+    /** Runs a session in a thread of the test over pipes. */
+    private static class PipedConnection implements ShardConnection {
+        final PipedOutputStream requests = new PipedOutputStream();
+        final PipedInputStream responses = new PipedInputStream(1 << 16);
+        final InputStream input;
+        final OutputStream output;
+        final Thread thread;
+
+        PipedConnection(Session session) throws IOException {
+            this.input = new PipedInputStream(requests, 1 << 16);
+            this.output = new PipedOutputStream(responses);
+            this.thread = new Thread(() -> {
+                try {
+                    session.run(this);
+                    output.close();
+                } catch (IOException e) {
+                    // Seen by the coordinator as the end of the responses
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public OutputStream requests() {
+            return requests;
+        }
+
+        @Override
+        public InputStream responses() {
+            return responses;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void abort() {
+            thread.interrupt();
+        }
+    }
+
+    private interface Session {
+        void run(PipedConnection connection) throws IOException;
+    }
+}
@@ -0,0 +1,174 @@
+package org.culturegraph.recordaggregator.sink;
+
+import helper.RecordBuilder;
+import helper.Records;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.culturegraph.recordaggregator.plugin.AggregatedRecordBuilderImpl;
+import org.junit.Test;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.MarcWriter;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class RecordSinkTest {
+
+    @Test
+    public void encodersShouldWriteLikeMarc4j() throws Exception {
+        List<Record> records = records();
+        records.add(new RecordBuilder()
+                .addControlField("001", "1")
+                .addDataField("245", '1', '0')
+                .addSubfield('a', "Tabs\tquotes \" & <tags>, \r\n \u0085 ü € 📚")
+                .build());
+
+        assertThat(encode(out -> new Iso2709Encoder(out, true), records),
+                equalTo(write(out -> new MarcStreamWriter(out, "UTF-8", true), records)));
+        assertThat(readBack(encode(MarcXmlEncoder::new, records)),
+                equalTo(readBack(write(out -> new MarcXmlWriter(out, "UTF-8"), records))));
+        assertThat(readBack(encode(MarcXmlEncoder::new, new ArrayList<>())), empty());
+    }
+
+    @Test
+    public void xmlEncoderShouldWriteEveryXmlCharacterLikeMarcXmlWriter() throws Exception {
+        StringBuilder characters = new StringBuilder("\t\n\r");
+        for (int c = 0x20; c <= 0xFFFD; c++) {
+            if (!Character.isSurrogate((char) c)) {
+                characters.append((char) c);
+            }
+        }
+        for (int c = 0x10000; c <= 0x10FFFF; c += 0xFF) {
+            characters.appendCodePoint(c);
+        }
+        RecordBuilder builder = new RecordBuilder()
+                .addControlField("001", "1 \" & < > \u00e9")
+                .addDataField("245", '"', '&');
+        String codes = "a<\"\u00e9";
+        for (int start = 0, end; start < characters.length(); start = end) {
+            end = Math.min(start + 1000, characters.length());
+            if (Character.isHighSurrogate(characters.charAt(end - 1))) {
+                end++;
+            }
+            builder.addSubfield(codes.charAt(start / 1000 % codes.length()), characters.substring(start, end));
+        }
+        List<Record> records = new ArrayList<>();
+        records.add(builder.build());
+
+        List<String> encoded = readBack(encode(MarcXmlEncoder::new, records));
+        assertThat(encoded, equalTo(readBack(write(out -> new MarcXmlWriter(out, "UTF-8"), records))));
+        assertThat(encoded, equalTo(Collections.singletonList(records.get(0).toString())));
+    }
+
+    @Test
+    public void builderShouldDropTheGroupWhenTheSinkFails() throws Exception {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        records().forEach(builder::add);
+        try {
+            builder.build(1, new MarcWriterSink(new MarcXmlWriter(new ByteArrayOutputStream(), "UTF-8")) {
+                @Override
+                public void dataField(DataField dataField) {
+                    throw new IllegalStateException("Sink failed");
+                }
+            });
+            fail("Expected the failure of the sink");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Sink failed"));
+        }
+
+        AggregatedRecordBuilderImpl fresh = new AggregatedRecordBuilderImpl();
+        builder.add(Records.example().get(0));
+        fresh.add(Records.example().get(0));
+        assertThat(builder.build(2).toString(), equalTo(fresh.build(2).toString()));
+    }
+
+    @Test
+    public void builderShouldStreamTheAggregateItWouldBuild() throws Exception {
+        AggregatedRecordBuilderImpl builder = new AggregatedRecordBuilderImpl();
+        builder.setBuildNumberPrefix("CG_");
+        builder.setCatalogingAgency("DE-101");
+
+        // Adding records updates their field links, so every aggregate gets fresh records
+        List<Record> aggregates = new ArrayList<>();
+        records().forEach(builder::add);
+        aggregates.add(builder.build());
+        records().forEach(builder::add);
+        aggregates.add(builder.build());
+
+        builder.reset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Iso2709Encoder encoder = new Iso2709Encoder(out, true);
+        records().forEach(builder::add);
+        builder.build(encoder);
+        records().forEach(builder::add);
+        builder.build(encoder);
+        encoder.close();
+
+        assertThat(out.toByteArray(), equalTo(write(o -> new MarcStreamWriter(o, "UTF-8", true), aggregates)));
+    }
+
+    @Test
+    public void asyncSinkShouldWriteInOrderLikeTheEncoders() throws Exception {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            records.addAll(records());
+        }
+
+        // Two slots keep the caller blocked most of the time
+        AsyncRecordSink[] sinks = new AsyncRecordSink[2];
+        assertThat(encode(out -> sinks[0] = AsyncRecordSink.iso2709(out, true, 3, 2), records),
+                equalTo(encode(out -> new Iso2709Encoder(out, true), records)));
+        assertThat(encode(out -> sinks[1] = AsyncRecordSink.marcXml(out, 3, 2), records),
+                equalTo(encode(MarcXmlEncoder::new, records)));
+        assertThat(encode(out -> AsyncRecordSink.marcXml(out, 3, 2), new ArrayList<>()),
+                equalTo(encode(MarcXmlEncoder::new, new ArrayList<>())));
+
+        for (AsyncRecordSink sink: sinks) {
+            assertThat(sink.getRecordsWritten(), equalTo((long) records.size()));
+            assertThat(sink.getOccupancy(), equalTo(0));
+            assertThat(sink.getMaxOccupancy(), allOf(greaterThan(0), lessThanOrEqualTo(2)));
+        }
+    }
+
+    private static byte[] encode(Function<OutputStream,RecordSink> sinkFactory, List<Record> records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordSink sink = sinkFactory.apply(out);
+        records.forEach(sink::write);
+        sink.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] write(Function<OutputStream,MarcWriter> writerFactory, List<Record> records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MarcWriter writer = writerFactory.apply(out);
+        records.forEach(writer::write);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /** Reads MARCXML back, so that equivalent XML compares equal. */
+    private static List<String> readBack(byte[] xml) {
+        List<String> records = new ArrayList<>();
+        for (Record record: Records.read(new ByteArrayInputStream(xml))) {
+            records.add(record.toString());
+        }
+        return records;
+    }
+
+    private static List<Record> records() {
+        List<Record> records = new ArrayList<>();
+        Records.exampleGroups("issueWithSequenceNumber.marcxml", "issueDatafield689.marcxml").forEach(records::addAll);
+        return records;
+    }
+}